@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.helpers.LogLog;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+
+/**
+ * The counters behind {@link FoundationAsyncAppenderMXBean}. Updated by the
+ * logging threads and the dispatcher of a single async appender without
+ * locking. The lock free appenders count the enqueued events on their
+ * dispatcher, so the logging threads only touch the counters when they block.
+ */
+final class AsyncAppenderMetrics implements FoundationAsyncAppenderMXBean {
+
+	private static final String DOMAIN = "com.cisco.oss.foundation.logging";
+
+	/**
+	 * upper bounds of the blocked time histogram buckets, the last bucket
+	 * has no bound.
+	 */
+	private static final long[] BLOCKED_BOUNDS_MILLIS = { 1, 10, 100, 1000, 10000 };
+
+	private static final long RATE_SAMPLE_PERIOD_MILLIS = 1000;
+
+	/**
+	 * the events per second are measured over the last this many samples.
+	 */
+	private static final int RATE_SAMPLES = 10;
+
+	/**
+	 * MBeans registered by the async appenders. Used to unregister only what
+	 * we registered - a reloaded configuration registers the same name again.
+	 */
+	private static final ConcurrentMap<ObjectName, AsyncAppenderMetrics> registered = new ConcurrentHashMap<ObjectName, AsyncAppenderMetrics>();
+
+	/**
+	 * guarded by registered - samples the enqueued count of the registered
+	 * MBeans, started by the first registration.
+	 */
+	private static Timer rateSampler = null;
+
+	private final IntSupplier queueDepth;
+
+	private final DiscardCounters discardCounters;
+
+	private final AtomicInteger highWaterMark = new AtomicInteger();
+
+	private final AtomicLong enqueued = new AtomicLong();
+
+	private final AtomicLong blockedCount = new AtomicLong();
+
+	private final AtomicLong blockedNanos = new AtomicLong();
+
+	private final AtomicLongArray blockedHistogram = new AtomicLongArray(BLOCKED_BOUNDS_MILLIS.length + 1);
+
+	private final AtomicLong drainBatches = new AtomicLong();
+
+	private final AtomicLong drainedEvents = new AtomicLong();
+
+	private final AtomicLong maxDrainBatch = new AtomicLong();
+
+	private final ConcurrentMap<String, AppendLatency> appendLatencies = new ConcurrentHashMap<String, AppendLatency>();
+
+	/**
+	 * guarded by this - the enqueued count taken by the rate sampler, a
+	 * cyclic buffer of the last RATE_SAMPLES samples. Until it fills the
+	 * rate is measured from when the metrics were created.
+	 */
+	private final long[] sampleCounts = new long[RATE_SAMPLES];
+
+	private final long[] sampleNanos = new long[RATE_SAMPLES];
+
+	private long samples = 0;
+
+	private final long createdNanos = System.nanoTime();
+
+	private ObjectName objectName = null;
+
+	AsyncAppenderMetrics(final IntSupplier queueDepth, final DiscardCounters discardCounters) {
+		this.queueDepth = queueDepth;
+		this.discardCounters = discardCounters;
+	}
+
+	/**
+	 * an event was accepted and the queue is now the given depth.
+	 */
+	void enqueued(final int depth) {
+		enqueued(1, depth);
+	}
+
+	/**
+	 * the given number of events were accepted and the queue reached the
+	 * given depth - for appenders that count on the dispatcher, when it takes
+	 * the events.
+	 */
+	void enqueued(final int events, final int depth) {
+		enqueued.addAndGet(events);
+		int mark = highWaterMark.get();
+		while (depth > mark && !highWaterMark.compareAndSet(mark, depth)) {
+			mark = highWaterMark.get();
+		}
+	}
+
+	/**
+	 * a logging thread waited for room in the queue.
+	 */
+	void blocked(final long nanos) {
+		blockedCount.incrementAndGet();
+		blockedNanos.addAndGet(nanos);
+		final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		int bucket = 0;
+		while (bucket < BLOCKED_BOUNDS_MILLIS.length && millis > BLOCKED_BOUNDS_MILLIS[bucket]) {
+			bucket++;
+		}
+		blockedHistogram.incrementAndGet(bucket);
+	}
+
+	/**
+	 * the dispatcher took a batch of events from the queue.
+	 */
+	void drained(final int batchSize) {
+		drainBatches.incrementAndGet();
+		drainedEvents.addAndGet(batchSize);
+		long max = maxDrainBatch.get();
+		while (batchSize > max && !maxDrainBatch.compareAndSet(max, batchSize)) {
+			max = maxDrainBatch.get();
+		}
+	}
+
+	/**
+	 * an attached appender took the given time to append an event.
+	 */
+	void appended(final String appenderName, final long nanos) {
+		final String name = appenderName == null ? "" : appenderName;
+		AppendLatency latency = appendLatencies.get(name);
+		if (latency == null) {
+			final AppendLatency created = new AppendLatency();
+			latency = appendLatencies.putIfAbsent(name, created);
+			if (latency == null) {
+				latency = created;
+			}
+		}
+		latency.record(nanos);
+	}
+
+	/**
+	 * record the enqueued count for the events per second, called by the rate
+	 * sampler.
+	 */
+	synchronized void sample(final long now) {
+		final int index = (int) (samples % RATE_SAMPLES);
+		sampleCounts[index] = enqueued.get();
+		sampleNanos[index] = now;
+		samples++;
+	}
+
+	/**
+	 * register as the MBean of the async appender of the given appender,
+	 * replacing the MBean of a previous configuration.
+	 */
+	void register(final String appenderName) {
+		try {
+			final ObjectName name = new ObjectName(DOMAIN + ":type=AsyncAppender,name=" + ObjectName.quote(String.valueOf(appenderName)));
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			synchronized (registered) {
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+				server.registerMBean(this, name);
+				registered.put(name, this);
+				startRateSampler();
+			}
+			objectName = name;
+		} catch (JMException e) {
+			LogLog.warn("Could not register the async appender MBean of: " + appenderName, e);
+		}
+	}
+
+	/**
+	 * unregister the MBean if it is still ours.
+	 */
+	void unregister() {
+		final ObjectName name = objectName;
+		if (name == null) {
+			return;
+		}
+		synchronized (registered) {
+			if (registered.remove(name, this)) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+				} catch (JMException e) {
+					LogLog.warn("Could not unregister the async appender MBean: " + name, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * called holding registered.
+	 */
+	private static void startRateSampler() {
+		if (rateSampler != null) {
+			return;
+		}
+		rateSampler = new Timer("FoundationLogger-AsyncAppenderMetrics", true);
+		rateSampler.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				final long now = System.nanoTime();
+				for (AsyncAppenderMetrics metrics : registered.values()) {
+					metrics.sample(now);
+				}
+			}
+		}, RATE_SAMPLE_PERIOD_MILLIS, RATE_SAMPLE_PERIOD_MILLIS);
+	}
+
+	ObjectName getObjectName() {
+		return objectName;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queueDepth.getAsInt();
+	}
+
+	@Override
+	public int getHighWaterMark() {
+		return highWaterMark.get();
+	}
+
+	@Override
+	public void resetHighWaterMark() {
+		highWaterMark.set(getQueueDepth());
+	}
+
+	@Override
+	public long getEnqueuedCount() {
+		return enqueued.get();
+	}
+
+	@Override
+	public synchronized double getEventsPerSecond() {
+		// from the oldest sample kept - reading doesn't move the window, so
+		// concurrent JMX clients see the same rate.
+		long fromCount = 0;
+		long fromNanos = createdNanos;
+		if (samples >= RATE_SAMPLES) {
+			final int oldest = (int) (samples % RATE_SAMPLES);
+			fromCount = sampleCounts[oldest];
+			fromNanos = sampleNanos[oldest];
+		}
+		final long elapsed = System.nanoTime() - fromNanos;
+		return elapsed <= 0 ? 0 : (enqueued.get() - fromCount) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+	}
+
+	@Override
+	public long getBlockedCount() {
+		return blockedCount.get();
+	}
+
+	@Override
+	public long getBlockedTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+	}
+
+	@Override
+	public Map<String, Long> getBlockedTimeHistogram() {
+		final Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < BLOCKED_BOUNDS_MILLIS.length; i++) {
+			histogram.put("<=" + BLOCKED_BOUNDS_MILLIS[i] + "ms", blockedHistogram.get(i));
+		}
+		histogram.put(">" + BLOCKED_BOUNDS_MILLIS[BLOCKED_BOUNDS_MILLIS.length - 1] + "ms", blockedHistogram.get(BLOCKED_BOUNDS_MILLIS.length));
+		return histogram;
+	}
+
+	@Override
+	public long getDiscardedCount() {
+		return discardCounters.getTotal();
+	}
+
+	@Override
+	public Map<String, Long> getDiscardCountsByLevel() {
+		return discardCounters.getCountsByLevel();
+	}
+
+	@Override
+	public Map<String, Long> getDiscardCountsByLogger() {
+		return discardCounters.getCountsByLogger();
+	}
+
+	@Override
+	public double getAverageDrainBatchSize() {
+		final long batches = drainBatches.get();
+		return batches == 0 ? 0 : (double) drainedEvents.get() / batches;
+	}
+
+	@Override
+	public long getMaxDrainBatchSize() {
+		return maxDrainBatch.get();
+	}
+
+	@Override
+	public Map<String, Double> getAverageAppendMicros() {
+		final Map<String, Double> averages = new TreeMap<String, Double>();
+		for (Map.Entry<String, AppendLatency> entry : appendLatencies.entrySet()) {
+			averages.put(entry.getKey(), entry.getValue().averageMicros());
+		}
+		return averages;
+	}
+
+	@Override
+	public Map<String, Long> getMaxAppendMicros() {
+		final Map<String, Long> maximums = new TreeMap<String, Long>();
+		for (Map.Entry<String, AppendLatency> entry : appendLatencies.entrySet()) {
+			maximums.put(entry.getKey(), TimeUnit.NANOSECONDS.toMicros(entry.getValue().maxNanos.get()));
+		}
+		return maximums;
+	}
+
+	/**
+	 * append times of a single attached appender.
+	 */
+	private static final class AppendLatency {
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(final long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		double averageMicros() {
+			final long events = count.get();
+			return events == 0 ? 0 : totalNanos.get() / 1000.0 / events;
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Appender;
+
+/**
+ * An appender that can defer flushing while an async dispatcher hands it a
+ * batch of events, and flush once when the batch ends. Appenders that don't
+ * implement it flush per event as configured.
+ */
+public interface BatchAwareAppender extends Appender {
+
+	/**
+	 * Called before the events of a batch are appended. Batches may nest -
+	 * e.g. two async appenders sharing the appender - each beginBatch is
+	 * matched by an endBatch.
+	 */
+	void beginBatch();
+
+	/**
+	 * Called after the last event of a batch was appended, also if appending
+	 * failed. Flushes what the batch wrote.
+	 */
+	void endBatch();
+
+}
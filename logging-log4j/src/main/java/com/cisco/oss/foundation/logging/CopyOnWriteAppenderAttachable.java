@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The nested appenders of the async appenders. Same as
+ * {@link org.apache.log4j.helpers.AppenderAttachableImpl} but copy on write,
+ * so the dispatcher iterates the appenders without holding a lock while they
+ * write.
+ */
+public final class CopyOnWriteAppenderAttachable implements AppenderAttachable {
+
+	private static final Appender[] NO_APPENDERS = new Appender[0];
+
+	private final CopyOnWriteArrayList<Appender> appenders = new CopyOnWriteArrayList<Appender>();
+
+	/**
+	 * the appenders as an array, replaced whenever they change.
+	 */
+	private volatile Appender[] snapshot = NO_APPENDERS;
+
+	/**
+	 * @return the current appenders. Must not be modified.
+	 */
+	Appender[] getAppenders() {
+		return snapshot;
+	}
+
+	/**
+	 * append the event to all the appenders.
+	 *
+	 * @return the number of appenders.
+	 */
+	public int appendLoopOnAppenders(final LoggingEvent event) {
+		final Appender[] current = snapshot;
+		for (int i = 0; i < current.length; i++) {
+			current[i].doAppend(event);
+		}
+		return current.length;
+	}
+
+	@Override
+	public void addAppender(final Appender newAppender) {
+		if (newAppender != null && appenders.addIfAbsent(newAppender)) {
+			refresh();
+		}
+	}
+
+	@Override
+	public Enumeration getAllAppenders() {
+		final Appender[] current = snapshot;
+		// null like AppenderAttachableImpl when there are no appenders.
+		return current.length == 0 ? null : Collections.enumeration(appenders);
+	}
+
+	@Override
+	public Appender getAppender(final String name) {
+		if (name == null) {
+			return null;
+		}
+		for (Appender appender : snapshot) {
+			if (name.equals(appender.getName())) {
+				return appender;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean isAttached(final Appender appender) {
+		return appender != null && appenders.contains(appender);
+	}
+
+	/**
+	 * remove and close all the appenders.
+	 */
+	@Override
+	public void removeAllAppenders() {
+		final Appender[] removed = snapshot;
+		appenders.clear();
+		refresh();
+		for (Appender appender : removed) {
+			appender.close();
+		}
+	}
+
+	@Override
+	public void removeAppender(final Appender appender) {
+		if (appender != null && appenders.remove(appender)) {
+			refresh();
+		}
+	}
+
+	@Override
+	public void removeAppender(final String name) {
+		removeAppender(getAppender(name));
+	}
+
+	private synchronized void refresh() {
+		snapshot = appenders.toArray(NO_APPENDERS);
+	}
+
+}
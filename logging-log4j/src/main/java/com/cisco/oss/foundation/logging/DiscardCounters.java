@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of the events an async appender discarded, per level and
+ * per logger. Unlike the discard summaries they are never reset.
+ */
+final class DiscardCounters {
+
+	/**
+	 * loggers above this are counted under {@link #OTHER_LOGGERS}.
+	 */
+	private static final int MAX_LOGGERS = 1024;
+
+	static final String OTHER_LOGGERS = "[other loggers]";
+
+	private final AtomicLong total = new AtomicLong();
+
+	private final ConcurrentMap<String, AtomicLong> byLevel = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final ConcurrentMap<String, AtomicLong> byLogger = new ConcurrentHashMap<String, AtomicLong>();
+
+	void record(final LoggingEvent event) {
+		total.incrementAndGet();
+		increment(byLevel, event.getLevel().toString());
+		final String loggerName = event.getLoggerName();
+		if (byLogger.containsKey(loggerName) || byLogger.size() < MAX_LOGGERS) {
+			increment(byLogger, loggerName);
+		} else {
+			increment(byLogger, OTHER_LOGGERS);
+		}
+	}
+
+	long getTotal() {
+		return total.get();
+	}
+
+	long getCount(final String level) {
+		final AtomicLong count = byLevel.get(level);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return a sorted copy of the counts per level name.
+	 */
+	Map<String, Long> getCountsByLevel() {
+		return snapshot(byLevel);
+	}
+
+	/**
+	 * @return a sorted copy of the counts per logger name.
+	 */
+	Map<String, Long> getCountsByLogger() {
+		return snapshot(byLogger);
+	}
+
+	private static void increment(final ConcurrentMap<String, AtomicLong> counts, final String key) {
+		AtomicLong count = counts.get(key);
+		if (count == null) {
+			final AtomicLong created = new AtomicLong();
+			count = counts.putIfAbsent(key, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	private static Map<String, Long> snapshot(final ConcurrentMap<String, AtomicLong> counts) {
+		final Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+
+}
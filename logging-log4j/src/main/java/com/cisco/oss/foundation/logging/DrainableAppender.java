@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Appender;
+
+/**
+ * An async appender that can be drained within a deadline on shutdown.
+ */
+interface DrainableAppender extends Appender {
+
+	/**
+	 * Stop queuing events - events appended from now on are appended by the
+	 * calling thread - and wait until the queued events were appended or the
+	 * deadline passed. Events still queued at the deadline are discarded.
+	 *
+	 * @param deadlineNanos
+	 *            the deadline, as {@link System#nanoTime()}.
+	 * @param report
+	 *            gets the number of events drained and discarded.
+	 */
+	void drain(long deadlineNanos, FoundationShutdownHook.Report report);
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.cisco.oss.foundation.logging;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.slf4j.Marker;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Turbo filter that enables a lower level for specific flow contexts. Used to
+ * debug a single flow without lowering the level of the loggers for all the
+ * other flows. e.g.:
+ * <pre>
+ * FoundationLogger.turboFilters=flowDebug
+ * FoundationLogger.turboFilter.flowDebug=com.cisco.oss.foundation.logging.FlowContextTurboFilter
+ * FoundationLogger.turboFilter.flowDebug.flowContexts=abc123,def456
+ * FoundationLogger.turboFilter.flowDebug.level=DEBUG
+ * FoundationLogger.turboFilter.flowDebug.loggerPrefix=com.cisco
+ * </pre>
+ */
+public class FlowContextTurboFilter extends FoundationTurboFilter {
+
+	private volatile Set<String> flowContexts = Collections.emptySet();
+
+	private Level level = Level.DEBUG;
+
+	private String loggerPrefix = null;
+
+	@Override
+	public int decide(final Logger logger, final Priority level, final Marker marker) {
+		if (flowContexts.isEmpty() || !level.isGreaterOrEqual(this.level)) {
+			return NEUTRAL;
+		}
+		if (loggerPrefix != null && !logger.getName().startsWith(loggerPrefix)) {
+			return NEUTRAL;
+		}
+		final String flowContext = getFlowContext();
+		if (flowContext != null && flowContexts.contains(flowContext)) {
+			return ACCEPT;
+		}
+		return NEUTRAL;
+	}
+
+	/**
+	 * @param flowContexts
+	 *            comma separated list of flow contexts to enable.
+	 */
+	public void setFlowContexts(final String flowContexts) {
+		final Set<String> contexts = new HashSet<String>();
+		if (flowContexts != null) {
+			for (String flowContext : flowContexts.split(",")) {
+				if (StringUtils.isNotBlank(flowContext)) {
+					contexts.add(flowContext.trim());
+				}
+			}
+		}
+		this.flowContexts = Collections.unmodifiableSet(contexts);
+	}
+
+	public String getFlowContexts() {
+		return StringUtils.join(flowContexts, ",");
+	}
+
+	/**
+	 * @param level
+	 *            the lowest level to enable for the flow contexts. Default is DEBUG.
+	 */
+	public void setLevel(final String level) {
+		this.level = Level.toLevel(level, Level.DEBUG);
+	}
+
+	public String getLevel() {
+		return level.toString();
+	}
+
+	/**
+	 * @param loggerPrefix
+	 *            optional prefix of the logger names this filter applies to.
+	 */
+	public void setLoggerPrefix(final String loggerPrefix) {
+		this.loggerPrefix = StringUtils.isBlank(loggerPrefix) ? null : loggerPrefix.trim();
+	}
+
+	public String getLoggerPrefix() {
+		return loggerPrefix;
+	}
+
+}
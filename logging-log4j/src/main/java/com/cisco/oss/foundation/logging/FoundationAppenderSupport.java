@@ -0,0 +1,226 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Helpers for Foundation appenders that override the synchronized
+ * {@link AppenderSkeleton#doAppend(LoggingEvent)} - so logging threads don't
+ * hold a monitor (and virtual threads don't pin their carrier) while the
+ * event is written.
+ */
+public final class FoundationAppenderSupport {
+
+	/**
+	 * locks of the appenders that are not AppenderSkeletons. weak keys so
+	 * removed appenders don't leak, looked up without a shared monitor.
+	 */
+	private static final ConcurrentMap<AppenderKey, ReentrantLock> appenderLocks = new ConcurrentHashMap<AppenderKey, ReentrantLock>();
+
+	private static final ReferenceQueue<Appender> collectedAppenders = new ReferenceQueue<Appender>();
+
+	/**
+	 * the key each thread looks a lock up with, so a lookup allocates
+	 * nothing.
+	 */
+	private static final ThreadLocal<AppenderLookup> lookups = new ThreadLocal<AppenderLookup>() {
+		@Override
+		protected AppenderLookup initialValue() {
+			return new AppenderLookup();
+		}
+	};
+
+	private FoundationAppenderSupport() {
+	}
+
+	/**
+	 * The threshold and filter chain checks of AppenderSkeleton.doAppend.
+	 *
+	 * @return true if the appender should append the event.
+	 */
+	public static boolean isAccepted(final AppenderSkeleton appender, final LoggingEvent event) {
+		if (!appender.isAsSevereAsThreshold(event.getLevel())) {
+			return false;
+		}
+		Filter filter = appender.getFilter();
+		while (filter != null) {
+			switch (filter.decide(event)) {
+			case Filter.DENY:
+				return false;
+			case Filter.ACCEPT:
+				return true;
+			default:
+				filter = filter.getNext();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * append holding the appender's lock - the monitor AppenderSkeleton.doAppend
+	 * takes anyway, or a lock of its own for other appenders since we can't
+	 * assume they are thread safe.
+	 */
+	static void doAppend(final Appender appender, final LoggingEvent event) {
+		if (appender instanceof AppenderSkeleton) {
+			// already synchronized on the appender, the Foundation appenders
+			// use their own locks.
+			appender.doAppend(event);
+			return;
+		}
+		final ReentrantLock lock = lockOf(appender);
+		lock.lock();
+		try {
+			appender.doAppend(event);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * append formatting with the given layout, for appenders that can't take
+	 * it as an argument. The layout is swapped holding the same lock as
+	 * {@link #doAppend(Appender, LoggingEvent)} so other threads don't use it
+	 * by mistake.
+	 */
+	static void doAppend(final Appender appender, final LoggingEvent event, final Layout layout) {
+		if (appender instanceof AppenderSkeleton) {
+			// the appender's own doAppend takes the same monitor, so this adds
+			// no pinning of its own.
+			synchronized (appender) {
+				appendSwappingLayout(appender, event, layout);
+			}
+			return;
+		}
+		final ReentrantLock lock = lockOf(appender);
+		lock.lock();
+		try {
+			appendSwappingLayout(appender, event, layout);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void appendSwappingLayout(final Appender appender, final LoggingEvent event, final Layout layout) {
+		final Layout originalLayout = appender.getLayout();
+		appender.setLayout(layout);
+		try {
+			appender.doAppend(event);
+		} finally {
+			appender.setLayout(originalLayout);
+		}
+	}
+
+	/**
+	 * @return the lock of an appender that is not an AppenderSkeleton. A lock
+	 *         rather than the appender monitor so virtual threads waiting for
+	 *         the appender don't pin their carrier thread.
+	 */
+	private static ReentrantLock lockOf(final Appender appender) {
+		final AppenderLookup lookup = lookups.get();
+		lookup.set(appender);
+		final ReentrantLock lock;
+		try {
+			lock = appenderLocks.get(lookup);
+		} finally {
+			lookup.set(null);
+		}
+		if (lock != null) {
+			return lock;
+		}
+		expungeCollectedAppenders();
+		final ReentrantLock created = new ReentrantLock();
+		final ReentrantLock existing = appenderLocks.putIfAbsent(new AppenderKey(appender, collectedAppenders), created);
+		return existing == null ? created : existing;
+	}
+
+	private static void expungeCollectedAppenders() {
+		Reference<? extends Appender> collected;
+		while ((collected = collectedAppenders.poll()) != null) {
+			appenderLocks.remove(collected);
+		}
+	}
+
+	/**
+	 * weak identity key of an appender.
+	 */
+	private static final class AppenderKey extends WeakReference<Appender> {
+
+		private final int hash;
+
+		AppenderKey(final Appender appender, final ReferenceQueue<Appender> queue) {
+			super(appender, queue);
+			hash = System.identityHashCode(appender);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof AppenderKey)) {
+				return false;
+			}
+			final Appender appender = get();
+			return appender != null && appender == ((AppenderKey) other).get();
+		}
+	}
+
+	/**
+	 * reusable strong key to look up the lock of an appender. Equal to the
+	 * {@link AppenderKey} of the same appender.
+	 */
+	private static final class AppenderLookup {
+
+		private Appender appender = null;
+
+		private int hash = 0;
+
+		void set(final Appender appender) {
+			this.appender = appender;
+			this.hash = System.identityHashCode(appender);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return other instanceof AppenderKey && appender != null && appender == ((AppenderKey) other).get();
+		}
+	}
+
+}
@@ -0,0 +1,820 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import com.cisco.oss.foundation.logging.FoundationLoggingDispatcher.DiscardSummary;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Async appender used for the appenders listed under the Foundation async
+ * appender references. Behaves like the log4j AsyncAppender but events are
+ * handed to the {@link FoundationLoggingDispatcher} thread and messages
+ * created with "{}" place holders are not rendered on the logging thread -
+ * the dispatcher renders them when the attached appenders format the event.
+ * <p>
+ * What happens when the buffer is full is set by the <code>OverflowPolicy</code>
+ * property:
+ * <ul>
+ * <li>block - the logging thread waits for room, at most
+ * <code>BlockTimeout</code> milliseconds if it is positive. The default.</li>
+ * <li>dropNewest - the new event is discarded.</li>
+ * <li>dropOldest - the oldest buffered event is discarded to make room.</li>
+ * <li>shed - events below <code>ShedThreshold</code> (default WARN) are
+ * discarded, and make room for events at or above it. Those wait like in
+ * block if only such events are buffered.</li>
+ * </ul>
+ * The buffer is full when it holds <code>BufferSize</code> events or, if
+ * <code>MaxBytes</code> is set, when the estimated size retained by the
+ * buffered events would go over it - so a burst of huge events (e.g. verbose
+ * HTTP bodies) can't take the heap. A single event is always accepted into an
+ * empty buffer.
+ * <p>
+ * Discarded events are summarized per logger and counted per level and per
+ * logger.
+ */
+public class FoundationAsyncAppender extends AppenderSkeleton implements AppenderAttachable, DrainableAppender {
+
+	/**
+	 * The default buffer size.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 128;
+
+	/**
+	 * the estimated size of an event without its strings.
+	 */
+	private static final long EVENT_OVERHEAD_BYTES = 256;
+
+	/**
+	 * Event buffer.
+	 */
+	private final List<LoggingEvent> buffer = new ArrayList<LoggingEvent>();
+
+	/**
+	 * protects the buffer and discardMap from simultaneous modifications. A
+	 * lock rather than the buffer monitor so virtual threads waiting for room
+	 * don't pin their carrier thread.
+	 */
+	private final ReentrantLock bufferLock = new ReentrantLock();
+
+	/**
+	 * signalled when events are added to an empty buffer, the buffer was
+	 * drained or the appender was closed.
+	 */
+	private final Condition bufferChanged = bufferLock.newCondition();
+
+	/**
+	 * Map of DiscardSummary objects keyed by logger name.
+	 */
+	private final Map<String, DiscardSummary> discardMap = new HashMap<String, DiscardSummary>();
+
+	/**
+	 * Buffer size.
+	 */
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	/**
+	 * the most bytes the buffered events may retain, 0 for no limit.
+	 */
+	private long maxBytes = 0;
+
+	/**
+	 * estimated bytes retained by the buffered events. Guarded by the buffer.
+	 */
+	private long bufferedBytes = 0;
+
+	/**
+	 * the estimate added to bufferedBytes for each buffered event, by buffer
+	 * index - an event's estimate changes once an appender formatted it, so
+	 * eviction subtracts what was added. Guarded by the buffer lock.
+	 */
+	private long[] eventBytes = new long[0];
+
+	/**
+	 * set by drain - events are no longer buffered. Guarded by the buffer
+	 * lock.
+	 */
+	private boolean halted = false;
+
+	/**
+	 * events the dispatcher took from the buffer. Guarded by the buffer lock.
+	 */
+	private long takenEvents = 0;
+
+	/**
+	 * events the dispatcher handed to the attached appenders - with
+	 * takenEvents, what it holds that the appenders didn't get yet.
+	 */
+	private final AtomicLong handedEvents = new AtomicLong();
+
+	/**
+	 * set when a drain missed its deadline - close doesn't wait for the
+	 * dispatcher any more, a hung appender must not hang the shutdown.
+	 */
+	private volatile boolean abandoned = false;
+
+	/**
+	 * Nested appenders.
+	 */
+	private final CopyOnWriteAppenderAttachable appenders;
+
+	/**
+	 * Dispatcher.
+	 */
+	private final Thread dispatcher;
+
+	/**
+	 * Should location info be included in dispatched messages by appenders
+	 * that don't use a pattern layout.
+	 */
+	private boolean locationInfo = false;
+
+	private final SnapshotFields snapshotFields = new SnapshotFields();
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+	/**
+	 * how long a blocked logging thread waits for room, 0 for ever.
+	 */
+	private long blockTimeout = 0;
+
+	/**
+	 * events at or above it are kept by the shed policy.
+	 */
+	private Level shedThreshold = Level.WARN;
+
+	private final DiscardCounters discardCounters = new DiscardCounters();
+
+	private final AsyncAppenderMetrics metrics = new AsyncAppenderMetrics(new IntSupplier() {
+		@Override
+		public int getAsInt() {
+			bufferLock.lock();
+			try {
+				return buffer.size();
+			} finally {
+				bufferLock.unlock();
+			}
+		}
+	}, discardCounters);
+
+	public FoundationAsyncAppender() {
+		appenders = new CopyOnWriteAppenderAttachable();
+
+		dispatcher = new Thread(new FoundationLoggingDispatcher(this, buffer, discardMap, appenders));
+
+		// It is the user's responsibility to close appenders before exiting.
+		dispatcher.setDaemon(true);
+		dispatcher.setName("FoundationAsyncAppender-Dispatcher-" + dispatcher.getName());
+		dispatcher.start();
+	}
+
+	@Override
+	public void addAppender(final Appender newAppender) {
+		appenders.addAppender(newAppender);
+	}
+
+	/**
+	 * Same as AppenderSkeleton.doAppend without holding the appender monitor -
+	 * the buffer has its own lock.
+	 */
+	@Override
+	public void doAppend(final LoggingEvent event) {
+		if (closed) {
+			LogLog.error("Attempted to append to closed appender named [" + name + "].");
+			return;
+		}
+		if (FoundationAppenderSupport.isAccepted(this, event)) {
+			append(event);
+		}
+	}
+
+	@Override
+	public void append(final LoggingEvent event) {
+		// if dispatcher thread has died then append subsequent events synchronously
+		if ((dispatcher == null) || !dispatcher.isAlive() || (bufferSize <= 0)) {
+			appenders.appendLoopOnAppenders(event);
+			return;
+		}
+
+		final int fields = snapshotFields.fieldsFor(appenders.getAppenders(), locationInfo);
+		prepareForDispatch(event, fields);
+
+		final long estimatedBytes = maxBytes > 0 ? estimateRetainedSize(event, fields) : 0;
+		boolean appendDirectly = false;
+
+		bufferLock.lock();
+		try {
+			long deadline = 0;
+			long blockedSince = 0;
+			while (true) {
+				// draining on shutdown - the dispatcher won't take new events.
+				if (halted) {
+					appendDirectly = true;
+					break;
+				}
+
+				final int previousSize = buffer.size();
+
+				if (previousSize < bufferSize && (maxBytes <= 0 || previousSize == 0 || bufferedBytes + estimatedBytes <= maxBytes)) {
+					buffer.add(event);
+					setEventBytes(previousSize, estimatedBytes);
+					bufferedBytes += estimatedBytes;
+					metrics.enqueued(previousSize + 1);
+
+					// if buffer had been empty signal the dispatcher.
+					if (previousSize == 0) {
+						bufferChanged.signalAll();
+					}
+
+					break;
+				}
+
+				// buffer is full.
+				if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+					discard(event);
+					break;
+				}
+
+				if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+					// evict until there is room - one event may not free enough bytes.
+					evict(0);
+					continue;
+				}
+
+				if (overflowPolicy == OverflowPolicy.SHED) {
+					if (!event.getLevel().isGreaterOrEqual(shedThreshold)) {
+						discard(event);
+						break;
+					}
+					final int shedIndex = indexOfSheddable();
+					if (shedIndex >= 0) {
+						evict(shedIndex);
+						continue;
+					}
+				}
+
+				// if thread is not already interrupted and not the dispatcher
+				// then wait for a buffer notification
+				boolean discard = true;
+				if (!Thread.interrupted() && Thread.currentThread() != dispatcher) {
+					if (blockedSince == 0) {
+						blockedSince = System.nanoTime();
+					}
+					try {
+						if (blockTimeout <= 0) {
+							bufferChanged.await();
+							discard = false;
+						} else {
+							if (deadline == 0) {
+								deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+							}
+							final long remaining = deadline - System.nanoTime();
+							if (remaining > 0) {
+								bufferChanged.awaitNanos(remaining);
+								discard = false;
+							}
+						}
+					} catch (InterruptedException e) {
+						// reset interrupt status so calling code can see
+						// interrupt on their next wait or sleep.
+						Thread.currentThread().interrupt();
+					}
+				}
+
+				// if the wait timed out or thread has been interrupted add
+				// event to discard map.
+				if (discard) {
+					discard(event);
+					break;
+				}
+			}
+
+			if (blockedSince != 0) {
+				metrics.blocked(System.nanoTime() - blockedSince);
+			}
+		} finally {
+			bufferLock.unlock();
+		}
+
+		if (appendDirectly) {
+			appenders.appendLoopOnAppenders(event);
+		}
+	}
+
+	/**
+	 * @return the index of the oldest buffered event below the shed
+	 *         threshold, -1 if there is none. Called while holding the buffer
+	 *         lock.
+	 */
+	private int indexOfSheddable() {
+		for (int i = 0; i < buffer.size(); i++) {
+			if (!buffer.get(i).getLevel().isGreaterOrEqual(shedThreshold)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * discard the buffered event at the given index. Called while holding the
+	 * buffer lock.
+	 */
+	private void evict(final int index) {
+		final LoggingEvent evicted = buffer.remove(index);
+		bufferedBytes -= eventBytes[index];
+		System.arraycopy(eventBytes, index + 1, eventBytes, index, buffer.size() - index);
+		discard(evicted);
+	}
+
+	/**
+	 * Called while holding the buffer lock.
+	 */
+	private void setEventBytes(final int index, final long bytes) {
+		if (eventBytes.length <= index) {
+			eventBytes = Arrays.copyOf(eventBytes, Math.max(index + 1, Math.min(bufferSize, eventBytes.length * 2 + 16)));
+		}
+		eventBytes[index] = bytes;
+	}
+
+	/**
+	 * Called by the dispatcher, holding the buffer lock, after it took all
+	 * the buffered events.
+	 */
+	void bufferDrained() {
+		bufferedBytes = 0;
+	}
+
+	/**
+	 * the dispatcher took the given number of events from the buffer. Called
+	 * while holding the buffer lock.
+	 */
+	void eventsTaken(final int events) {
+		takenEvents += events;
+	}
+
+	/**
+	 * the dispatcher handed a taken event to the attached appenders.
+	 * Dispatcher thread only.
+	 */
+	void eventHanded() {
+		handedEvents.lazySet(handedEvents.get() + 1);
+	}
+
+	/**
+	 * summarize and count the discarded event. Called while holding the
+	 * buffer lock.
+	 */
+	private void discard(final LoggingEvent event) {
+		final String loggerName = event.getLoggerName();
+		final DiscardSummary summary = discardMap.get(loggerName);
+
+		if (summary == null) {
+			discardMap.put(loggerName, new DiscardSummary(event));
+		} else {
+			summary.add(event);
+		}
+		discardCounters.record(event);
+	}
+
+	/**
+	 * Resolve the lazy event fields that depend on the calling thread before
+	 * the event is handed to another thread - of the NDC, thread name, MDC
+	 * copy and location only those the appenders read, see
+	 * {@link SnapshotFields}.
+	 */
+	static void prepareForDispatch(final LoggingEvent event, final int fields) {
+		SnapshotFields.capture(event, fields);
+
+		// parameterized messages already hold a snapshot of their arguments -
+		// leave the "{}" substitution to the dispatcher thread.
+		if (!(event.getMessage() instanceof FoundationParameterizedMessage)) {
+			event.getRenderedMessage();
+		}
+		event.getThrowableStrRep();
+	}
+
+	/**
+	 * A rough estimate of the heap retained by a prepared event: the message,
+	 * the throwable representation and of the MDC copy and NDC only what
+	 * prepareForDispatch captured - reading the others would capture them.
+	 * Strings are counted as 2 bytes a character plus a fixed overhead per
+	 * event.
+	 *
+	 * @param fields
+	 *            the {@link SnapshotFields} the event was prepared with.
+	 */
+	static long estimateRetainedSize(final LoggingEvent event, final int fields) {
+		long chars = 0;
+
+		final Object message = event.getMessage();
+		if (message instanceof FoundationParameterizedMessage) {
+			chars += ((FoundationParameterizedMessage) message).estimateLength();
+		} else {
+			final String rendered = event.getRenderedMessage();
+			chars += rendered == null ? 0 : rendered.length();
+		}
+
+		final String[] throwableRep = event.getThrowableStrRep();
+		if (throwableRep != null) {
+			for (int i = 0; i < throwableRep.length; i++) {
+				chars += throwableRep[i].length();
+			}
+		}
+
+		if ((fields & SnapshotFields.MDC) != 0) {
+			final Map<?, ?> properties = event.getProperties();
+			for (Map.Entry<?, ?> entry : properties.entrySet()) {
+				chars += String.valueOf(entry.getKey()).length() + String.valueOf(entry.getValue()).length();
+			}
+		}
+
+		if ((fields & SnapshotFields.NDC) != 0) {
+			final String ndc = event.getNDC();
+			if (ndc != null) {
+				chars += ndc.length();
+			}
+		}
+
+		return EVENT_OVERHEAD_BYTES + 2 * chars;
+	}
+
+	@Override
+	public void close() {
+		bufferLock.lock();
+		try {
+			closed = true;
+			bufferChanged.signalAll();
+		} finally {
+			bufferLock.unlock();
+		}
+
+		if (!abandoned) {
+			try {
+				dispatcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LogLog.error("Got an InterruptedException while waiting for the dispatcher to finish.", e);
+			}
+		}
+
+		metrics.unregister();
+
+		// close all attached appenders.
+		final Enumeration<?> iter = appenders.getAllAppenders();
+
+		if (iter != null) {
+			while (iter.hasMoreElements()) {
+				final Object next = iter.nextElement();
+
+				if (next instanceof Appender) {
+					((Appender) next).close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void drain(final long deadlineNanos, final FoundationShutdownHook.Report report) {
+		final long queued;
+		bufferLock.lock();
+		try {
+			// nothing is buffered once halted - whatever is pending now is
+			// either handed to the appenders by the deadline or dropped.
+			queued = buffer.size() + takenEvents - handedEvents.get();
+			halted = true;
+			bufferChanged.signalAll();
+		} finally {
+			bufferLock.unlock();
+		}
+
+		final long remaining = deadlineNanos - System.nanoTime();
+		if (remaining > 0) {
+			try {
+				dispatcher.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (dispatcher.isAlive()) {
+			abandoned = true;
+		}
+
+		// whatever the dispatcher didn't take by the deadline is dropped, as
+		// is what it took but didn't hand to the appenders yet.
+		final long dropped;
+		bufferLock.lock();
+		try {
+			dropped = buffer.size() + takenEvents - handedEvents.get();
+			for (LoggingEvent event : buffer) {
+				discardCounters.record(event);
+			}
+			buffer.clear();
+			bufferDrained();
+		} finally {
+			bufferLock.unlock();
+		}
+		report.add(queued - dropped, dropped);
+	}
+
+	/**
+	 * @return true once drain was called. Called holding the buffer lock.
+	 */
+	boolean isHalted() {
+		return halted;
+	}
+
+	ReentrantLock getBufferLock() {
+		return bufferLock;
+	}
+
+	Condition getBufferChanged() {
+		return bufferChanged;
+	}
+
+	/**
+	 * @return the health counters of this appender.
+	 */
+	AsyncAppenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return true once the appender was closed. Used by the dispatcher.
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public Enumeration getAllAppenders() {
+		return appenders.getAllAppenders();
+	}
+
+	@Override
+	public Appender getAppender(final String name) {
+		return appenders.getAppender(name);
+	}
+
+	@Override
+	public boolean isAttached(final Appender appender) {
+		return appenders.isAttached(appender);
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return false;
+	}
+
+	@Override
+	public void removeAllAppenders() {
+		appenders.removeAllAppenders();
+	}
+
+	@Override
+	public void removeAppender(final Appender appender) {
+		appenders.removeAppender(appender);
+	}
+
+	@Override
+	public void removeAppender(final String name) {
+		appenders.removeAppender(name);
+	}
+
+	public boolean getLocationInfo() {
+		return locationInfo;
+	}
+
+	public void setLocationInfo(final boolean flag) {
+		locationInfo = flag;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Sets the number of messages allowed in the event buffer before the
+	 * calling thread is blocked (if blocking is true) or until messages are
+	 * summarized and discarded.
+	 *
+	 * @param size
+	 *            buffer size, must be positive.
+	 */
+	public void setBufferSize(final int size) {
+		if (size < 0) {
+			throw new NegativeArraySizeException("size");
+		}
+
+		bufferLock.lock();
+		try {
+			// don't let size be zero.
+			bufferSize = (size < 1) ? 1 : size;
+			bufferChanged.signalAll();
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the byte budget of the buffered events, 0 if there is none.
+	 */
+	public long getMaximumBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Sets the most bytes the buffered events may retain, on top of the
+	 * event count limit. Accepts sizes like "64MB".
+	 *
+	 * @param value
+	 *            byte budget, 0 or less for no limit.
+	 */
+	public void setMaxBytes(final String value) {
+		final long parsed = OptionConverter.toFileSize(value, 0);
+		bufferLock.lock();
+		try {
+			maxBytes = parsed;
+			// the buffered events were not measured while there was no budget -
+			// count what every prepared event holds.
+			bufferedBytes = 0;
+			for (int i = 0; i < buffer.size(); i++) {
+				final long bytes = parsed > 0 ? estimateRetainedSize(buffer.get(i), 0) : 0;
+				setEventBytes(i, bytes);
+				bufferedBytes += bytes;
+			}
+			bufferChanged.signalAll();
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	public boolean getBlocking() {
+		return overflowPolicy == OverflowPolicy.BLOCK;
+	}
+
+	/**
+	 * Same as setting the overflow policy to block (true) or dropNewest
+	 * (false).
+	 */
+	public void setBlocking(final boolean value) {
+		bufferLock.lock();
+		try {
+			overflowPolicy = value ? OverflowPolicy.BLOCK : OverflowPolicy.DROP_NEWEST;
+			bufferChanged.signalAll();
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	public String getOverflowPolicy() {
+		return overflowPolicy.getName();
+	}
+
+	/**
+	 * @param policy
+	 *            block, dropNewest, dropOldest or shed. Unknown policies are
+	 *            ignored.
+	 */
+	public void setOverflowPolicy(final String policy) {
+		final OverflowPolicy parsed = OverflowPolicy.forName(policy);
+		if (parsed == null) {
+			LogLog.warn("Unknown overflow policy: " + policy + ". keeping: " + overflowPolicy.getName());
+			return;
+		}
+		bufferLock.lock();
+		try {
+			overflowPolicy = parsed;
+			bufferChanged.signalAll();
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	public long getBlockTimeout() {
+		return blockTimeout;
+	}
+
+	/**
+	 * @param millis
+	 *            how long a logging thread waits for room in the buffer before
+	 *            its event is discarded, 0 or less to wait for ever.
+	 */
+	public void setBlockTimeout(final long millis) {
+		bufferLock.lock();
+		try {
+			blockTimeout = millis;
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	public String getShedThreshold() {
+		return shedThreshold.toString();
+	}
+
+	/**
+	 * @param level
+	 *            the lowest level the shed policy keeps under pressure.
+	 */
+	public void setShedThreshold(final String level) {
+		bufferLock.lock();
+		try {
+			shedThreshold = OptionConverter.toLevel(level, Level.WARN);
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of events discarded since the appender was created.
+	 */
+	public long getDiscardedCount() {
+		return discardCounters.getTotal();
+	}
+
+	/**
+	 * @return the number of discarded events per level name.
+	 */
+	public Map<String, Long> getDiscardCountsByLevel() {
+		return discardCounters.getCountsByLevel();
+	}
+
+	/**
+	 * @return the number of discarded events per logger name.
+	 */
+	public Map<String, Long> getDiscardCountsByLogger() {
+		return discardCounters.getCountsByLogger();
+	}
+
+	/**
+	 * What to do with an event when the buffer is full.
+	 */
+	public enum OverflowPolicy {
+
+		BLOCK("block"), DROP_NEWEST("dropNewest"), DROP_OLDEST("dropOldest"), SHED("shed");
+
+		private final String name;
+
+		OverflowPolicy(final String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the policy with the given name ignoring case, null if there
+		 *         is none.
+		 */
+		public static OverflowPolicy forName(final String name) {
+			if (name == null) {
+				return null;
+			}
+			final String trimmed = name.trim().toLowerCase(Locale.ENGLISH);
+			for (OverflowPolicy policy : values()) {
+				if (policy.name.toLowerCase(Locale.ENGLISH).equals(trimmed)) {
+					return policy;
+				}
+			}
+			return null;
+		}
+	}
+
+}
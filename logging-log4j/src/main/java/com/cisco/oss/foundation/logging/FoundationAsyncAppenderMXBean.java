@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import java.util.Map;
+
+/**
+ * Health of an async appender, registered as
+ * <code>com.cisco.oss.foundation.logging:type=AsyncAppender,name=&lt;appender&gt;</code>
+ * for each appender listed under the Foundation async appender references.
+ */
+public interface FoundationAsyncAppenderMXBean {
+
+	/**
+	 * @return the number of events waiting for the dispatcher.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * @return the deepest the queue was since the last reset.
+	 */
+	int getHighWaterMark();
+
+	void resetHighWaterMark();
+
+	/**
+	 * @return the number of events accepted into the queue. The ring buffer
+	 *         based appenders count an event once the dispatcher took it.
+	 */
+	long getEnqueuedCount();
+
+	/**
+	 * @return the events accepted into the queue per second over about the
+	 *         last ten seconds.
+	 */
+	double getEventsPerSecond();
+
+	/**
+	 * @return the number of times a logging thread waited for room in the
+	 *         queue.
+	 */
+	long getBlockedCount();
+
+	long getBlockedTimeMillis();
+
+	/**
+	 * @return how many waits for room took up to each bound, e.g. "&lt;=10ms".
+	 */
+	Map<String, Long> getBlockedTimeHistogram();
+
+	long getDiscardedCount();
+
+	Map<String, Long> getDiscardCountsByLevel();
+
+	Map<String, Long> getDiscardCountsByLogger();
+
+	/**
+	 * @return the average number of events the dispatcher took from the
+	 *         queue at once.
+	 */
+	double getAverageDrainBatchSize();
+
+	long getMaxDrainBatchSize();
+
+	/**
+	 * @return the average append time of each attached appender, in
+	 *         microseconds.
+	 */
+	Map<String, Double> getAverageAppendMicros();
+
+	Map<String, Long> getMaxAppendMicros();
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Category;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ring buffer and thread behind the async loggers. A logger in async mode
+ * only captures the thread bound fields of the event and publishes it - the
+ * walk over the logger hierarchy, the filters and the layouts all run on the
+ * <code>FoundationLogger-AsyncLogger</code> thread.
+ * <p>
+ * Since the appenders the event will reach are not known when it is
+ * published, the NDC, MDC and thread name are always captured. The location
+ * costs a stack walk and is only captured if
+ * <code>FoundationLogger.asyncLoggerLocationInfo=true</code>. The ring buffer
+ * size and the way the thread waits for events are set by
+ * <code>FoundationLogger.asyncLoggerBufferSize</code> and
+ * <code>FoundationLogger.asyncLoggerWaitStrategy</code> (see
+ * {@link FoundationWaitStrategy}) and take effect when the thread starts - on
+ * the first event logged in async mode.
+ * <p>
+ * A logging thread parks while the ring buffer is full. Events are appended
+ * on the logging thread if it is interrupted while waiting, if the async
+ * loggers were drained on shutdown, if the async logger thread died or if it
+ * is the async logger thread itself (an appender that logs).
+ */
+final class FoundationAsyncLoggers {
+
+	private static final String Foundation_ASYNC_LOGGER_BUFFER_SIZE = "FoundationLogger.asyncLoggerBufferSize";
+
+	private static final String Foundation_ASYNC_LOGGER_WAIT_STRATEGY = "FoundationLogger.asyncLoggerWaitStrategy";
+
+	private static final String Foundation_ASYNC_LOGGER_LOCATION_INFO = "FoundationLogger.asyncLoggerLocationInfo";
+
+	static final int DEFAULT_BUFFER_SIZE = 4096;
+
+	/**
+	 * the most events walked in one drain.
+	 */
+	private static final int MAX_BATCH_SIZE = 256;
+
+	private static final int THREAD_FIELDS = SnapshotFields.NDC | SnapshotFields.MDC | SnapshotFields.THREAD_NAME;
+
+	private static int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	private static String waitStrategy = FoundationWaitStrategy.BLOCKING;
+
+	private static volatile int fields = THREAD_FIELDS;
+
+	private static volatile FoundationRingBuffer<LoggingEvent> ringBuffer = null;
+
+	private static volatile Thread dispatcher = null;
+
+	/**
+	 * set when a drain missed its deadline - the thread discards what is left
+	 * instead of appending it.
+	 */
+	private static volatile boolean abandoned = false;
+
+	/**
+	 * events the thread handed to the appenders. Written by the async logger
+	 * thread only.
+	 */
+	private static final AtomicLong handedEvents = new AtomicLong();
+
+	private FoundationAsyncLoggers() {
+	}
+
+	/**
+	 * read the ring buffer settings. The buffer size and wait strategy are
+	 * ignored once the thread was started.
+	 */
+	static synchronized void configure(final Properties properties) {
+		bufferSize = DEFAULT_BUFFER_SIZE;
+		final String sizeStr = properties.getProperty(Foundation_ASYNC_LOGGER_BUFFER_SIZE);
+		if (sizeStr != null) {
+			try {
+				bufferSize = Math.max(1, Integer.parseInt(sizeStr.trim()));
+			} catch (NumberFormatException e) {
+				System.err.println("[FoundationLogger] Can not format to int the property: " + Foundation_ASYNC_LOGGER_BUFFER_SIZE + ". using: " + DEFAULT_BUFFER_SIZE); // NOPMD
+			}
+		}
+		waitStrategy = properties.getProperty(Foundation_ASYNC_LOGGER_WAIT_STRATEGY, FoundationWaitStrategy.BLOCKING);
+		final boolean locationInfo = Boolean.valueOf(properties.getProperty(Foundation_ASYNC_LOGGER_LOCATION_INFO, "false"));
+		fields = locationInfo ? THREAD_FIELDS | SnapshotFields.LOCATION : THREAD_FIELDS;
+	}
+
+	/**
+	 * Hand the event to the async logger thread, which calls the appenders of
+	 * the logger hierarchy.
+	 */
+	static void publish(final FoundationLogger logger, final LoggingEvent event) {
+		FoundationRingBuffer<LoggingEvent> buffer = ringBuffer;
+		if (buffer == null) {
+			buffer = start();
+		}
+		final Thread dispatcherThread = dispatcher;
+		// the async logger thread must not wait for itself.
+		if (buffer.isHalted() || Thread.currentThread() == dispatcherThread || !dispatcherThread.isAlive()) {
+			logger.callAppenders(event);
+			return;
+		}
+
+		FoundationAsyncAppender.prepareForDispatch(event, fields);
+
+		if (!buffer.tryPublish(event) && !buffer.publish(event, dispatcherThread)) {
+			logger.callAppenders(event);
+		}
+	}
+
+	private static synchronized FoundationRingBuffer<LoggingEvent> start() {
+		if (ringBuffer != null) {
+			return ringBuffer;
+		}
+		final FoundationRingBuffer<LoggingEvent> buffer = new FoundationRingBuffer<LoggingEvent>(bufferSize, FoundationWaitStrategy.forName(waitStrategy));
+		final Thread thread = new Thread(new Dispatcher(buffer), "FoundationLogger-AsyncLogger");
+		thread.setDaemon(true);
+		dispatcher = thread;
+		thread.start();
+		ringBuffer = buffer;
+		return buffer;
+	}
+
+	/**
+	 * stop publishing and wait until the thread walked every queued event or
+	 * the deadline passed. Events logged from now on are appended on the
+	 * logging thread.
+	 *
+	 * @return false if the async loggers were never used.
+	 */
+	static boolean drain(final long deadlineNanos, final FoundationShutdownHook.Report report) {
+		final FoundationRingBuffer<LoggingEvent> buffer;
+		final Thread thread;
+		synchronized (FoundationAsyncLoggers.class) {
+			buffer = ringBuffer;
+			thread = dispatcher;
+		}
+		if (buffer == null) {
+			return false;
+		}
+		final long handedBefore = handedEvents.get();
+		buffer.halt();
+
+		final long remaining = deadlineNanos - System.nanoTime();
+		if (remaining > 0) {
+			try {
+				thread.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (thread.isAlive()) {
+			abandoned = true;
+		}
+		// halted - every published event not handed to the appenders by now
+		// is dropped, including the one the thread may be stuck on.
+		final long handed = handedEvents.get();
+		report.add(handed - handedBefore, buffer.claimedCount() - handed);
+		return true;
+	}
+
+	/**
+	 * Walks the logger hierarchy for each published event until the ring
+	 * buffer was halted and drained.
+	 */
+	private static final class Dispatcher implements Runnable, FoundationRingBuffer.EventHandler<LoggingEvent> {
+
+		private final FoundationRingBuffer<LoggingEvent> buffer;
+
+		private Dispatcher(final FoundationRingBuffer<LoggingEvent> buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void run() {
+			final FoundationWaitStrategy strategy = buffer.getWaitStrategy();
+			int idleCount = 0;
+			try {
+				while (true) {
+					if (buffer.drain(this, MAX_BATCH_SIZE) > 0) {
+						idleCount = 0;
+						continue;
+					}
+					if (buffer.isDrained()) {
+						break;
+					}
+					strategy.waitForEvents(buffer, idleCount++);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void onEvent(final LoggingEvent event, final boolean endOfBatch) {
+			if (abandoned) {
+				// counted as dropped by the drain.
+				return;
+			}
+			try {
+				final Category logger = event.getLogger();
+				logger.callAppenders(event);
+			} catch (RuntimeException e) {
+				// one failing appender must not stop the thread all the async loggers share.
+				LogLog.error("Failed to append event of logger: " + event.getLoggerName(), e);
+			}
+			handedEvents.lazySet(handedEvents.get() + 1);
+		}
+	}
+
+}
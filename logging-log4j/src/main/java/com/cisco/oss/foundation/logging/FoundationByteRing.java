@@ -0,0 +1,318 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated off-heap multi producer / single consumer ring of encoded
+ * records.
+ * <p>
+ * The ring is a direct buffer cut into fixed size slots. A producer claims as
+ * many consecutive slots as its record needs with a compare and set on the
+ * claim cursor, copies the record bytes into them and publishes them last
+ * slot first - once the first slot of a record is published the whole record
+ * is. The single consumer hands the filled part of every published slot to a
+ * {@link RegionHandler} in one gathering write and only then releases the
+ * slots, so nothing is copied or allocated on the consumer side.
+ */
+final class FoundationByteRing implements FoundationWaitStrategy.Waitable {
+
+	/**
+	 * how long a blocked producer parks before checking for space again.
+	 */
+	private static final long PRODUCER_PARK_NANOS = 1000;
+
+	private final int slotSize;
+
+	/**
+	 * the view of each slot the producer that claimed it writes through.
+	 */
+	private final ByteBuffer[] producerSlots;
+
+	/**
+	 * the view of each slot the consumer writes from.
+	 */
+	private final ByteBuffer[] consumerSlots;
+
+	/**
+	 * the regions of the batch being written, consumer only.
+	 */
+	private final ByteBuffer[] regions;
+
+	private final int[] lengths;
+
+	private final long[] timeStamps;
+
+	private final boolean[] recordEnds;
+
+	/**
+	 * the sequence last published in each slot, -1 if none.
+	 */
+	private final AtomicLongArray published;
+
+	private final int mask;
+
+	/**
+	 * next slot sequence to claim.
+	 */
+	private final AtomicLong claimed = new AtomicLong();
+
+	/**
+	 * next slot sequence to consume - every slot below it is free. Written by
+	 * the consumer only.
+	 */
+	private final AtomicLong consumed = new AtomicLong();
+
+	private final FoundationWaitStrategy waitStrategy;
+
+	/**
+	 * set in the claim cursor by halt - once halted no sequence can be
+	 * claimed, so the consumer can't miss a late producer.
+	 */
+	private static final long HALTED_BIT = Long.MIN_VALUE;
+
+	private volatile boolean halted = false;
+
+	/**
+	 * @param requestedBytes
+	 *            the ring size, rounded up to a power of 2 number of slots.
+	 * @param slotSize
+	 *            the bytes in a slot. Records longer than a slot take several.
+	 */
+	FoundationByteRing(final int requestedBytes, final int slotSize, final FoundationWaitStrategy waitStrategy) {
+		int slots = 2;
+		while ((long) slots * slotSize < requestedBytes) {
+			slots <<= 1;
+		}
+		final ByteBuffer memory = ByteBuffer.allocateDirect(slots * slotSize);
+		this.slotSize = slotSize;
+		this.producerSlots = new ByteBuffer[slots];
+		this.consumerSlots = new ByteBuffer[slots];
+		for (int i = 0; i < slots; i++) {
+			memory.limit((i + 1) * slotSize);
+			memory.position(i * slotSize);
+			producerSlots[i] = memory.slice();
+			consumerSlots[i] = memory.slice();
+		}
+		this.regions = new ByteBuffer[slots];
+		this.lengths = new int[slots];
+		this.timeStamps = new long[slots];
+		this.recordEnds = new boolean[slots];
+		this.published = new AtomicLongArray(slots);
+		for (int i = 0; i < slots; i++) {
+			published.set(i, -1);
+		}
+		this.mask = slots - 1;
+		this.waitStrategy = waitStrategy;
+	}
+
+	int getCapacity() {
+		return producerSlots.length * slotSize;
+	}
+
+	/**
+	 * @return the number of claimed slots that were not consumed yet.
+	 */
+	int size() {
+		return (int) ((claimed.get() & ~HALTED_BIT) - consumed.get());
+	}
+
+	/**
+	 * @return the number of published records that were not consumed yet -
+	 *         the records being handled included, their slots are released
+	 *         once the handler returned.
+	 */
+	int pendingRecords() {
+		final long end = claimed.get() & ~HALTED_BIT;
+		int records = 0;
+		for (long sequence = consumed.get(); sequence < end; sequence++) {
+			final int index = (int) sequence & mask;
+			if (published.get(index) == sequence && recordEnds[index]) {
+				records++;
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @return false if the record can never fit in the ring.
+	 */
+	boolean fits(final int length) {
+		return slotsFor(length) <= producerSlots.length;
+	}
+
+	private int slotsFor(final int length) {
+		return length == 0 ? 1 : (length + slotSize - 1) / slotSize;
+	}
+
+	/**
+	 * publish the record if there is room for it.
+	 *
+	 * @return false if the ring is full or halted.
+	 */
+	boolean tryPublish(final byte[] bytes, final int offset, final int length, final long timeStamp) {
+		final int slots = slotsFor(length);
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence < 0) {
+				// halted.
+				return false;
+			}
+			if (sequence + slots - consumed.get() > producerSlots.length) {
+				return false;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + slots));
+
+		for (int i = 0; i < slots; i++) {
+			final int index = (int) (sequence + i) & mask;
+			final int start = i * slotSize;
+			final int count = Math.min(slotSize, length - start);
+			final ByteBuffer slot = producerSlots[index];
+			slot.clear();
+			slot.put(bytes, offset + start, count);
+			lengths[index] = count;
+			timeStamps[index] = timeStamp;
+			recordEnds[index] = i == slots - 1;
+		}
+		// the first slot last, so a published first slot means a published record.
+		for (int i = slots - 1; i >= 0; i--) {
+			published.set((int) (sequence + i) & mask, sequence + i);
+		}
+		waitStrategy.signalAllWhenBlocking();
+		return true;
+	}
+
+	/**
+	 * publish the record, parking while the ring is full.
+	 *
+	 * @param consumer
+	 *            the consumer thread - once it died nothing makes room.
+	 * @return false if the record was not published because the ring was
+	 *         halted, the consumer died or the thread was interrupted (the
+	 *         interrupt status is kept).
+	 */
+	boolean publish(final byte[] bytes, final int offset, final int length, final long timeStamp, final Thread consumer) {
+		while (!tryPublish(bytes, offset, length, timeStamp)) {
+			if (halted || !consumer.isAlive() || Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean hasAvailable() {
+		final long next = consumed.get();
+		return published.get((int) next & mask) == next;
+	}
+
+	/**
+	 * Hand the published records, whole records of at least maxSlots slots if
+	 * there are that many, to the handler and release their slots once it
+	 * returned. Consumer thread only.
+	 *
+	 * @return the number of records handled.
+	 */
+	int drain(final RegionHandler handler, final int maxSlots) {
+		final long next = consumed.get();
+		long end = next;
+		int records = 0;
+		while (published.get((int) end & mask) == end) {
+			final boolean recordEnd = recordEnds[(int) end & mask];
+			end++;
+			if (recordEnd) {
+				records++;
+				if (end - next >= maxSlots) {
+					break;
+				}
+			}
+		}
+		if (records == 0) {
+			return 0;
+		}
+
+		final int count = (int) (end - next);
+		for (int i = 0; i < count; i++) {
+			final int index = (int) (next + i) & mask;
+			final ByteBuffer region = consumerSlots[index];
+			region.clear();
+			region.limit(lengths[index]);
+			regions[i] = region;
+		}
+		try {
+			handler.onRegions(regions, count, records, timeStamps[(int) next & mask]);
+		} finally {
+			consumed.lazySet(end);
+		}
+		return records;
+	}
+
+	/**
+	 * @return true once halted and every claimed slot was consumed.
+	 */
+	boolean isDrained() {
+		return halted && consumed.get() == (claimed.get() & ~HALTED_BIT);
+	}
+
+	@Override
+	public boolean isHalted() {
+		return halted;
+	}
+
+	/**
+	 * stop accepting producers and wake up the consumer so it can
+	 * drain what's left.
+	 */
+	void halt() {
+		long current;
+		do {
+			current = claimed.get();
+		} while (current >= 0 && !claimed.compareAndSet(current, current | HALTED_BIT));
+		halted = true;
+		waitStrategy.signalAllWhenBlocking();
+	}
+
+	FoundationWaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/**
+	 * Consumer callback.
+	 */
+	interface RegionHandler {
+
+		/**
+		 * @param regions
+		 *            the encoded records, in order. Only valid during the
+		 *            call.
+		 * @param count
+		 *            the number of regions.
+		 * @param records
+		 *            the number of records in the regions.
+		 * @param timeStamp
+		 *            the time stamp of the first record.
+		 */
+		void onRegions(ByteBuffer[] regions, int count, int records, long timeStamp);
+	}
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Async appender that gives each attached appender its own bounded queue and
+ * dispatcher thread - a {@link FoundationRingBufferAsyncAppender} per
+ * appender. A stalled appender (e.g. a file on a hung NFS mount) only fills
+ * its own queue while the other appenders keep getting their events, in the
+ * order they were logged.
+ * <p>
+ * What happens when an appender's queue is full is set per appender: by
+ * default the event is dropped and the appender gets a summary of the dropped
+ * events once its queue has room again, so a stalled appender never holds up
+ * the logging threads. Appenders named in <code>BlockingAppenders</code>
+ * (comma separated) make the logging thread wait for room instead.
+ */
+public class FoundationFanOutAsyncAppender extends AppenderSkeleton implements AppenderAttachable, DrainableAppender {
+
+	/**
+	 * one queue per attached appender. copy on write - appending iterates
+	 * without locking and appenders are rarely added.
+	 */
+	private final List<FoundationRingBufferAsyncAppender> lanes = new CopyOnWriteArrayList<FoundationRingBufferAsyncAppender>();
+
+	private Set<String> blockingAppenders = Collections.emptySet();
+
+	private int bufferSize = FoundationRingBufferAsyncAppender.DEFAULT_BUFFER_SIZE;
+
+	private String waitStrategy = FoundationWaitStrategy.BLOCKING;
+
+	private boolean locationInfo = false;
+
+	private boolean activated = false;
+
+	@Override
+	public synchronized void activateOptions() {
+		activated = true;
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			lane.activateOptions();
+		}
+	}
+
+	/**
+	 * Same as AppenderSkeleton.doAppend without holding the appender monitor.
+	 */
+	@Override
+	public void doAppend(final LoggingEvent event) {
+		if (closed) {
+			LogLog.error("Attempted to append to closed appender named [" + name + "].");
+			return;
+		}
+		if (FoundationAppenderSupport.isAccepted(this, event)) {
+			append(event);
+		}
+	}
+
+	@Override
+	public void append(final LoggingEvent event) {
+		// each lane snapshots the thread bound state its appender reads - on
+		// this thread, the lanes share the event.
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			lane.append(event);
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		// halt all the lanes first so a slow appender doesn't delay draining the others.
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			lane.halt();
+		}
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			lane.close();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void drain(final long deadlineNanos, final FoundationShutdownHook.Report report) {
+		// stop intake on all the lanes before waiting for any of them.
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			lane.halt();
+		}
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			lane.drain(deadlineNanos, report);
+		}
+	}
+
+	@Override
+	public synchronized void addAppender(final Appender newAppender) {
+		if (newAppender == null || isAttached(newAppender)) {
+			return;
+		}
+		final FoundationRingBufferAsyncAppender lane = new FoundationRingBufferAsyncAppender();
+		lane.setName(getName() + "-" + newAppender.getName());
+		lane.setBufferSize(bufferSize);
+		lane.setWaitStrategy(waitStrategy);
+		lane.setLocationInfo(locationInfo);
+		lane.setBlocking(blockingAppenders.contains(newAppender.getName()));
+		lane.addAppender(newAppender);
+		if (activated) {
+			lane.activateOptions();
+		}
+		lanes.add(lane);
+	}
+
+	@Override
+	public Enumeration getAllAppenders() {
+		final Vector<Appender> appenders = new Vector<Appender>(lanes.size());
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			appenders.add(lane.getAttachedAppender());
+		}
+		return appenders.elements();
+	}
+
+	@Override
+	public Appender getAppender(final String name) {
+		final FoundationRingBufferAsyncAppender lane = laneOf(name);
+		return lane == null ? null : lane.getAttachedAppender();
+	}
+
+	@Override
+	public boolean isAttached(final Appender appender) {
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			if (lane.getAttachedAppender() == appender) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return false;
+	}
+
+	@Override
+	public synchronized void removeAllAppenders() {
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			lane.close();
+		}
+		lanes.clear();
+	}
+
+	@Override
+	public synchronized void removeAppender(final Appender appender) {
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			if (lane.getAttachedAppender() == appender) {
+				removeLane(lane);
+				return;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void removeAppender(final String name) {
+		final FoundationRingBufferAsyncAppender lane = laneOf(name);
+		if (lane != null) {
+			removeLane(lane);
+		}
+	}
+
+	/**
+	 * dispatch what was queued for the appender and detach it without closing
+	 * it, the same as removing an appender from AppenderAttachableImpl.
+	 */
+	private void removeLane(final FoundationRingBufferAsyncAppender lane) {
+		lanes.remove(lane);
+		lane.stopDispatcher();
+		lane.removeAppender(lane.getAttachedAppender());
+	}
+
+	private FoundationRingBufferAsyncAppender laneOf(final String name) {
+		if (name == null) {
+			return null;
+		}
+		for (FoundationRingBufferAsyncAppender lane : lanes) {
+			final Appender appender = lane.getAttachedAppender();
+			if (appender != null && name.equals(appender.getName())) {
+				return lane;
+			}
+		}
+		return null;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @param size
+	 *            the queue size of each appender. Applies to appenders added
+	 *            after it is set.
+	 */
+	public void setBufferSize(final int size) {
+		bufferSize = size;
+	}
+
+	public String getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	public void setWaitStrategy(final String waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	public boolean getLocationInfo() {
+		return locationInfo;
+	}
+
+	public void setLocationInfo(final boolean flag) {
+		locationInfo = flag;
+	}
+
+	public String getBlockingAppenders() {
+		final StringBuilder names = new StringBuilder();
+		for (String name : blockingAppenders) {
+			if (names.length() > 0) {
+				names.append(',');
+			}
+			names.append(name);
+		}
+		return names.toString();
+	}
+
+	/**
+	 * @param names
+	 *            comma separated names of the appenders that make the logging
+	 *            thread wait when their queue is full instead of dropping the
+	 *            event. Applies to appenders added after it is set.
+	 */
+	public void setBlockingAppenders(final String names) {
+		final Set<String> parsed = new HashSet<String>();
+		if (names != null) {
+			for (String name : names.split(",")) {
+				if (name.trim().length() > 0) {
+					parsed.add(name.trim());
+				}
+			}
+		}
+		blockingAppenders = parsed;
+	}
+
+}
@@ -23,6 +23,7 @@ import com.cisco.oss.foundation.logging.appender.FoundationFileRollingAppender;
 import com.cisco.oss.foundation.logging.appender.FoundationRollEventListener;
 import org.apache.log4j.*;
 import org.apache.log4j.appender.TimeAndSizeRollingAppender;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.HierarchyEventListener;
 
 import java.util.Enumeration;
@@ -35,7 +36,52 @@ import java.util.HashMap;
  */
 public class FoundationHierarchyEventListener implements HierarchyEventListener {
 
-	private static HashMap<String,AsyncAppender> asyncAppenders =  new HashMap<String,AsyncAppender>();
+	private static HashMap<String,Appender> asyncAppenders =  new HashMap<String,Appender>();
+
+	/**
+	 * which async appender wraps the async appender references: "list" (the
+	 * default) for {@link FoundationAsyncAppender}, "ringBuffer" for
+	 * {@link FoundationRingBufferAsyncAppender}, "render" for
+	 * {@link FoundationRenderingAsyncAppender} and "striped" for
+	 * {@link FoundationStripedAsyncAppender} - the last two file appenders
+	 * only, the others get the default with a warning. The buffer size, a
+	 * number of events, sizes the byte buffers of the last two at
+	 * {@link #ASYNC_RECORD_BYTES} an event.
+	 */
+	private static final String Foundation_ASYNC_TYPE = "FoundationLogger.asyncAppenderType";
+
+	private static final String ASYNC_TYPE_RING_BUFFER = "ringBuffer";
+
+	private static final String ASYNC_TYPE_RENDER = "render";
+
+	private static final String ASYNC_TYPE_STRIPED = "striped";
+
+	/**
+	 * the bytes of a record when the buffer size, a number of events, sizes
+	 * the byte buffers of the render and striped appenders.
+	 */
+	private static final long ASYNC_RECORD_BYTES = FoundationRenderingAsyncAppender.DEFAULT_SLOT_SIZE;
+
+	/**
+	 * the wait strategy of the ring buffer async appender dispatcher.
+	 */
+	private static final String Foundation_ASYNC_WAIT_STRATEGY = "FoundationLogger.asyncWaitStrategy";
+
+	/**
+	 * what the async appender does when its buffer is full: block, dropNewest,
+	 * dropOldest or shed. see {@link FoundationAsyncAppender}.
+	 */
+	private static final String Foundation_ASYNC_OVERFLOW_POLICY = "FoundationLogger.asyncOverflowPolicy";
+
+	private static final String Foundation_ASYNC_BLOCK_TIMEOUT = "FoundationLogger.asyncBlockTimeout";
+
+	private static final String Foundation_ASYNC_SHED_THRESHOLD = "FoundationLogger.asyncShedThreshold";
+
+	/**
+	 * the most bytes the events buffered by the async appender may retain,
+	 * e.g. 64MB.
+	 */
+	private static final String Foundation_ASYNC_MAX_BYTES = "FoundationLogger.asyncAppenderMaxBytes";
 
 	/**
 	 * the default for max files to be rolled.
@@ -54,6 +100,11 @@ public class FoundationHierarchyEventListener implements HierarchyEventListener
 	 */
 	public void addAppenderEvent(final Category cat, final Appender appender) {
 
+		// publish the new appender list so FoundationLogger.callAppenders can see it.
+		FoundationLogger.refreshAppenderSnapshot(cat);
+		// appender names may have changed - recompile the marker layouts routing.
+		FoundationLogger.refreshMarkerLayouts();
+
 		updateDefaultLayout(appender);
 
 		if (appender instanceof FoundationFileRollingAppender) {
@@ -110,7 +161,8 @@ public class FoundationHierarchyEventListener implements HierarchyEventListener
 			
 		//	timeSizeRollingAppender.setOriginalLayout();
 		}
-		if ( ! (appender instanceof org.apache.log4j.AsyncAppender))
+		// don't wrap an async appender in another one.
+		if ( ! (appender instanceof org.apache.log4j.AsyncAppender) && ! (appender instanceof DrainableAppender))
             initiateAsyncSupport(appender);
 
 	}
@@ -154,9 +206,7 @@ public class FoundationHierarchyEventListener implements HierarchyEventListener
 						if (appenderRefInAsync != null) {
 							asyncAppenders.remove(appender.getName());
 						}
-						AsyncAppender async=createAsyncAppender(); 
-						async.addAppender(appender);
-						async.activateOptions();
+						Appender async=createAsyncAppender(appender);
 						asyncAppenders.put(appender.getName(),async);
 						
 
@@ -187,17 +237,84 @@ public class FoundationHierarchyEventListener implements HierarchyEventListener
 		}
 	}
 
-	private AsyncAppender createAsyncAppender() {
-		AsyncAppender asyncAppender = new AsyncAppender();
-		String bufferSize = FoundationLogger.log4jConfigProps.getProperty(FoundationLoggerConstants.Foundation_ASYNC_BUFFER_SIZE.toString(), "2500");
+	Appender createAsyncAppender(final Appender appender) {
+		final String bufferSizeKey = FoundationLoggerConstants.Foundation_ASYNC_BUFFER_SIZE.toString();
+		final boolean bufferSizeSet = FoundationLogger.log4jConfigProps.containsKey(bufferSizeKey);
+		String bufferSize = FoundationLogger.log4jConfigProps.getProperty(bufferSizeKey, "2500");
+		int size;
 		try {
-			asyncAppender.setBufferSize(Integer.parseInt(bufferSize));
+			size = Integer.parseInt(bufferSize);
 		} catch (NumberFormatException e) {
-			asyncAppender.setBufferSize(2500);
+			size = 2500;
+		}
+
+		String asyncType = FoundationLogger.log4jConfigProps.getProperty(Foundation_ASYNC_TYPE, "");
+		final boolean fileRendering = ASYNC_TYPE_RENDER.equalsIgnoreCase(asyncType.trim()) || ASYNC_TYPE_STRIPED.equalsIgnoreCase(asyncType.trim());
+		if (fileRendering && !(appender instanceof FoundationFileRollingAppender)) {
+			LogLog.warn(Foundation_ASYNC_TYPE + "=" + asyncType.trim() + " applies to " + FoundationFileRollingAppender.class.getSimpleName() + "s only - appender [" + appender.getName() + "] gets the default async appender.");
+		}
+		if (ASYNC_TYPE_RING_BUFFER.equalsIgnoreCase(asyncType.trim())) {
+			FoundationRingBufferAsyncAppender asyncAppender = new FoundationRingBufferAsyncAppender();
+			asyncAppender.setBufferSize(size);
+			asyncAppender.setWaitStrategy(FoundationLogger.log4jConfigProps.getProperty(Foundation_ASYNC_WAIT_STRATEGY));
+			asyncAppender.addAppender(appender);
+			asyncAppender.activateOptions();
+			asyncAppender.getMetrics().register(appender.getName());
+			return asyncAppender;
+		}
+		if (ASYNC_TYPE_RENDER.equalsIgnoreCase(asyncType.trim()) && appender instanceof FoundationFileRollingAppender) {
+			FoundationRenderingAsyncAppender asyncAppender = new FoundationRenderingAsyncAppender();
+			if (bufferSizeSet) {
+				// room for that many records of a slot each.
+				asyncAppender.setBufferSize(Long.toString(size * ASYNC_RECORD_BYTES));
+			}
+			asyncAppender.setWaitStrategy(FoundationLogger.log4jConfigProps.getProperty(Foundation_ASYNC_WAIT_STRATEGY));
+			asyncAppender.addAppender(appender);
+			asyncAppender.activateOptions();
+			asyncAppender.getMetrics().register(appender.getName());
+			return asyncAppender;
+		}
+		if (ASYNC_TYPE_STRIPED.equalsIgnoreCase(asyncType.trim()) && appender instanceof FoundationFileRollingAppender) {
+			FoundationStripedAsyncAppender asyncAppender = new FoundationStripedAsyncAppender();
+			if (bufferSizeSet) {
+				// all the stripes together hold about that many records.
+				asyncAppender.setTotalBufferSize(Long.toString(size * ASYNC_RECORD_BYTES));
+			}
+			asyncAppender.addAppender(appender);
+			asyncAppender.activateOptions();
+			asyncAppender.getMetrics().register(appender.getName());
+			return asyncAppender;
+		}
+
+		FoundationAsyncAppender asyncAppender = new FoundationAsyncAppender();
+		asyncAppender.setBufferSize(size);
+
+		String overflowPolicy = FoundationLogger.log4jConfigProps.getProperty(Foundation_ASYNC_OVERFLOW_POLICY);
+		if (overflowPolicy != null) {
+			asyncAppender.setOverflowPolicy(overflowPolicy);
+		}
+		String blockTimeout = FoundationLogger.log4jConfigProps.getProperty(Foundation_ASYNC_BLOCK_TIMEOUT);
+		if (blockTimeout != null) {
+			try {
+				asyncAppender.setBlockTimeout(Long.parseLong(blockTimeout.trim()));
+			} catch (NumberFormatException e) {
+				System.err.println("[FoundationLogger] Can not format to long the property: " + Foundation_ASYNC_BLOCK_TIMEOUT + ". blocking with no timeout"); // NOPMD
+			}
+		}
+		String shedThreshold = FoundationLogger.log4jConfigProps.getProperty(Foundation_ASYNC_SHED_THRESHOLD);
+		if (shedThreshold != null) {
+			asyncAppender.setShedThreshold(shedThreshold);
+		}
+		String maxBytes = FoundationLogger.log4jConfigProps.getProperty(Foundation_ASYNC_MAX_BYTES);
+		if (maxBytes != null) {
+			asyncAppender.setMaxBytes(maxBytes);
 		}
 
 	//	updateDispatcher(asyncAppender);
 
+		asyncAppender.addAppender(appender);
+		asyncAppender.activateOptions();
+		asyncAppender.getMetrics().register(appender.getName());
 		return asyncAppender;
 	}
 
@@ -339,13 +456,13 @@ public class FoundationHierarchyEventListener implements HierarchyEventListener
 	}
 
 	/**
-	 * Not implemented by this listener.
+	 * Republish the appender snapshot of the category the appender was removed from.
 	 * 
 	 * @see org.apache.log4j.spi.HierarchyEventListener#removeAppenderEvent(org.apache.log4j.Category, org.apache.log4j.Appender)
 	 * 
 	 */
 	public void removeAppenderEvent(final Category cat, final Appender appender) {
-		// Empty method
+		FoundationLogger.refreshAppenderSnapshot(cat);
 	}
 
 }
@@ -24,22 +24,67 @@ import org.slf4j.Marker;
 @SuppressWarnings("serial")
 public class FoundationLof4jLoggingEvent extends LoggingEvent implements FoundationLoggingEvent {
 	
+	/**
+	 * the name of the appender currently handling an event on this thread. The
+	 * event itself is shared between appenders so the appender name is kept
+	 * as per-append context rather than on the event.
+	 */
+	private static final ThreadLocal<String> currentAppenderName = new ThreadLocal<String>();
+
 	private Marker marker = null;
 	private String appenderName;
+
+	/**
+	 * the message if it is parameterized. Kept here since getMessage() of an
+	 * event without a message - e.g. a deserialized one - asks for the
+	 * rendered message.
+	 */
+	private transient FoundationParameterizedMessage parameterizedMessage = null;
 	
 	public FoundationLof4jLoggingEvent(String fqnOfCategoryClass, Category logger, Priority level, Object message, Throwable throwable) {
 		super(fqnOfCategoryClass, logger, level, message, throwable);
+		this.parameterizedMessage = parameterized(message);
 	}
 	
 	public FoundationLof4jLoggingEvent(Marker marker, String fqnOfCategoryClass, Category logger, Priority level, Object message, Throwable throwable) {
 		super(fqnOfCategoryClass, logger, level, message, throwable);
 		this.marker = marker;
+		this.parameterizedMessage = parameterized(message);
 	}
 	
 	public FoundationLof4jLoggingEvent(FoundationLof4jLoggingEvent event) {
 		
 		super(event.fqnOfCategoryClass,event.getLogger(),event.getLevel(),event.getMessage(),event.getThrowableInformation()!=null? event.getThrowableInformation().getThrowable():null);
 		this.marker=event.marker;
+		this.parameterizedMessage = event.parameterizedMessage;
+	}
+
+	private static FoundationParameterizedMessage parameterized(Object message) {
+		return message instanceof FoundationParameterizedMessage ? (FoundationParameterizedMessage) message : null;
+	}
+
+    /**
+     * Parameterized messages are rendered by the message itself so the "{}"
+     * substitution only happens once, by whichever appender needs it first.
+     */
+    @Override
+	public String getRenderedMessage() {
+		final FoundationParameterizedMessage message = parameterizedMessage;
+		if (message != null) {
+			return message.getFormattedMessage();
+		}
+		return super.getRenderedMessage();
+	}
+
+    /**
+     * log4j serializes the message it rendered itself - render a
+     * parameterized message through log4j (its toString) before the event is
+     * written so its text goes with it.
+     * @return this event
+     */
+	private Object writeReplace() {
+		super.getRenderedMessage();
+		return this;
 	}
 
     /**
@@ -62,12 +107,38 @@ public class FoundationLof4jLoggingEvent extends LoggingEvent implements Foundat
 	}
 
     /**
-     * get the appender name. used by generated source for teh marker fomratter
+     * get the appender name. used by generated source for teh marker fomratter.
+     * The appender currently appending this event on the calling thread takes
+     * precedence over a name set explicitly on the event.
      * @return
      */
     @Override
 	public String getAppenderName() {
-		return appenderName;
+		final String name = currentAppenderName.get();
+		return name != null ? name : appenderName;
+	}
+
+    /**
+     * mark the start of an append by the given appender on the current thread.
+     * @param name the appender name
+     * @return the previous appender name, to be passed to {@link #endAppend(String)}
+     */
+	public static String beginAppend(String name) {
+		final String previous = currentAppenderName.get();
+		currentAppenderName.set(name);
+		return previous;
+	}
+
+    /**
+     * mark the end of an append started with {@link #beginAppend(String)}.
+     * @param previous the value returned by the matching beginAppend call
+     */
+	public static void endAppend(String previous) {
+		if (previous == null) {
+			currentAppenderName.remove();
+		} else {
+			currentAppenderName.set(previous);
+		}
 	}
 	
 
@@ -16,19 +16,42 @@
 
 package com.cisco.oss.foundation.logging;
 
+import org.apache.log4j.FoundationCategoryLinks;
 import org.apache.log4j.Hierarchy;
+import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.log4j.spi.LoggerFactory;
 
+import java.util.Enumeration;
+import java.util.Queue;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  *	This is the Foundation implementation for the log4j Hierarchy.
  *	It's function is to add the FoundationHierarchyEventListener - in order to act upon appender addition and to delegate creation of new Loggers to the <code>FoundationLogFactory<code>.
+ *	<p>
+ *	The loggers are kept in a concurrent map instead of the synchronized log4j hash table. Looking up an existing logger doesn't lock and
+ *	new loggers are linked to their parents and children with compare and set so many threads can create loggers at startup without
+ *	contending on the hierarchy.
  * @author Yair Ogen
  */
 public class FoundationLogHierarchy extends Hierarchy {
 	
 	private static LoggerFactory factory= new FoundationLogFactory();
+
+	/**
+	 * all the loggers of this hierarchy keyed by name.
+	 */
+	private final ConcurrentMap<String, Logger> loggers = new ConcurrentHashMap<String, Logger>();
+
+	/**
+	 * the log4j provision nodes - loggers waiting for an ancestor that wasn't created yet, keyed by the ancestor name.
+	 */
+	private final ConcurrentMap<String, Queue<Logger>> provisionNodes = new ConcurrentHashMap<String, Queue<Logger>>();
 	
 	/**
 	 * The deafult constructor. 
@@ -43,6 +66,113 @@ public class FoundationLogHierarchy extends Hierarchy {
 	 * calls getLogger with the Foundation factory.
 	 */
 	public Logger getLogger(final String name) {
-		return super.getLogger(name,factory);
+		return getLogger(name,factory);
+	}
+
+	/**
+	 * Lock free version of the log4j logger creation. An existing logger is returned without locking. A new logger is linked to its
+	 * closest existing ancestor before it is published and then:
+	 * <ul>
+	 * <li>it registers as a provision node with each missing ancestor,</li>
+	 * <li>it adopts the loggers registered under its own name,</li>
+	 * <li>it looks for its ancestors again.</li>
+	 * </ul>
+	 * A logger and an ancestor created at the same time always see each other in one of the last two steps.
+	 */
+	@Override
+	public Logger getLogger(final String name, final LoggerFactory loggerFactory) {
+		Logger logger = loggers.get(name);
+		if (logger != null) {
+			return logger;
+		}
+
+		final Logger newLogger = loggerFactory.makeNewLoggerInstance(name);
+		FoundationCategoryLinks.setHierarchy(newLogger, this);
+		FoundationCategoryLinks.setParent(newLogger, findParent(name));
+
+		logger = loggers.putIfAbsent(name, newLogger);
+		if (logger != null) {
+			return logger;
+		}
+
+		final Logger root = getRootLogger();
+
+		// same walk as log4j updateParents: "w.x.y.z" goes through "w.x.y", "w.x" and "w".
+		for (int i = name.lastIndexOf('.', name.length() - 1); i >= 0; i = name.lastIndexOf('.', i - 1)) {
+			final String ancestorName = name.substring(0, i);
+			if (loggers.containsKey(ancestorName)) {
+				break;
+			}
+			Queue<Logger> provisionNode = provisionNodes.get(ancestorName);
+			if (provisionNode == null) {
+				final Queue<Logger> created = new ConcurrentLinkedQueue<Logger>();
+				provisionNode = provisionNodes.putIfAbsent(ancestorName, created);
+				if (provisionNode == null) {
+					provisionNode = created;
+				}
+			}
+			provisionNode.add(newLogger);
+		}
+
+		// log4j updateChildren
+		boolean relinked = false;
+		final Queue<Logger> children = provisionNodes.remove(name);
+		if (children != null) {
+			for (Logger child : children) {
+				relinked |= FoundationCategoryLinks.linkToCloserParent(child, newLogger, root);
+			}
+		}
+
+		relinked |= FoundationCategoryLinks.linkToCloserParent(newLogger, findParent(name), root);
+		if (relinked) {
+			// a logger may have cached its enabled levels through its previous parent.
+			FoundationLogger.configurationChanged();
+		}
+
+		return newLogger;
+	}
+
+	/**
+	 * @return the closest existing ancestor of the given logger name, or the root logger.
+	 */
+	private Logger findParent(final String name) {
+		for (int i = name.lastIndexOf('.', name.length() - 1); i >= 0; i = name.lastIndexOf('.', i - 1)) {
+			final Logger ancestor = loggers.get(name.substring(0, i));
+			if (ancestor != null) {
+				return ancestor;
+			}
+		}
+		return getRootLogger();
+	}
+
+	@Override
+	public Logger exists(final String name) {
+		return loggers.get(name);
+	}
+
+	@Override
+	public Enumeration getCurrentLoggers() {
+		return new Vector<Logger>(loggers.values()).elements();
+	}
+
+	@Override
+	public void clear() {
+		loggers.clear();
+		provisionNodes.clear();
+	}
+
+	/**
+	 * the threshold is part of the cached enabled levels of the FoundationLoggers.
+	 */
+	@Override
+	public void setThreshold(final Level level) {
+		super.setThreshold(level);
+		FoundationLogger.configurationChanged();
+	}
+
+	@Override
+	public void resetConfiguration() {
+		super.resetConfiguration();
+		FoundationLogger.configurationChanged();
 	}
 }
@@ -25,9 +25,11 @@ import com.cisco.oss.foundation.logging.structured.AbstractFoundationLoggingMark
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.*;
+import org.apache.log4j.config.PropertySetter;
 import org.apache.log4j.helpers.Loader;
 import org.apache.log4j.helpers.OptionConverter;
 import org.apache.log4j.nt.NTEventLogAppender;
+import org.apache.log4j.spi.AppenderAttachable;
 import org.apache.log4j.spi.LoggerRepository;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.RepositorySelector;
@@ -39,8 +41,6 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.DateTimeFormatterBuilder;
 import org.slf4j.Marker;
-import org.slf4j.helpers.FormattingTuple;
-import org.slf4j.helpers.MessageFormatter;
 import org.slf4j.spi.LocationAwareLogger;
 
 import java.io.FileNotFoundException;
@@ -50,6 +50,11 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
@@ -74,6 +79,31 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	private static final int FILE_RELOAD_DELAY = 10000;
 
+	/**
+	 * the property key for the comma separated list of turbo filter names.
+	 */
+	private static final String Foundation_TURBO_FILTERS = "FoundationLogger.turboFilters";
+
+	/**
+	 * the property prefix of a turbo filter. The class name is set on the
+	 * prefix + filter name and the filter properties on prefix + filter name + ".property".
+	 */
+	private static final String Foundation_TURBO_FILTER_PREFIX = "FoundationLogger.turboFilter.";
+
+	/**
+	 * prefix of the per logger rate limits:
+	 * FoundationLogger.rateLimit.&lt;logger name&gt;=&lt;permits&gt;/&lt;window millis&gt;. The limit applies
+	 * to the logger and its descendants, like a level does.
+	 */
+	private static final String Foundation_RATE_LIMIT_PREFIX = "FoundationLogger.rateLimit.";
+
+	/**
+	 * prefix of the async logger mode:
+	 * FoundationLogger.asyncLogger.&lt;logger name&gt;=true|false. Applies to the logger and its
+	 * descendants - the closest configured ancestor wins.
+	 */
+	private static final String Foundation_ASYNC_LOGGER_PREFIX = "FoundationLogger.asyncLogger.";
+
 	static Properties log4jConfigProps = null; // NOPMD
 
 	private static final String DEFAULT_CONFIGURATION_FILE = "log4j.properties"; // NOPMD
@@ -84,8 +114,74 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	private static final String FQCN = FoundationLogger.class.getName();
 	private static final String PATTERN_KEY = "messagePattern";
 
+	/**
+	 * marker name to appender name to the layout the appender uses for events
+	 * with that marker. Call {@link #refreshMarkerLayouts()} after changing
+	 * it - the appenders only see the compiled copy.
+	 */
 	public static Map<String, Map<String, Layout>> markerAppendersMap = new HashMap<String, Map<String, Layout>>();
 
+	private static volatile MarkerLayoutRoutes markerLayoutRoutes = MarkerLayoutRoutes.EMPTY;
+
+	private static final Appender[] NO_APPENDERS = new Appender[0];
+
+	/**
+	 * Appender snapshots for categories that are not FoundationLoggers - e.g. the root logger.
+	 */
+	private static final ConcurrentMap<Category, Appender[]> foreignAppenderSnapshots = new ConcurrentHashMap<Category, Appender[]>();
+
+	/**
+	 * Copy on write snapshot of the appenders attached to this logger. null
+	 * means the snapshot was not built yet.
+	 */
+	private volatile Appender[] appenderSnapshot = null;
+
+	/**
+	 * The standard levels, indexed by their bit in the enabled levels mask.
+	 */
+	private static final Level[] MASK_LEVELS = { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR, Level.FATAL };
+
+	private static final FoundationTurboFilter[] NO_TURBO_FILTERS = new FoundationTurboFilter[0];
+
+	/**
+	 * The turbo filters, in configuration order. Replaced as a whole on
+	 * (re)configuration.
+	 */
+	private static volatile FoundationTurboFilter[] turboFilters = NO_TURBO_FILTERS;
+
+	/**
+	 * The configured rate limits keyed by logger name. Replaced as a whole on
+	 * (re)configuration.
+	 */
+	private static volatile Map<String, FoundationRateLimiter.Limit> rateLimits = Collections.emptyMap();
+
+	/**
+	 * The configured async logger modes keyed by logger name. Replaced as a
+	 * whole on (re)configuration.
+	 */
+	private static volatile Map<String, Boolean> asyncLoggers = Collections.emptyMap();
+
+	/**
+	 * The call site buckets of this logger. Kept as long as the resolved limit
+	 * doesn't change so unrelated configuration changes don't reset them.
+	 */
+	private volatile FoundationRateLimiter rateLimiter = null;
+
+	private static final AtomicReferenceFieldUpdater<FoundationLogger, FoundationRateLimiter> RATE_LIMITER_UPDATER = AtomicReferenceFieldUpdater.newUpdater(FoundationLogger.class, FoundationRateLimiter.class, "rateLimiter");
+
+	/**
+	 * Global configuration epoch. Bumped on every change that may change the
+	 * effective level of a logger: setLevel, hierarchy threshold and
+	 * configuration reset. The root logger level can't be intercepted (it is
+	 * final in RootLogger) so it is compared as part of the cached state.
+	 */
+	private static final AtomicInteger configurationEpoch = new AtomicInteger();
+
+	/**
+	 * Cached enabled levels of this logger. null means not computed yet.
+	 */
+	private volatile EnabledLevels enabledLevels = null;
+
 	/**
 	 * Boolean indicating whether or not NTEventLogAppender is supported.
 	 */
@@ -142,6 +238,14 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 		// start watching for property changes
 		setUpPropFileReloading(logger, logPropFile, log4jConfigProps);
 
+		setupTurboFilters(log4jConfigProps);
+		setupRateLimits(log4jConfigProps);
+		setupAsyncLoggers(log4jConfigProps);
+		refreshMarkerLayouts();
+
+		// drain the async appenders when the JVM is asked to stop
+		FoundationShutdownHook.register(log4jConfigProps);
+
 		// add syslog appender or windows event viewer appender
 //		setupOSSystemLog(logger, log4jConfigProps);
 
@@ -195,9 +299,9 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
                     Appender tempAppender = (Appender)allAppenders.nextElement();
 
-                    if(tempAppender instanceof AsyncAppender){
+                    if(tempAppender instanceof AppenderAttachable){
 
-                        AsyncAppender asyncAppender = (AsyncAppender)tempAppender;
+                        AppenderAttachable asyncAppender = (AppenderAttachable)tempAppender;
                         Enumeration asyncAppenderAllAppenders = asyncAppender.getAllAppenders();
 
                         while (asyncAppenderAllAppenders.hasMoreElements()){
@@ -341,6 +445,99 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 //
 //	}
 
+	/**
+	 * Build the turbo filter chain from the configuration. e.g.:
+	 * <pre>
+	 * FoundationLogger.turboFilters=flowDebug
+	 * FoundationLogger.turboFilter.flowDebug=com.cisco.oss.foundation.logging.FlowContextTurboFilter
+	 * FoundationLogger.turboFilter.flowDebug.flowContexts=abc123
+	 * </pre>
+	 */
+	static void setupTurboFilters(final Properties properties) {
+
+		final List<FoundationTurboFilter> filters = new ArrayList<FoundationTurboFilter>();
+
+		final String filterNames = properties.getProperty(Foundation_TURBO_FILTERS);
+		if (StringUtils.isNotBlank(filterNames)) {
+			for (String filterName : filterNames.split(",")) {
+				filterName = filterName.trim();
+				final String prefix = Foundation_TURBO_FILTER_PREFIX + filterName;
+				final String className = properties.getProperty(prefix);
+				final FoundationTurboFilter filter = (FoundationTurboFilter) OptionConverter.instantiateByClassName(StringUtils.trim(className), FoundationTurboFilter.class, null);
+				if (filter == null) {
+					System.err.println("[FoundationLogger] Could not create turbo filter: " + filterName + ". class name is: " + className); // NOPMD
+					continue;
+				}
+				filter.setName(filterName);
+				// sets the filter properties and calls activateOptions
+				PropertySetter.setProperties(filter, properties, prefix + ".");
+				filters.add(filter);
+			}
+		}
+
+		setTurboFilters(filters);
+	}
+
+	/**
+	 * replace the turbo filter chain.
+	 */
+	static void setTurboFilters(final List<FoundationTurboFilter> filters) {
+		turboFilters = filters.isEmpty() ? NO_TURBO_FILTERS : filters.toArray(new FoundationTurboFilter[filters.size()]);
+	}
+
+	/**
+	 * read the per logger rate limits. e.g. at most 100 messages per call site
+	 * a minute for all the loggers under com.cisco.gateway:
+	 * <pre>
+	 * FoundationLogger.rateLimit.com.cisco.gateway=100/60000
+	 * </pre>
+	 */
+	static void setupRateLimits(final Properties properties) {
+
+		final Map<String, FoundationRateLimiter.Limit> limits = new HashMap<String, FoundationRateLimiter.Limit>();
+
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(Foundation_RATE_LIMIT_PREFIX)) {
+				final String loggerName = key.substring(Foundation_RATE_LIMIT_PREFIX.length());
+				final String value = properties.getProperty(key);
+				try {
+					limits.put(loggerName, FoundationRateLimiter.Limit.parse(value));
+				} catch (IllegalArgumentException e) {
+					System.err.println("[FoundationLogger] Could not parse rate limit of: " + loggerName + ". value is: " + value + ". expected: <permits>/<window millis>"); // NOPMD
+				}
+			}
+		}
+
+		rateLimits = limits.isEmpty() ? Collections.<String, FoundationRateLimiter.Limit> emptyMap() : limits;
+		configurationChanged();
+	}
+
+	/**
+	 * read the per logger async mode. e.g. hand the events of all the loggers
+	 * under com.cisco.gateway, except the audit logger, to the async logger
+	 * thread:
+	 * <pre>
+	 * FoundationLogger.asyncLogger.com.cisco.gateway=true
+	 * FoundationLogger.asyncLogger.com.cisco.gateway.audit=false
+	 * </pre>
+	 * See {@link FoundationAsyncLoggers} for the ring buffer settings.
+	 */
+	static void setupAsyncLoggers(final Properties properties) {
+
+		final Map<String, Boolean> modes = new HashMap<String, Boolean>();
+
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(Foundation_ASYNC_LOGGER_PREFIX)) {
+				final String loggerName = key.substring(Foundation_ASYNC_LOGGER_PREFIX.length());
+				modes.put(loggerName, Boolean.valueOf(properties.getProperty(key).trim()));
+			}
+		}
+
+		FoundationAsyncLoggers.configure(properties);
+		asyncLoggers = modes.isEmpty() ? Collections.<String, Boolean> emptyMap() : modes;
+		configurationChanged();
+	}
+
 	/**
      * The sniffing Loggers are some special Loggers, whose level will be set to TRACE forcedly.
 	 * @param logger
@@ -489,8 +686,8 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	public void trace(String format, Object arg) {
 		if (isTraceEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(FQCN, Level.TRACE, ft.getMessage(), ft.getThrowable());
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(FQCN, Level.TRACE, message, message.getThrowable());
 		}
 	}
 
@@ -512,8 +709,8 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	public void trace(String format, Object arg1, Object arg2) {
 		if (isTraceEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(FQCN, Level.TRACE, ft.getMessage(), ft.getThrowable());
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(FQCN, Level.TRACE, message, message.getThrowable());
 		}
 	}
 
@@ -533,8 +730,8 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	public void trace(String format, Object[] argArray) {
 		if (isTraceEnabled()) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(FQCN, Level.TRACE, ft.getMessage(), ft.getThrowable());
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(FQCN, Level.TRACE, message, message.getThrowable());
 		}
 	}
 
@@ -550,15 +747,27 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 		log(FQCN, Level.TRACE, msg, t);
 	}
 
-	// /**
-	// * Is this logger instance enabled for the DEBUG level?
-	// *
-	// * @return True if this Logger is enabled for level DEBUG, false
-	// otherwise.
-	// */
-	// public boolean isDebugEnabled() {
-	// return super.isDebugEnabled();
-	// }
+	/**
+	 * Is this logger instance enabled for the TRACE level?
+	 * 
+	 * @return True if this Logger is enabled for level TRACE, false
+	 *         otherwise.
+	 */
+	@Override
+	public boolean isTraceEnabled() {
+		return isEnabled(Level.TRACE, null);
+	}
+
+	/**
+	 * Is this logger instance enabled for the DEBUG level?
+	 * 
+	 * @return True if this Logger is enabled for level DEBUG, false
+	 *         otherwise.
+	 */
+	@Override
+	public boolean isDebugEnabled() {
+		return isEnabled(Level.DEBUG, null);
+	}
 
 	/**
 	 * Log a message object at level DEBUG.
@@ -586,8 +795,8 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	public void debug(String format, Object arg) {
 		if (isDebugEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(FQCN, Level.DEBUG, ft.getMessage(), ft.getThrowable());
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(FQCN, Level.DEBUG, message, message.getThrowable());
 		}
 	}
 
@@ -609,8 +818,8 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	public void debug(String format, Object arg1, Object arg2) {
 		if (isDebugEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(FQCN, Level.DEBUG, ft.getMessage(), ft.getThrowable());
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(FQCN, Level.DEBUG, message, message.getThrowable());
 		}
 	}
 
@@ -630,8 +839,8 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	public void debug(String format, Object[] argArray) {
 		if (isDebugEnabled()) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(FQCN, Level.DEBUG, ft.getMessage(), ft.getThrowable());
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(FQCN, Level.DEBUG, message, message.getThrowable());
 		}
 	}
 
@@ -647,15 +856,16 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 		log(FQCN, Level.DEBUG, msg, t);
 	}
 
-	// /**
-	// * Is this logger instance enabled for the INFO level?
-	// *
-	// * @return True if this Logger is enabled for the INFO level, false
-	// otherwise.
-	// */
-	// public boolean isInfoEnabled() {
-	// return super.isInfoEnabled();
-	// }
+	/**
+	 * Is this logger instance enabled for the INFO level?
+	 * 
+	 * @return True if this Logger is enabled for the INFO level, false
+	 *         otherwise.
+	 */
+	@Override
+	public boolean isInfoEnabled() {
+		return isEnabled(Level.INFO, null);
+	}
 
 	/**
 	 * Log a message object at the INFO level.
@@ -683,8 +893,8 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	public void info(String format, Object arg) {
 		if (isInfoEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(FQCN, Level.INFO, ft.getMessage(), ft.getThrowable());
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(FQCN, Level.INFO, message, message.getThrowable());
 		}
 	}
 
@@ -706,8 +916,8 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	public void info(String format, Object arg1, Object arg2) {
 		if (isInfoEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(FQCN, Level.INFO, ft.getMessage(), ft.getThrowable());
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(FQCN, Level.INFO, message, message.getThrowable());
 		}
 	}
 
@@ -727,8 +937,8 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 */
 	public void info(String format, Object[] argArray) {
 		if (isInfoEnabled()) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(FQCN, Level.INFO, ft.getMessage(), ft.getThrowable());
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(FQCN, Level.INFO, message, message.getThrowable());
 		}
 	}
 
@@ -752,7 +962,7 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 *         otherwise.
 	 */
 	public boolean isWarnEnabled() {
-		return super.isEnabledFor(Level.WARN);
+		return isEnabled(Level.WARN, null);
 	}
 
 	/**
@@ -780,9 +990,9 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 *            the argument
 	 */
 	public void warn(String format, Object arg) {
-		if (isEnabledFor(Level.WARN)) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(FQCN, Level.WARN, ft.getMessage(), ft.getThrowable());
+		if (isWarnEnabled()) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(FQCN, Level.WARN, message, message.getThrowable());
 		}
 	}
 
@@ -803,9 +1013,9 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 *            the second argument
 	 */
 	public void warn(String format, Object arg1, Object arg2) {
-		if (isEnabledFor(Level.WARN)) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(FQCN, Level.WARN, ft.getMessage(), ft.getThrowable());
+		if (isWarnEnabled()) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(FQCN, Level.WARN, message, message.getThrowable());
 		}
 	}
 
@@ -824,9 +1034,9 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 *            an array of arguments
 	 */
 	public void warn(String format, Object[] argArray) {
-		if (isEnabledFor(Level.WARN)) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(FQCN, Level.WARN, ft.getMessage(), ft.getThrowable());
+		if (isWarnEnabled()) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(FQCN, Level.WARN, message, message.getThrowable());
 		}
 	}
 
@@ -849,7 +1059,7 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 * @return True if this Logger is enabled for level ERROR, false otherwise.
 	 */
 	public boolean isErrorEnabled() {
-		return super.isEnabledFor(Level.ERROR);
+		return isEnabled(Level.ERROR, null);
 	}
 
 	/**
@@ -877,9 +1087,9 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 *            the argument
 	 */
 	public void error(String format, Object arg) {
-		if (isEnabledFor(Level.ERROR)) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(FQCN, Level.ERROR, ft.getMessage(), ft.getThrowable());
+		if (isErrorEnabled()) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(FQCN, Level.ERROR, message, message.getThrowable());
 		}
 	}
 
@@ -900,9 +1110,9 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 *            the second argument
 	 */
 	public void error(String format, Object arg1, Object arg2) {
-		if (isEnabledFor(Level.ERROR)) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(FQCN, Level.ERROR, ft.getMessage(), ft.getThrowable());
+		if (isErrorEnabled()) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(FQCN, Level.ERROR, message, message.getThrowable());
 		}
 	}
 
@@ -921,9 +1131,9 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 	 *            an array of arguments
 	 */
 	public void error(String format, Object[] argArray) {
-		if (isEnabledFor(Level.ERROR)) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(FQCN, Level.ERROR, ft.getMessage(), ft.getThrowable());
+		if (isErrorEnabled()) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(FQCN, Level.ERROR, message, message.getThrowable());
 		}
 	}
 
@@ -942,7 +1152,7 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public boolean isTraceEnabled(Marker marker) {
-		return isTraceEnabled();
+		return isEnabled(Level.TRACE, marker);
 	}
 
 	@Override
@@ -953,26 +1163,26 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public void trace(Marker marker, String format, Object arg) {
-		if (isTraceEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(marker, FQCN, Level.TRACE, ft.getMessage(), ft.getThrowable());
+		if (isTraceEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(marker, FQCN, Level.TRACE, message, message.getThrowable());
 		}
 	}
 
 	@Override
 	public void trace(Marker marker, String format, Object arg1, Object arg2) {
-		if (isTraceEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(marker, FQCN, Level.TRACE, ft.getMessage(), ft.getThrowable());
+		if (isTraceEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(marker, FQCN, Level.TRACE, message, message.getThrowable());
 		}
 
 	}
 
 	@Override
 	public void trace(Marker marker, String format, Object[] argArray) {
-		if (isTraceEnabled()) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(marker, FQCN, Level.TRACE, ft.getMessage(), ft.getThrowable());
+		if (isTraceEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(marker, FQCN, Level.TRACE, message, message.getThrowable());
 		}
 
 	}
@@ -985,7 +1195,7 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public boolean isDebugEnabled(Marker marker) {
-		return isDebugEnabled();
+		return isEnabled(Level.DEBUG, marker);
 	}
 
 	@Override
@@ -996,27 +1206,27 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public void debug(Marker marker, String format, Object arg) {
-		if (isDebugEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(marker, FQCN, Level.DEBUG, ft.getMessage(), ft.getThrowable());
+		if (isDebugEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(marker, FQCN, Level.DEBUG, message, message.getThrowable());
 		}
 
 	}
 
 	@Override
 	public void debug(Marker marker, String format, Object arg1, Object arg2) {
-		if (isDebugEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(marker, FQCN, Level.DEBUG, ft.getMessage(), ft.getThrowable());
+		if (isDebugEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(marker, FQCN, Level.DEBUG, message, message.getThrowable());
 		}
 
 	}
 
 	@Override
 	public void debug(Marker marker, String format, Object[] argArray) {
-		if (isDebugEnabled()) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(marker, FQCN, Level.DEBUG, ft.getMessage(), ft.getThrowable());
+		if (isDebugEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(marker, FQCN, Level.DEBUG, message, message.getThrowable());
 		}
 
 	}
@@ -1029,7 +1239,7 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public boolean isInfoEnabled(Marker marker) {
-		return isInfoEnabled();
+		return isEnabled(Level.INFO, marker);
 	}
 
 	@Override
@@ -1040,27 +1250,27 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public void info(Marker marker, String format, Object arg) {
-		if (isInfoEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(marker, FQCN, Level.INFO, ft.getMessage(), ft.getThrowable());
+		if (isInfoEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(marker, FQCN, Level.INFO, message, message.getThrowable());
 		}
 
 	}
 
 	@Override
 	public void info(Marker marker, String format, Object arg1, Object arg2) {
-		if (isInfoEnabled()) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(marker, FQCN, Level.INFO, ft.getMessage(), ft.getThrowable());
+		if (isInfoEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(marker, FQCN, Level.INFO, message, message.getThrowable());
 		}
 
 	}
 
 	@Override
 	public void info(Marker marker, String format, Object[] argArray) {
-		if (isInfoEnabled()) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(marker, FQCN, Level.INFO, ft.getMessage(), ft.getThrowable());
+		if (isInfoEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(marker, FQCN, Level.INFO, message, message.getThrowable());
 		}
 
 	}
@@ -1073,7 +1283,7 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public boolean isWarnEnabled(Marker marker) {
-		return isWarnEnabled();
+		return isEnabled(Level.WARN, marker);
 	}
 
 	@Override
@@ -1084,27 +1294,27 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public void warn(Marker marker, String format, Object arg) {
-		if (isEnabledFor(Level.WARN)) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(marker, FQCN, Level.WARN, ft.getMessage(), ft.getThrowable());
+		if (isWarnEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(marker, FQCN, Level.WARN, message, message.getThrowable());
 		}
 
 	}
 
 	@Override
 	public void warn(Marker marker, String format, Object arg1, Object arg2) {
-		if (isEnabledFor(Level.WARN)) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(marker, FQCN, Level.WARN, ft.getMessage(), ft.getThrowable());
+		if (isWarnEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(marker, FQCN, Level.WARN, message, message.getThrowable());
 		}
 
 	}
 
 	@Override
 	public void warn(Marker marker, String format, Object[] argArray) {
-		if (isEnabledFor(Level.WARN)) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(marker, FQCN, Level.WARN, ft.getMessage(), ft.getThrowable());
+		if (isWarnEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(marker, FQCN, Level.WARN, message, message.getThrowable());
 		}
 
 	}
@@ -1117,7 +1327,7 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public boolean isErrorEnabled(Marker marker) {
-		return isErrorEnabled();
+		return isEnabled(Level.ERROR, marker);
 	}
 
 	@Override
@@ -1128,27 +1338,27 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	@Override
 	public void error(Marker marker, String format, Object arg) {
-		if (isEnabledFor(Level.ERROR)) {
-			FormattingTuple ft = MessageFormatter.format(format, arg);
-			log(marker, FQCN, Level.ERROR, ft.getMessage(), ft.getThrowable());
+		if (isErrorEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg);
+			forcedLog(marker, FQCN, Level.ERROR, message, message.getThrowable());
 		}
 
 	}
 
 	@Override
 	public void error(Marker marker, String format, Object arg1, Object arg2) {
-		if (isEnabledFor(Level.ERROR)) {
-			FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-			log(marker, FQCN, Level.ERROR, ft.getMessage(), ft.getThrowable());
+		if (isErrorEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, arg1, arg2);
+			forcedLog(marker, FQCN, Level.ERROR, message, message.getThrowable());
 		}
 
 	}
 
 	@Override
 	public void error(Marker marker, String format, Object[] argArray) {
-		if (isEnabledFor(Level.ERROR)) {
-			FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-			log(marker, FQCN, Level.ERROR, ft.getMessage(), ft.getThrowable());
+		if (isErrorEnabled(marker)) {
+			FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, argArray);
+			forcedLog(marker, FQCN, Level.ERROR, message, message.getThrowable());
 		}
 
 	}
@@ -1159,9 +1369,28 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 	}
 
+	/**
+	 * SLF4J LocationAwareLogger entry point, used by the SLF4J bridges. The
+	 * level is checked before anything is formatted and the marker and caller
+	 * fqcn are kept so bridged calls get the same routing as direct callers.
+	 */
 	@Override
 	public void log(Marker marker, String fqcn, int level, String msg, Object[] argArray, Throwable t) {
-		Level log4jLevel;
+		final Level log4jLevel = toLog4jLevel(level);
+		if (!isEnabled(log4jLevel, marker)) {
+			return;
+		}
+
+		if (argArray != null && argArray.length > 0) {
+			final FoundationParameterizedMessage message = new FoundationParameterizedMessage(msg, argArray);
+			forcedLog(marker, fqcn, log4jLevel, message, t != null ? t : message.getThrowable());
+		} else {
+			forcedLog(marker, fqcn, log4jLevel, msg, t);
+		}
+	}
+
+	private static Level toLog4jLevel(final int level) {
+		final Level log4jLevel;
 		switch (level) {
 			case LocationAwareLogger.TRACE_INT:
 				log4jLevel = Level.TRACE;
@@ -1181,26 +1410,683 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 			default:
 				throw new IllegalStateException("Level number " + level + " is not recognized.");
 		}
-		log(FQCN, log4jLevel, msg, t);
+		return log4jLevel;
 	}
 
 	public void log(Marker marker, String callerFQCN, Priority level, Object message, Throwable t) {
-		if (repository.isDisabled(level.toInt())) {
-			return;
-		}
-		if (level.isGreaterOrEqual(this.getEffectiveLevel())) {
+		if (isEnabled(level, marker)) {
 			forcedLog(marker, callerFQCN, level, message, t);
 		}
 	}
 
+	@Override
+	public void log(String callerFQCN, Priority level, Object message, Throwable t) {
+		if (isEnabled(level, null)) {
+			forcedLog(callerFQCN, level, message, t);
+		}
+	}
+
+	@Override
+	public boolean isEnabledFor(Priority level) {
+		return isEnabled(level, null);
+	}
+
+	@Override
+	public void log(Priority level, Object message, Throwable t) {
+		log(FQCN, level, message, t);
+	}
+
+	@Override
+	public void log(Priority level, Object message) {
+		log(FQCN, level, message, null);
+	}
+
+	// the log4j Logger API - routed through log(...) so the turbo filters
+	// and the cached enabled levels apply to log4j callers as well.
+
+	@Override
+	public void trace(Object message) {
+		log(FQCN, Level.TRACE, message, null);
+	}
+
+	@Override
+	public void trace(Object message, Throwable t) {
+		log(FQCN, Level.TRACE, message, t);
+	}
+
+	@Override
+	public void debug(Object message) {
+		log(FQCN, Level.DEBUG, message, null);
+	}
+
+	@Override
+	public void debug(Object message, Throwable t) {
+		log(FQCN, Level.DEBUG, message, t);
+	}
+
+	@Override
+	public void info(Object message) {
+		log(FQCN, Level.INFO, message, null);
+	}
+
+	@Override
+	public void info(Object message, Throwable t) {
+		log(FQCN, Level.INFO, message, t);
+	}
+
+	@Override
+	public void warn(Object message) {
+		log(FQCN, Level.WARN, message, null);
+	}
+
+	@Override
+	public void warn(Object message, Throwable t) {
+		log(FQCN, Level.WARN, message, t);
+	}
+
+	@Override
+	public void error(Object message) {
+		log(FQCN, Level.ERROR, message, null);
+	}
+
+	@Override
+	public void error(Object message, Throwable t) {
+		log(FQCN, Level.ERROR, message, t);
+	}
+
+	@Override
+	public void fatal(Object message) {
+		log(FQCN, Level.FATAL, message, null);
+	}
+
+	@Override
+	public void fatal(Object message, Throwable t) {
+		log(FQCN, Level.FATAL, message, t);
+	}
+
+	// lazy API - nothing is captured, evaluated or boxed before the level
+	// (and the turbo filters) accepted the event.
+
+	/**
+	 * Log the message returned by the supplier at level TRACE. The supplier is
+	 * only called if the level is enabled.
+	 */
+	public void trace(Supplier<?> messageSupplier) {
+		logSupplied(Level.TRACE, messageSupplier, null);
+	}
+
+	/**
+	 * Log the message returned by the supplier and an exception at level
+	 * TRACE. The supplier is only called if the level is enabled.
+	 */
+	public void trace(Supplier<?> messageSupplier, Throwable t) {
+		logSupplied(Level.TRACE, messageSupplier, t);
+	}
+
+	/**
+	 * Log a message at level TRACE according to the specified format. The
+	 * arguments suppliers are only called if the level is enabled.
+	 */
+	public void trace(String format, Supplier<?>... argSuppliers) {
+		logSupplied(Level.TRACE, format, argSuppliers);
+	}
+
+	/**
+	 * Log a message at level TRACE according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void trace(String format, int arg) {
+		if (isEnabled(Level.TRACE, null)) {
+			forcedLog(FQCN, Level.TRACE, new FoundationParameterizedMessage(format, Integer.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level TRACE according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void trace(String format, long arg) {
+		if (isEnabled(Level.TRACE, null)) {
+			forcedLog(FQCN, Level.TRACE, new FoundationParameterizedMessage(format, Long.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level TRACE according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void trace(String format, double arg) {
+		if (isEnabled(Level.TRACE, null)) {
+			forcedLog(FQCN, Level.TRACE, new FoundationParameterizedMessage(format, Double.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log the message returned by the supplier at level DEBUG. The supplier is
+	 * only called if the level is enabled.
+	 */
+	public void debug(Supplier<?> messageSupplier) {
+		logSupplied(Level.DEBUG, messageSupplier, null);
+	}
+
+	/**
+	 * Log the message returned by the supplier and an exception at level
+	 * DEBUG. The supplier is only called if the level is enabled.
+	 */
+	public void debug(Supplier<?> messageSupplier, Throwable t) {
+		logSupplied(Level.DEBUG, messageSupplier, t);
+	}
+
+	/**
+	 * Log a message at level DEBUG according to the specified format. The
+	 * arguments suppliers are only called if the level is enabled.
+	 */
+	public void debug(String format, Supplier<?>... argSuppliers) {
+		logSupplied(Level.DEBUG, format, argSuppliers);
+	}
+
+	/**
+	 * Log a message at level DEBUG according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void debug(String format, int arg) {
+		if (isEnabled(Level.DEBUG, null)) {
+			forcedLog(FQCN, Level.DEBUG, new FoundationParameterizedMessage(format, Integer.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level DEBUG according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void debug(String format, long arg) {
+		if (isEnabled(Level.DEBUG, null)) {
+			forcedLog(FQCN, Level.DEBUG, new FoundationParameterizedMessage(format, Long.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level DEBUG according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void debug(String format, double arg) {
+		if (isEnabled(Level.DEBUG, null)) {
+			forcedLog(FQCN, Level.DEBUG, new FoundationParameterizedMessage(format, Double.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log the message returned by the supplier at level INFO. The supplier is
+	 * only called if the level is enabled.
+	 */
+	public void info(Supplier<?> messageSupplier) {
+		logSupplied(Level.INFO, messageSupplier, null);
+	}
+
+	/**
+	 * Log the message returned by the supplier and an exception at level
+	 * INFO. The supplier is only called if the level is enabled.
+	 */
+	public void info(Supplier<?> messageSupplier, Throwable t) {
+		logSupplied(Level.INFO, messageSupplier, t);
+	}
+
+	/**
+	 * Log a message at level INFO according to the specified format. The
+	 * arguments suppliers are only called if the level is enabled.
+	 */
+	public void info(String format, Supplier<?>... argSuppliers) {
+		logSupplied(Level.INFO, format, argSuppliers);
+	}
+
+	/**
+	 * Log a message at level INFO according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void info(String format, int arg) {
+		if (isEnabled(Level.INFO, null)) {
+			forcedLog(FQCN, Level.INFO, new FoundationParameterizedMessage(format, Integer.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level INFO according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void info(String format, long arg) {
+		if (isEnabled(Level.INFO, null)) {
+			forcedLog(FQCN, Level.INFO, new FoundationParameterizedMessage(format, Long.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level INFO according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void info(String format, double arg) {
+		if (isEnabled(Level.INFO, null)) {
+			forcedLog(FQCN, Level.INFO, new FoundationParameterizedMessage(format, Double.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log the message returned by the supplier at level WARN. The supplier is
+	 * only called if the level is enabled.
+	 */
+	public void warn(Supplier<?> messageSupplier) {
+		logSupplied(Level.WARN, messageSupplier, null);
+	}
+
+	/**
+	 * Log the message returned by the supplier and an exception at level
+	 * WARN. The supplier is only called if the level is enabled.
+	 */
+	public void warn(Supplier<?> messageSupplier, Throwable t) {
+		logSupplied(Level.WARN, messageSupplier, t);
+	}
+
+	/**
+	 * Log a message at level WARN according to the specified format. The
+	 * arguments suppliers are only called if the level is enabled.
+	 */
+	public void warn(String format, Supplier<?>... argSuppliers) {
+		logSupplied(Level.WARN, format, argSuppliers);
+	}
+
+	/**
+	 * Log a message at level WARN according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void warn(String format, int arg) {
+		if (isEnabled(Level.WARN, null)) {
+			forcedLog(FQCN, Level.WARN, new FoundationParameterizedMessage(format, Integer.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level WARN according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void warn(String format, long arg) {
+		if (isEnabled(Level.WARN, null)) {
+			forcedLog(FQCN, Level.WARN, new FoundationParameterizedMessage(format, Long.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level WARN according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void warn(String format, double arg) {
+		if (isEnabled(Level.WARN, null)) {
+			forcedLog(FQCN, Level.WARN, new FoundationParameterizedMessage(format, Double.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log the message returned by the supplier at level ERROR. The supplier is
+	 * only called if the level is enabled.
+	 */
+	public void error(Supplier<?> messageSupplier) {
+		logSupplied(Level.ERROR, messageSupplier, null);
+	}
+
+	/**
+	 * Log the message returned by the supplier and an exception at level
+	 * ERROR. The supplier is only called if the level is enabled.
+	 */
+	public void error(Supplier<?> messageSupplier, Throwable t) {
+		logSupplied(Level.ERROR, messageSupplier, t);
+	}
+
+	/**
+	 * Log a message at level ERROR according to the specified format. The
+	 * arguments suppliers are only called if the level is enabled.
+	 */
+	public void error(String format, Supplier<?>... argSuppliers) {
+		logSupplied(Level.ERROR, format, argSuppliers);
+	}
+
+	/**
+	 * Log a message at level ERROR according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void error(String format, int arg) {
+		if (isEnabled(Level.ERROR, null)) {
+			forcedLog(FQCN, Level.ERROR, new FoundationParameterizedMessage(format, Integer.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level ERROR according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void error(String format, long arg) {
+		if (isEnabled(Level.ERROR, null)) {
+			forcedLog(FQCN, Level.ERROR, new FoundationParameterizedMessage(format, Long.valueOf(arg)), null);
+		}
+	}
+
+	/**
+	 * Log a message at level ERROR according to the specified format. The
+	 * argument is only boxed if the level is enabled.
+	 */
+	public void error(String format, double arg) {
+		if (isEnabled(Level.ERROR, null)) {
+			forcedLog(FQCN, Level.ERROR, new FoundationParameterizedMessage(format, Double.valueOf(arg)), null);
+		}
+	}
+
+	private void logSupplied(final Level level, final Supplier<?> messageSupplier, final Throwable t) {
+		if (isEnabled(level, null)) {
+			forcedLog(FQCN, level, messageSupplier.get(), t);
+		}
+	}
+
+	private void logSupplied(final Level level, final String format, final Supplier<?>[] argSuppliers) {
+		if (isEnabled(level, null)) {
+			final Object[] args = new Object[argSuppliers.length];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = argSuppliers[i].get();
+			}
+			final FoundationParameterizedMessage message = new FoundationParameterizedMessage(format, args);
+			forcedLog(FQCN, level, message, message.getThrowable());
+		}
+	}
+
+	@Override
+	public void setLevel(Level level) {
+		super.setLevel(level);
+		configurationChanged();
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void setPriority(Priority priority) {
+		super.setPriority(priority);
+		configurationChanged();
+	}
+
+	/**
+	 * Compile {@link #markerAppendersMap} into the routing table used when
+	 * dispatching events. Called on (re)configuration.
+	 */
+	public static void refreshMarkerLayouts() {
+		final Map<String, Map<String, Layout>> markerAppenders = markerAppendersMap;
+		synchronized (markerAppenders) {
+			markerLayoutRoutes = MarkerLayoutRoutes.compile(markerAppenders);
+		}
+	}
+
+	static MarkerLayoutRoutes getMarkerLayoutRoutes() {
+		return markerLayoutRoutes;
+	}
+
+	/**
+	 * Invalidate the cached enabled levels of all the loggers. Must be called
+	 * after the change was applied.
+	 */
+	static void configurationChanged() {
+		configurationEpoch.incrementAndGet();
+	}
+
+	/**
+	 * Run the turbo filters and fall back to the logger level when they are
+	 * all neutral. This is done before any message or event object is created.
+	 */
+	private boolean isEnabled(final Priority level, final Marker marker) {
+		final FoundationTurboFilter[] filters = turboFilters;
+		for (int i = 0; i < filters.length; i++) {
+			final int decision = filters[i].decide(this, level, marker);
+			if (decision == FoundationTurboFilter.ACCEPT) {
+				return true;
+			}
+			if (decision == FoundationTurboFilter.DENY) {
+				return false;
+			}
+		}
+		return isEnabled(level);
+	}
+
+	/**
+	 * Check if the given level is enabled for this logger. For the standard
+	 * levels this is a check of the cached enabled levels mask, which is
+	 * recomputed only after the configuration epoch or the root level changed.
+	 */
+	private boolean isEnabled(final Priority level) {
+		final int bit = maskBit(level);
+		if (bit < 0 || !(repository instanceof FoundationLogHierarchy)) {
+			// non standard level, or a repository we don't get change
+			// notifications from.
+			return !repository.isDisabled(level.toInt()) && level.isGreaterOrEqual(this.getEffectiveLevel());
+		}
+
+		return (getEnabledLevels().mask & (1 << bit)) != 0;
+	}
+
+	private EnabledLevels getEnabledLevels() {
+		final EnabledLevels levels = enabledLevels;
+		if (levels == null || levels.epoch != configurationEpoch.get() || levels.root.getLevel() != levels.rootLevel) {
+			return computeEnabledLevels();
+		}
+		return levels;
+	}
+
+	private EnabledLevels computeEnabledLevels() {
+		// read the epoch first so a change that happens while computing
+		// invalidates the result.
+		final int epoch = configurationEpoch.get();
+
+		Category root = this;
+		while (root.getParent() != null) {
+			root = root.getParent();
+		}
+		final Level rootLevel = root.getLevel();
+
+		final Level effectiveLevel = this.getEffectiveLevel();
+		int mask = 0;
+		for (int i = 0; i < MASK_LEVELS.length; i++) {
+			final Level level = MASK_LEVELS[i];
+			if (!repository.isDisabled(level.toInt()) && level.isGreaterOrEqual(effectiveLevel)) {
+				mask |= 1 << i;
+			}
+		}
+
+		final EnabledLevels levels = new EnabledLevels(epoch, root, rootLevel, mask, resolveRateLimit(), resolveAsyncLogger());
+		enabledLevels = levels;
+		return levels;
+	}
+
+	/**
+	 * @return the rate limit configured for this logger or its closest
+	 *         configured ancestor, null if there is none.
+	 */
+	private FoundationRateLimiter.Limit resolveRateLimit() {
+		final Map<String, FoundationRateLimiter.Limit> limits = rateLimits;
+		if (limits.isEmpty()) {
+			return null;
+		}
+		String loggerName = getName();
+		while (true) {
+			final FoundationRateLimiter.Limit limit = limits.get(loggerName);
+			if (limit != null) {
+				return limit;
+			}
+			final int dot = loggerName.lastIndexOf('.');
+			if (dot < 0) {
+				return null;
+			}
+			loggerName = loggerName.substring(0, dot);
+		}
+	}
+
+	/**
+	 * @return true if this logger or its closest configured ancestor is in
+	 *         async mode.
+	 */
+	private boolean resolveAsyncLogger() {
+		final Map<String, Boolean> modes = asyncLoggers;
+		if (modes.isEmpty()) {
+			return false;
+		}
+		String loggerName = getName();
+		while (true) {
+			final Boolean async = modes.get(loggerName);
+			if (async != null) {
+				return async.booleanValue();
+			}
+			final int dot = loggerName.lastIndexOf('.');
+			if (dot < 0) {
+				return false;
+			}
+			loggerName = loggerName.substring(0, dot);
+		}
+	}
+
+	/**
+	 * Runs the rate limiter of the call site before the event is created.
+	 *
+	 * @return false if the message is suppressed.
+	 */
+	private boolean rateLimitAllows(final String fqcn, final Priority level, final Object message) {
+		if (rateLimits.isEmpty()) {
+			return true;
+		}
+
+		final String template;
+		if (message instanceof FoundationParameterizedMessage) {
+			template = ((FoundationParameterizedMessage) message).getFormat();
+		} else if (message instanceof String) {
+			template = (String) message;
+		} else {
+			return true;
+		}
+
+		final FoundationRateLimiter.Limit limit = getEnabledLevels().rateLimit;
+		if (limit == null || template == null) {
+			return true;
+		}
+		FoundationRateLimiter limiter = rateLimiter;
+		while (limiter == null || limiter.getLimit() != limit) {
+			// concurrent first calls must share one limiter and its counts.
+			final FoundationRateLimiter created = new FoundationRateLimiter(this, limit);
+			if (RATE_LIMITER_UPDATER.compareAndSet(this, limiter, created)) {
+				if (limiter != null) {
+					limiter.retire();
+				}
+				created.activate();
+				limiter = created;
+			} else {
+				limiter = rateLimiter;
+			}
+		}
+
+		final FoundationRateLimiter.Summary summary = limiter.acquire(template, System.nanoTime(), level);
+		if (summary == FoundationRateLimiter.SUPPRESSED) {
+			return false;
+		}
+		if (summary != null) {
+			logSuppressed(fqcn, template, summary);
+		}
+		return true;
+	}
+
+	/**
+	 * log the summary of the messages the rate limiter suppressed at a call
+	 * site. Called by the rate limiter when no message of the call site
+	 * triggered it.
+	 */
+	void logSuppressed(final String template, final FoundationRateLimiter.Summary summary) {
+		logSuppressed(FQCN, template, summary);
+	}
+
+	private void logSuppressed(final String fqcn, final String template, final FoundationRateLimiter.Summary summary) {
+		dispatch(new FoundationLof4jLoggingEvent(fqcn, this, summary.getLevel(), summary.createMessage(template), null));
+	}
+
+	private static int maskBit(final Priority level) {
+		switch (level.toInt()) {
+			case Level.TRACE_INT:
+				return 0;
+			case Level.DEBUG_INT:
+				return 1;
+			case Level.INFO_INT:
+				return 2;
+			case Level.WARN_INT:
+				return 3;
+			case Level.ERROR_INT:
+				return 4;
+			case Level.FATAL_INT:
+				return 5;
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * Immutable snapshot of the levels enabled for a logger, its resolved
+	 * rate limit and async mode, stamped with the configuration epoch and root
+	 * level it was computed for.
+	 */
+	private static final class EnabledLevels {
+
+		private final int epoch;
+		private final Category root;
+		private final Level rootLevel;
+		private final int mask;
+		private final FoundationRateLimiter.Limit rateLimit;
+		private final boolean asyncLogger;
+
+		private EnabledLevels(final int epoch, final Category root, final Level rootLevel, final int mask, final FoundationRateLimiter.Limit rateLimit, final boolean asyncLogger) {
+			this.epoch = epoch;
+			this.root = root;
+			this.rootLevel = rootLevel;
+			this.mask = mask;
+			this.rateLimit = rateLimit;
+			this.asyncLogger = asyncLogger;
+		}
+	}
+
+	/**
+	 * Create a FoundationLof4jLoggingEvent so all events rendered by this
+	 * logger share the same event type.
+	 */
+	@Override
+	protected void forcedLog(String fqcn, Priority level, Object message, Throwable t) {
+		if (!rateLimitAllows(fqcn, level, message)) {
+			return;
+		}
+		dispatch(new FoundationLof4jLoggingEvent(fqcn, this, level, message, t));
+	}
+
 	/**
 	 * This method creates a new logging event and logs the event without
 	 * further checks.
 	 */
 	protected void forcedLog(Marker marker, String fqcn, Priority level, Object message, Throwable t) {
-		callAppenders(new FoundationLof4jLoggingEvent(marker, fqcn, this, level, message, t));
+		if (!rateLimitAllows(fqcn, level, message)) {
+			return;
+		}
+		dispatch(new FoundationLof4jLoggingEvent(marker, fqcn, this, level, message, t));
+	}
+
+	/**
+	 * call the appenders, or leave it to the async logger thread if this
+	 * logger is in async mode.
+	 */
+	private void dispatch(final LoggingEvent event) {
+		if (!asyncLoggers.isEmpty() && getEnabledLevels().asyncLogger) {
+			FoundationAsyncLoggers.publish(this, event);
+		} else {
+			callAppenders(event);
+		}
 	}
 
+	/**
+	 * Walks the category hierarchy using the published appender snapshots.
+	 * No category monitor is taken here - the snapshots are immutable arrays
+	 * that are replaced whenever an appender is added or removed.
+	 */
 	@Override
 	public void callAppenders(LoggingEvent event) {
 		int writes = 0;
@@ -1209,32 +2095,17 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 
 		while (category != null) {
 
-			// Protected against simultaneous call to addAppender,
-			// removeAppender,...
-			synchronized (category) {
-
-				@SuppressWarnings("unchecked")
-				Enumeration<Appender> allAppenders = category.getAllAppenders();
-
-				while (allAppenders.hasMoreElements()) {
-					Appender appender = allAppenders.nextElement();
+			final Appender[] appenders = getAppenderSnapshot(category);
 
-					// since we may update the appender layout we must sync so
-					// other threads won't use it by mistake
-					synchronized (appender) {
-						if(event instanceof FoundationLof4jLoggingEvent){
-							appender.doAppend(new FoundationLof4jLoggingEvent((FoundationLof4jLoggingEvent) event));
-						}else{
-							appender.doAppend(event);
-						}
-					}
-
-					writes++;
-				}
+			// the same event instance is shared by all appenders so derived data
+			// (rendered message, throwable rep, location, MDC copy) is computed once.
+			for (Appender appender : appenders) {
+				FoundationAppenderSupport.doAppend(appender, event);
+				writes++;
+			}
 
-				if (!category.getAdditivity()) {
-					break;
-				}
+			if (!category.getAdditivity()) {
+				break;
 			}
 
 			category = category.getParent();
@@ -1246,6 +2117,50 @@ class FoundationLogger extends Logger implements LocationAwareLogger { // NOPMD
 		}
 	}
 
+	/**
+	 * get the current appender snapshot of the given category. The snapshot is
+	 * built lazily the first time a category is visited.
+	 */
+	private static Appender[] getAppenderSnapshot(final Category category) {
+		final Appender[] snapshot;
+		if (category instanceof FoundationLogger) {
+			snapshot = ((FoundationLogger) category).appenderSnapshot;
+		} else {
+			snapshot = foreignAppenderSnapshots.get(category);
+		}
+		return snapshot != null ? snapshot : refreshAppenderSnapshot(category);
+	}
+
+	/**
+	 * Rebuild and publish the appender snapshot of the given category. Called
+	 * by the FoundationHierarchyEventListener whenever an appender is added to
+	 * or removed from a category (including configuration resets).
+	 * 
+	 * @param category
+	 *            the category whose appenders were changed.
+	 * @return the new snapshot.
+	 */
+	static Appender[] refreshAppenderSnapshot(final Category category) {
+		// same lock log4j uses when changing the appender list so we see a
+		// consistent view.
+		synchronized (category) {
+			final List<Appender> appenders = new ArrayList<Appender>();
+			@SuppressWarnings("unchecked")
+			final Enumeration<Appender> allAppenders = category.getAllAppenders();
+			while (allAppenders != null && allAppenders.hasMoreElements()) {
+				appenders.add(allAppenders.nextElement());
+			}
+			final Appender[] snapshot = appenders.isEmpty() ? NO_APPENDERS : appenders.toArray(new Appender[appenders.size()]);
+
+			if (category instanceof FoundationLogger) {
+				((FoundationLogger) category).appenderSnapshot = snapshot;
+			} else {
+				foreignAppenderSnapshots.put(category, snapshot);
+			}
+			return snapshot;
+		}
+	}
+
 	private static class FoundationRepositorySelector implements RepositorySelector {
 
 		final private LoggerRepository repository;
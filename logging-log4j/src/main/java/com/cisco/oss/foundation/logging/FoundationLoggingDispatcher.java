@@ -17,22 +17,20 @@
 package com.cisco.oss.foundation.logging;
 
 import org.apache.log4j.*;
-import org.apache.log4j.helpers.AppenderAttachableImpl;
 import org.apache.log4j.spi.LoggingEvent;
-import org.slf4j.Marker;
 
-import java.lang.reflect.Field;
 import java.text.MessageFormat;
-import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class FoundationLoggingDispatcher implements Runnable {
 	/**
-	 * Parent AsyncAppender.
+	 * Parent FoundationAsyncAppender.
 	 */
-	private final AsyncAppender parent;
+	private final FoundationAsyncAppender parent;
 
 	/**
 	 * Event buffer.
@@ -47,13 +45,13 @@ public class FoundationLoggingDispatcher implements Runnable {
 	/**
 	 * Wrapped appenders.
 	 */
-	private final AppenderAttachableImpl appenders;
+	private final CopyOnWriteAppenderAttachable appenders;
 
 	/**
 	 * Create new instance of dispatcher.
 	 * 
 	 * @param parent
-	 *            parent AsyncAppender, may not be null.
+	 *            parent FoundationAsyncAppender, may not be null.
 	 * @param buffer
 	 *            event buffer, may not be null.
 	 * @param discardMap
@@ -61,7 +59,7 @@ public class FoundationLoggingDispatcher implements Runnable {
 	 * @param appenders
 	 *            appenders, may not be null.
 	 */
-	public FoundationLoggingDispatcher(final AsyncAppender parent, final List<LoggingEvent> buffer, final Map<String, DiscardSummary> discardMap, final AppenderAttachableImpl appenders) {
+	public FoundationLoggingDispatcher(final FoundationAsyncAppender parent, final List<LoggingEvent> buffer, final Map<String, DiscardSummary> discardMap, final CopyOnWriteAppenderAttachable appenders) {
 
 		this.parent = parent;
 		this.buffer = buffer;
@@ -73,6 +71,8 @@ public class FoundationLoggingDispatcher implements Runnable {
 	 * {@inheritDoc}
 	 */
 	public void run() {
+		final ReentrantLock bufferLock = parent.getBufferLock();
+		final Condition bufferChanged = parent.getBufferChanged();
 		boolean isActive = true;
 
 		//
@@ -84,23 +84,25 @@ public class FoundationLoggingDispatcher implements Runnable {
 			//
 			while (isActive) {
 				LoggingEvent[] events = null;
+				int discardCount = 0;
 
 				//
-				// extract pending events while synchronized
-				// on buffer
+				// extract pending events while holding the buffer lock
 				//
-				synchronized (buffer) {
+				bufferLock.lock();
+				try {
 					int bufferSize = buffer.size();
-					isActive = !isAsyncAppenderClosed(parent);
+					isActive = !parent.isClosed() && !parent.isHalted();
 
 					while ((bufferSize == 0) && isActive) {
-						buffer.wait();
+						bufferChanged.await();
 						bufferSize = buffer.size();
-						isActive = !isAsyncAppenderClosed(parent);
+						isActive = !parent.isClosed() && !parent.isHalted();
 					}
 
 					if (bufferSize > 0) {
-						events = new LoggingEvent[bufferSize + discardMap.size()];
+						discardCount = discardMap.size();
+						events = new LoggingEvent[bufferSize + discardCount];
 						buffer.toArray(events);
 
 						//
@@ -117,39 +119,36 @@ public class FoundationLoggingDispatcher implements Runnable {
 						//
 						buffer.clear();
 						discardMap.clear();
+						parent.bufferDrained();
+						parent.eventsTaken(bufferSize);
 
 						//
 						// allow blocked appends to continue
-						buffer.notifyAll();
+						bufferChanged.signalAll();
 					}
+				} finally {
+					bufferLock.unlock();
 				}
 
 				//
 				// process events after lock on buffer is released.
 				//
 				if (events != null) {
-					for (int i = 0; i < events.length; i++) {
-						synchronized (appenders) {
-							LoggingEvent event = events[i];											
-							@SuppressWarnings("unchecked")
-							Enumeration<Appender> allAppenders = appenders.getAllAppenders();
-							
-							while (allAppenders.hasMoreElements()) {
-								Appender appender = allAppenders.nextElement();
-
-								//since we may update the appender layout we must sync so other threads won't use it by mistake
-								synchronized (appender) {
-									Layout originalLayout = appender.getLayout();
-									boolean appenderUpdated = udpateLayoutIfNeeded(appender, event);
-
-									appender.doAppend(event);
-									if (appenderUpdated) {
-										appender.setLayout(originalLayout);
-									}
-								}
-
-							}																										
+					final AsyncAppenderMetrics metrics = parent.getMetrics();
+					metrics.drained(events.length);
+					// the discard summaries follow the taken events.
+					final int taken = events.length - discardCount;
+					// one flush for the whole batch.
+					final Appender[] batch = beginBatch(appenders);
+					try {
+						for (int i = 0; i < events.length; i++) {
+							dispatch(appenders, events[i], metrics);
+							if (i < taken) {
+								parent.eventHanded();
+							}
 						}
+					} finally {
+						endBatch(batch);
 					}
 				}
 			}
@@ -157,43 +156,62 @@ public class FoundationLoggingDispatcher implements Runnable {
 			Thread.currentThread().interrupt();
 		}
 	}
-	
-	private boolean udpateLayoutIfNeeded(Appender appender, LoggingEvent event) {
 
-		if (event instanceof FoundationLof4jLoggingEvent) {
-
-			FoundationLof4jLoggingEvent foundationLof4jLoggingEvent = (FoundationLof4jLoggingEvent) event;
-			Marker marker = foundationLof4jLoggingEvent.getSlf4jMarker();
-
-			if (marker != null) {
+	/**
+	 * Append the event to all the wrapped appenders, using the marker specific
+	 * layout of each appender if there is one. Shared by the async appenders.
+	 *
+	 * @param metrics
+	 *            gets the append time of each appender, may be null.
+	 */
+	static void dispatch(final CopyOnWriteAppenderAttachable appenders, final LoggingEvent event, final AsyncAppenderMetrics metrics) {
+		final MarkerLayoutRoutes routes = FoundationLogger.getMarkerLayoutRoutes();
+		// a snapshot - no lock is held while the appenders write.
+		final Appender[] allAppenders = appenders.getAppenders();
+
+		for (int i = 0; i < allAppenders.length; i++) {
+			Appender appender = allAppenders[i];
+			Layout layout = routes.layoutFor(event, appender);
+			long start = metrics == null ? 0 : System.nanoTime();
+
+			if (layout == null) {
+				FoundationAppenderSupport.doAppend(appender, event);
+			} else if (appender instanceof LayoutAwareAppender) {
+				((LayoutAwareAppender) appender).doAppend(event, layout);
+			} else {
+				FoundationAppenderSupport.doAppend(appender, event, layout);
+			}
 
-				Map<String, Layout> map = FoundationLogger.markerAppendersMap.get(marker.getName());
+			if (metrics != null) {
+				metrics.appended(appender.getName(), System.nanoTime() - start);
+			}
+		}
+	}
 
-				if (map != null) {
-					Layout specificPatternLayout = map.get(appender.getName());
-					if (specificPatternLayout != null) {
-						appender.setLayout(specificPatternLayout);
-						return true;
-					}
-				}
+	/**
+	 * tell the batch aware appenders a batch of events is coming.
+	 *
+	 * @return the appenders to pass to endBatch.
+	 */
+	static Appender[] beginBatch(final CopyOnWriteAppenderAttachable appenders) {
+		final Appender[] batch = appenders.getAppenders();
+		for (int i = 0; i < batch.length; i++) {
+			if (batch[i] instanceof BatchAwareAppender) {
+				((BatchAwareAppender) batch[i]).beginBatch();
 			}
 		}
-		return false;
+		return batch;
 	}
 
-	private boolean isAsyncAppenderClosed(Appender appender) {
-		// no other way than use reflection to validate the state of the appender.
-		// NOTE: this code will break if java SecurityManager is used.
-		try {
-			Field closedField = AppenderSkeleton.class.getDeclaredField("closed");
-			closedField.setAccessible(true);
-			boolean closed = (Boolean) closedField.get(appender);
-
-			return closed;
-		} catch (Exception e) {
-			System.err.println("Cannot check AsyncAppender state. Error is: " + e);
-			// assume closed in case of error.
-			return true;
+	/**
+	 * end the batch started by beginBatch - the appenders added since did not
+	 * begin it.
+	 */
+	static void endBatch(final Appender[] batch) {
+		for (int i = 0; i < batch.length; i++) {
+			if (batch[i] instanceof BatchAwareAppender) {
+				((BatchAwareAppender) batch[i]).endBatch();
+			}
 		}
 	}
 
@@ -20,12 +20,12 @@ import org.apache.log4j.LogManager;
 import org.slf4j.ILoggerFactory;
 import org.slf4j.Logger;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class FoundationLoggingLoggerFactory implements ILoggerFactory {
 
-	private Map<String, Logger> loggerMap;
+	private ConcurrentMap<String, Logger> loggerMap;
 
 	public FoundationLoggingLoggerFactory() {
 		//protect against concurrent access of loggerMap
@@ -61,7 +61,11 @@ public class FoundationLoggingLoggerFactory implements ILoggerFactory {
 				slf4jLogger = new Log4jLoggerAdapter(log4jLogger);
 			}
 			
-			loggerMap.put(name, slf4jLogger);
+			// another thread may have created the same logger - keep the first one.
+			Logger existing = loggerMap.putIfAbsent(name, slf4jLogger);
+			if (existing != null) {
+				slf4jLogger = existing;
+			}
 		}
 		
 		return slf4jLogger;
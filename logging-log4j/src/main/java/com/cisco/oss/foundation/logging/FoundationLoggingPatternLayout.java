@@ -16,9 +16,11 @@
 
 package com.cisco.oss.foundation.logging;
 
+import com.cisco.oss.foundation.logging.converters.FoundationLoggingPatternConverter;
 import org.apache.log4j.EnhancedPatternLayout;
 import org.apache.log4j.helpers.OptionConverter;
 import org.apache.log4j.helpers.PatternConverter;
+import org.apache.log4j.pattern.LoggingEventPatternConverter;
 import org.apache.log4j.spi.LoggingEvent;
 
 /**
@@ -102,10 +104,32 @@ public final class FoundationLoggingPatternLayout extends EnhancedPatternLayout
 	 */
 	public String format(final LoggingEvent event) {
 		final StringBuffer buf = new StringBuffer();
+		format(event, buf);
+		return buf.toString();
+	}
+
+	/**
+	 * Formats a logging event into the given buffer. Lets appenders reuse
+	 * their buffers instead of creating a new String per event.
+	 * 
+	 * @param event
+	 *            logging event to be formatted.
+	 * @param buf
+	 *            the buffer to append to.
+	 */
+	public void format(final LoggingEvent event, final StringBuffer buf) {
 		for (PatternConverter c = head; c != null; c = c.next) {
 			c.format(buf, event);
 		}
-		return buf.toString();
+	}
+
+	/**
+	 * @return the converters of the pattern, null if it wasn't parsed by the
+	 *         Foundation parser.
+	 */
+	LoggingEventPatternConverter[] getPatternConverters() {
+		final PatternConverter converter = head;
+		return converter instanceof FoundationLoggingPatternConverter ? ((FoundationLoggingPatternConverter) converter).getPatternConverters() : null;
 	}
 
 	/**
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.slf4j.helpers.MessageFormatter;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * A log message made of an SLF4J style format ("{}" place holders) and its
+ * arguments. The "{}" substitution is deferred until an appender actually
+ * renders the message, so with an async appender it is done on the dispatcher
+ * thread and not on the logging thread.
+ * <p>
+ * Arguments are snapshotted when the message is created: immutable types are
+ * kept by reference, anything else is converted to its String representation
+ * so later changes to the argument do not leak into the log. A
+ * {@link Supplier} argument is replaced by the value it supplies.
+ */
+public final class FoundationParameterizedMessage implements Serializable {
+
+	private static final long serialVersionUID = -3213540870218154436L;
+
+	/**
+	 * argument types that are safe to keep by reference.
+	 */
+	private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>();
+
+	static {
+		IMMUTABLE_TYPES.add(String.class);
+		IMMUTABLE_TYPES.add(Boolean.class);
+		IMMUTABLE_TYPES.add(Character.class);
+		IMMUTABLE_TYPES.add(Byte.class);
+		IMMUTABLE_TYPES.add(Short.class);
+		IMMUTABLE_TYPES.add(Integer.class);
+		IMMUTABLE_TYPES.add(Long.class);
+		IMMUTABLE_TYPES.add(Float.class);
+		IMMUTABLE_TYPES.add(Double.class);
+		IMMUTABLE_TYPES.add(BigInteger.class);
+		IMMUTABLE_TYPES.add(BigDecimal.class);
+		IMMUTABLE_TYPES.add(UUID.class);
+	}
+
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
+	/**
+	 * estimated rendered length of arguments that are not Strings - numbers,
+	 * dates, enums etc.
+	 */
+	private static final int ESTIMATED_ARGUMENT_LENGTH = 16;
+
+	private final String format;
+
+	private final Object[] arguments;
+
+	private final transient Throwable throwable;
+
+	private volatile String formattedMessage = null;
+
+	public FoundationParameterizedMessage(final String format, final Object argument) {
+		this(format, new Object[] { argument }, false);
+	}
+
+	public FoundationParameterizedMessage(final String format, final Object argument1, final Object argument2) {
+		this(format, new Object[] { argument1, argument2 }, false);
+	}
+
+	public FoundationParameterizedMessage(final String format, final Object[] arguments) {
+		this(format, arguments, true);
+	}
+
+	private FoundationParameterizedMessage(final String format, final Object[] arguments, final boolean copy) {
+		this.format = format;
+
+		if (arguments == null || arguments.length == 0) {
+			this.arguments = NO_ARGUMENTS;
+			this.throwable = null;
+			return;
+		}
+
+		// same as slf4j - a trailing throwable no place holder consumes is the
+		// event throwable and not a format argument.
+		int length = arguments.length;
+		final Object last = arguments[length - 1];
+		if (last instanceof Throwable && countPlaceholders(format, length) < length) {
+			this.throwable = (Throwable) last;
+			length--;
+		} else {
+			this.throwable = null;
+		}
+
+		final Object[] snapshot = copy || length != arguments.length ? new Object[length] : arguments;
+		for (int i = 0; i < length; i++) {
+			snapshot[i] = snapshot(arguments[i]);
+		}
+		this.arguments = snapshot;
+	}
+
+	/**
+	 * count the "{}" place holders of the format the way
+	 * MessageFormatter.arrayFormat consumes them: one backslash before "{}"
+	 * escapes it, two stand for a backslash followed by a place holder.
+	 *
+	 * @return the number of place holders, at most max.
+	 */
+	static int countPlaceholders(final String format, final int max) {
+		if (format == null) {
+			return 0;
+		}
+		int count = 0;
+		int index = 0;
+		while (count < max) {
+			final int found = format.indexOf("{}", index);
+			if (found == -1) {
+				break;
+			}
+			if (found > 0 && format.charAt(found - 1) == '\\' && (found == 1 || format.charAt(found - 2) != '\\')) {
+				// escaped - slf4j goes on right after the '{'.
+				index = found + 1;
+			} else {
+				count++;
+				index = found + 2;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * apply the snapshot policy to a single argument.
+	 */
+	static Object snapshot(Object argument) {
+		if (argument instanceof Supplier) {
+			try {
+				argument = ((Supplier<?>) argument).get();
+			} catch (Throwable t) { // NOPMD
+				return "[FAILED get()]";
+			}
+		}
+		if (argument == null || argument instanceof Enum || IMMUTABLE_TYPES.contains(argument.getClass())) {
+			return argument;
+		}
+		if (argument.getClass().isArray()) {
+			// let slf4j render the array content the same way it would have.
+			return MessageFormatter.format("{}", argument).getMessage();
+		}
+		try {
+			return String.valueOf(argument);
+		} catch (Throwable t) { // NOPMD
+			return "[FAILED toString()]";
+		}
+	}
+
+	/**
+	 * @return the message format.
+	 */
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return the snapshotted format arguments. The trailing throwable, if
+	 *         there was one, is not part of the arguments.
+	 */
+	public Object[] getArguments() {
+		return arguments.clone();
+	}
+
+	/**
+	 * @return the trailing throwable passed as the last argument and not
+	 *         consumed by a place holder, or null.
+	 */
+	public Throwable getThrowable() {
+		return throwable;
+	}
+
+	/**
+	 * @return a rough number of characters the message holds - the format
+	 *         and the String arguments - without rendering it.
+	 */
+	int estimateLength() {
+		final String message = formattedMessage;
+		if (message != null) {
+			return message.length();
+		}
+		int length = format == null ? 0 : format.length();
+		for (int i = 0; i < arguments.length; i++) {
+			final Object argument = arguments[i];
+			length += argument instanceof String ? ((String) argument).length() : ESTIMATED_ARGUMENT_LENGTH;
+		}
+		return length;
+	}
+
+	/**
+	 * Render the message. The result is computed once and cached.
+	 *
+	 * @return the formatted message.
+	 */
+	public String getFormattedMessage() {
+		String message = formattedMessage;
+		if (message == null) {
+			message = arguments.length == 0 ? format : MessageFormatter.arrayFormat(format, arguments).getMessage();
+			formattedMessage = message;
+		}
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return getFormattedMessage();
+	}
+
+}
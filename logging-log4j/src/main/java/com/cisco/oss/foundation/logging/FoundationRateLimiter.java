@@ -0,0 +1,393 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Priority;
+import org.apache.log4j.helpers.LogLog;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiting of a logger, per call site. A call site is the
+ * message format (or the message itself when it is a plain String) so every
+ * <code>LOGGER.error("connection to {} failed", host)</code> in a hot loop
+ * shares one bucket no matter what the arguments are.
+ * <p>
+ * Each call site may log <code>permits</code> messages per window. Messages
+ * above that are suppressed and counted. The summary of the suppressed ones -
+ * in the spirit of {@link FoundationLoggingDispatcher.DiscardSummary} - is
+ * logged before the first message that is allowed again, or by the
+ * <code>FoundationLogger-RateLimitSummaries</code> timer once the call site
+ * may log again and nothing did, and at the latest on shutdown.
+ * <p>
+ * The call sites of a logger are bounded - plain String messages built from
+ * variable data would otherwise grow the map forever. The least recently
+ * used call site is dropped, after its summary was logged, to make room for a
+ * new one.
+ */
+final class FoundationRateLimiter {
+
+	private static final int MAX_CALL_SITES = 1024;
+
+	private static final long DEFAULT_WINDOW_MILLIS = 1000;
+
+	/**
+	 * how often the timer looks for summaries to log.
+	 */
+	private static final long SUMMARY_PERIOD_MILLIS = 100;
+
+	/**
+	 * returned by {@link #acquire(String, long, Priority)} when the message
+	 * should be dropped.
+	 */
+	static final Summary SUPPRESSED = new Summary(0, null);
+
+	/**
+	 * the limiters in use and the replaced ones with summaries left to log.
+	 */
+	private static final Set<FoundationRateLimiter> active = Collections.newSetFromMap(new ConcurrentHashMap<FoundationRateLimiter, Boolean>());
+
+	private static Timer summaryTimer = null;
+
+	private final FoundationLogger owner;
+
+	private final Limit limit;
+
+	/**
+	 * also the monitor of adding and evicting call sites.
+	 */
+	private final ConcurrentMap<String, CallSite> callSites = new ConcurrentHashMap<String, CallSite>();
+
+	/**
+	 * set when a message was suppressed, cleared by the timer when it logged
+	 * every summary.
+	 */
+	private volatile boolean pending = false;
+
+	private volatile boolean retired = false;
+
+	FoundationRateLimiter(final FoundationLogger owner, final Limit limit) {
+		this.owner = owner;
+		this.limit = limit;
+	}
+
+	Limit getLimit() {
+		return limit;
+	}
+
+	/**
+	 * let the timer log the summaries of this limiter.
+	 */
+	void activate() {
+		active.add(this);
+		startSummaryTimer();
+	}
+
+	/**
+	 * the logger replaced this limiter - the timer logs what is left and
+	 * forgets it.
+	 */
+	void retire() {
+		retired = true;
+		pending = true;
+	}
+
+	/**
+	 * Runs the bucket of the call site of the given template.
+	 *
+	 * @return {@link #SUPPRESSED} if the message should be dropped, null if it
+	 *         should be logged and a summary if it should be logged after the
+	 *         summary of the messages that were suppressed before it.
+	 */
+	Summary acquire(final String template, final long now, final Priority level) {
+		CallSite callSite = callSites.get(template);
+		if (callSite == null) {
+			callSite = addCallSite(template);
+		}
+		final Summary summary = callSite.acquire(now, level);
+		if (summary == SUPPRESSED) {
+			pending = true;
+		}
+		return summary;
+	}
+
+	private CallSite addCallSite(final String template) {
+		final CallSite callSite;
+		CallSite evicted = null;
+		synchronized (callSites) {
+			final CallSite existing = callSites.get(template);
+			if (existing != null) {
+				return existing;
+			}
+			if (callSites.size() >= MAX_CALL_SITES) {
+				evicted = evictLeastRecentlyUsed();
+			}
+			callSite = new CallSite(limit, template);
+			callSites.put(template, callSite);
+		}
+		if (evicted != null) {
+			logSummary(evicted, evicted.take());
+		}
+		return callSite;
+	}
+
+	/**
+	 * @return the removed call site.
+	 */
+	private CallSite evictLeastRecentlyUsed() {
+		CallSite oldest = null;
+		for (CallSite callSite : callSites.values()) {
+			if (oldest == null || callSite.lastUsed - oldest.lastUsed < 0) {
+				oldest = callSite;
+			}
+		}
+		callSites.remove(oldest.template);
+		return oldest;
+	}
+
+	private void logSummary(final CallSite callSite, final Summary summary) {
+		if (summary != null) {
+			owner.logSuppressed(callSite.template, summary);
+		}
+	}
+
+	/**
+	 * log the summaries of the call sites that may log again, or all of them.
+	 */
+	private void logSummaries(final long now, final boolean all) {
+		if (!pending) {
+			return;
+		}
+		// cleared first - a message suppressed while the call sites are walked sets it again.
+		pending = false;
+		final boolean everything = all || retired;
+		boolean left = false;
+		for (CallSite callSite : callSites.values()) {
+			final Summary summary = everything ? callSite.take() : callSite.takeIfAllowed(now);
+			if (summary != null) {
+				logSummary(callSite, summary);
+			} else if (callSite.hasSuppressed()) {
+				left = true;
+			}
+		}
+		if (left) {
+			pending = true;
+		}
+	}
+
+	/**
+	 * log the summaries of every limiter, whether its call sites may log
+	 * again or not. Called on shutdown.
+	 */
+	static void logPendingSummaries() {
+		logSummaries(true);
+	}
+
+	private static void logSummaries(final boolean all) {
+		final long now = System.nanoTime();
+		for (FoundationRateLimiter limiter : active) {
+			limiter.logSummaries(now, all);
+			if (limiter.retired) {
+				active.remove(limiter);
+			}
+		}
+	}
+
+	private static synchronized void startSummaryTimer() {
+		if (summaryTimer != null) {
+			return;
+		}
+		summaryTimer = new Timer("FoundationLogger-RateLimitSummaries", true);
+		summaryTimer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				try {
+					logSummaries(false);
+				} catch (RuntimeException e) {
+					// an exception would cancel the timer.
+					LogLog.error("Failed to log the rate limit summaries", e);
+				}
+			}
+		}, SUMMARY_PERIOD_MILLIS, SUMMARY_PERIOD_MILLIS);
+	}
+
+	/**
+	 * A configured limit: "&lt;permits&gt;/&lt;window millis&gt;", e.g. "100/60000"
+	 * for 100 messages a minute. The window defaults to one second.
+	 */
+	static final class Limit {
+
+		private final int permits;
+
+		private final long windowNanos;
+
+		Limit(final int permits, final long windowMillis) {
+			if (permits < 1 || windowMillis < 1) {
+				throw new IllegalArgumentException("rate limit permits and window must be positive");
+			}
+			this.permits = permits;
+			this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		}
+
+		static Limit parse(final String value) {
+			final String trimmed = value.trim();
+			final int slash = trimmed.indexOf('/');
+			if (slash < 0) {
+				return new Limit(Integer.parseInt(trimmed), DEFAULT_WINDOW_MILLIS);
+			}
+			return new Limit(Integer.parseInt(trimmed.substring(0, slash).trim()), Long.parseLong(trimmed.substring(slash + 1).trim()));
+		}
+
+		int getPermits() {
+			return permits;
+		}
+
+		long getWindowNanos() {
+			return windowNanos;
+		}
+
+		@Override
+		public String toString() {
+			return permits + "/" + TimeUnit.NANOSECONDS.toMillis(windowNanos);
+		}
+	}
+
+	/**
+	 * The bucket of a single call site. Implemented as a generic cell rate
+	 * algorithm - the same as a token bucket refilled continuously, without
+	 * floating point token counts.
+	 */
+	static final class CallSite {
+
+		private final String template;
+
+		private final long emissionInterval;
+
+		private final long burstTolerance;
+
+		/**
+		 * theoretical arrival time of the next message.
+		 */
+		private long nextArrival;
+
+		private boolean started;
+
+		private int suppressed;
+
+		private Priority suppressedLevel;
+
+		/**
+		 * the time of the last message, for the least recently used eviction.
+		 */
+		private volatile long lastUsed;
+
+		private CallSite(final Limit limit, final String template) {
+			this.template = template;
+			emissionInterval = limit.windowNanos / limit.permits;
+			burstTolerance = limit.windowNanos - emissionInterval;
+		}
+
+		/**
+		 * @return {@link FoundationRateLimiter#SUPPRESSED} if the message should
+		 *         be dropped, null if it should be logged and a summary if it
+		 *         should be logged after the summary of the messages that were
+		 *         suppressed before it.
+		 */
+		synchronized Summary acquire(final long now, final Priority level) {
+			lastUsed = now;
+			if (!started) {
+				started = true;
+				nextArrival = now;
+			}
+			if (!isAllowed(now)) {
+				if (suppressed == 0 || level.isGreaterOrEqual(suppressedLevel)) {
+					suppressedLevel = level;
+				}
+				suppressed++;
+				return SUPPRESSED;
+			}
+
+			nextArrival = (now - nextArrival > 0 ? now : nextArrival) + emissionInterval;
+			return take();
+		}
+
+		private boolean isAllowed(final long now) {
+			return now - (nextArrival - burstTolerance) >= 0;
+		}
+
+		/**
+		 * @return the summary of the suppressed messages if a message would be
+		 *         allowed now, without taking its permit. null otherwise.
+		 */
+		synchronized Summary takeIfAllowed(final long now) {
+			return isAllowed(now) ? take() : null;
+		}
+
+		/**
+		 * @return the summary of the suppressed messages, null if none.
+		 */
+		synchronized Summary take() {
+			if (suppressed == 0) {
+				return null;
+			}
+			final Summary summary = new Summary(suppressed, suppressedLevel);
+			suppressed = 0;
+			suppressedLevel = null;
+			return summary;
+		}
+
+		synchronized boolean hasSuppressed() {
+			return suppressed > 0;
+		}
+	}
+
+	/**
+	 * the count and highest level of the messages suppressed at a call site.
+	 */
+	static final class Summary {
+
+		private final int count;
+
+		private final Priority level;
+
+		private Summary(final int count, final Priority level) {
+			this.count = count;
+			this.level = level;
+		}
+
+		int getCount() {
+			return count;
+		}
+
+		Priority getLevel() {
+			return level;
+		}
+
+		String createMessage(final String template) {
+			return "Suppressed " + count + " similar messages including: " + template;
+		}
+	}
+
+}
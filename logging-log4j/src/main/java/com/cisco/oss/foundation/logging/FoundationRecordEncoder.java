@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import com.cisco.oss.foundation.logging.appender.FoundationFileRollingAppender;
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The format and encode buffers of a logging thread, shared by the async
+ * appenders that render records on the logging thread for a
+ * {@link FoundationFileRollingAppender}.
+ */
+final class FoundationRecordEncoder {
+
+	/**
+	 * encode buffers are dropped if an unusually large event made them grow
+	 * beyond this size.
+	 */
+	private static final int MAX_REUSED_BUFFER_SIZE = 8192;
+
+	private static final int DEFAULT_ENCODE_BUFFER_SIZE = 256;
+
+	private static final ThreadLocal<FoundationRecordEncoder> recordEncoders = new ThreadLocal<FoundationRecordEncoder>() {
+		@Override
+		protected FoundationRecordEncoder initialValue() {
+			return new FoundationRecordEncoder();
+		}
+	};
+
+	private StringBuffer text = new StringBuffer(DEFAULT_ENCODE_BUFFER_SIZE);
+
+	private char[] chars = new char[DEFAULT_ENCODE_BUFFER_SIZE];
+
+	private CharBuffer charBuffer = CharBuffer.wrap(chars);
+
+	private ByteBuffer bytes = ByteBuffer.allocate(DEFAULT_ENCODE_BUFFER_SIZE);
+
+	private CharsetEncoder encoder = null;
+
+	private String encoding = null;
+
+	/**
+	 * format the event and encode it in the encoding of the file.
+	 *
+	 * @return the encoded record, valid until release.
+	 */
+	ByteBuffer encode(final LoggingEvent event, final Layout layout, final FoundationFileRollingAppender target) {
+		text.setLength(0);
+		// expose the file appender name to the marker formatters.
+		final String previousAppender = FoundationLof4jLoggingEvent.beginAppend(target.getName());
+		try {
+			if (layout instanceof FoundationLoggingPatternLayout) {
+				((FoundationLoggingPatternLayout) layout).format(event, text);
+			} else {
+				text.append(layout.format(event));
+				if (layout.ignoresThrowable()) {
+					final String[] throwableLines = event.getThrowableStrRep();
+					if (throwableLines != null) {
+						for (int i = 0; i < throwableLines.length; i++) {
+							text.append(throwableLines[i]).append(Layout.LINE_SEP);
+						}
+					}
+				}
+			}
+		} finally {
+			FoundationLof4jLoggingEvent.endAppend(previousAppender);
+		}
+
+		final int length = text.length();
+		if (chars.length < length) {
+			chars = new char[length];
+			charBuffer = CharBuffer.wrap(chars);
+		}
+		text.getChars(0, length, chars, 0);
+		charBuffer.clear();
+		charBuffer.limit(length);
+
+		final CharsetEncoder charsetEncoder = encoderFor(target.getEncoding());
+		charsetEncoder.reset();
+		bytes.clear();
+		while (true) {
+			CoderResult result = charsetEncoder.encode(charBuffer, bytes, true);
+			if (result.isUnderflow()) {
+				result = charsetEncoder.flush(bytes);
+			}
+			if (result.isUnderflow()) {
+				break;
+			}
+			// overflow - grow and go on from where the encoder stopped.
+			final ByteBuffer larger = ByteBuffer.allocate(bytes.capacity() * 2);
+			bytes.flip();
+			larger.put(bytes);
+			bytes = larger;
+		}
+		bytes.flip();
+		return bytes;
+	}
+
+	/**
+	 * don't hold on to buffers that grew because of a huge event.
+	 */
+	void release() {
+		if (text.capacity() > MAX_REUSED_BUFFER_SIZE) {
+			text = new StringBuffer(DEFAULT_ENCODE_BUFFER_SIZE);
+		}
+		if (chars.length > MAX_REUSED_BUFFER_SIZE) {
+			chars = new char[DEFAULT_ENCODE_BUFFER_SIZE];
+			charBuffer = CharBuffer.wrap(chars);
+		}
+		if (bytes.capacity() > MAX_REUSED_BUFFER_SIZE) {
+			bytes = ByteBuffer.allocate(DEFAULT_ENCODE_BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * @return an encoder of the charset the file writer uses.
+	 */
+	private CharsetEncoder encoderFor(final String fileEncoding) {
+		if (encoder == null || (fileEncoding == null ? encoding != null : !fileEncoding.equals(encoding))) {
+			final Charset charset = fileEncoding == null ? Charset.defaultCharset() : Charset.forName(fileEncoding);
+			encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			encoding = fileEncoding;
+		}
+		return encoder;
+	}
+
+	/**
+	 * @return the encoder of the calling thread.
+	 */
+	static FoundationRecordEncoder forCurrentThread() {
+		return recordEncoders.get();
+	}
+
+	/**
+	 * @return the layout of the event marker, else the file appender layout.
+	 *         null if neither has one.
+	 */
+	static Layout layoutFor(final LoggingEvent event, final FoundationFileRollingAppender target) {
+		final Layout layout = FoundationLogger.getMarkerLayoutRoutes().layoutFor(event, target);
+		return layout == null ? target.getLayout() : layout;
+	}
+
+}
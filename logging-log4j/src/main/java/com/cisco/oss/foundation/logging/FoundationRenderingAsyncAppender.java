@@ -0,0 +1,506 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import com.cisco.oss.foundation.logging.FoundationLoggingDispatcher.DiscardSummary;
+import com.cisco.oss.foundation.logging.appender.FoundationFileRollingAppender;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Async appender for a single {@link FoundationFileRollingAppender} that
+ * renders on the logging thread. The logging thread formats the event with
+ * the file appender layout (or the layout of the event marker), encodes it in
+ * the file encoding into a reused buffer and copies the bytes into a
+ * preallocated off-heap {@link FoundationByteRing}. The dispatcher thread only
+ * writes the published records to the file channel in one gathering write
+ * per batch - no event object, MDC copy or marker is kept once the logging
+ * thread returns.
+ * <p>
+ * The file appender threshold and filters are checked on the logging thread;
+ * its deduplication is not applied to the rendered records. The file rolls
+ * between batches, by the time stamp of the first record of the batch.
+ * Events are appended synchronously if the attached appender is not a single
+ * FoundationFileRollingAppender, before activateOptions and once the appender
+ * was drained.
+ * <p>
+ * Chosen for the Foundation async appender references of file appenders by
+ * setting <code>FoundationLogger.asyncAppenderType=render</code>.
+ */
+public class FoundationRenderingAsyncAppender extends AppenderSkeleton implements AppenderAttachable, DrainableAppender {
+
+	/**
+	 * The default ring size in bytes.
+	 */
+	public static final long DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * The default slot size in bytes.
+	 */
+	public static final int DEFAULT_SLOT_SIZE = 256;
+
+	/**
+	 * the most slots written in one drain - whole records are always
+	 * written.
+	 */
+	private static final int MAX_BATCH_SLOTS = 1024;
+
+	/**
+	 * Nested appenders.
+	 */
+	private final CopyOnWriteAppenderAttachable appenders = new CopyOnWriteAppenderAttachable();
+
+	/**
+	 * Map of DiscardSummary objects keyed by logger name, also used as its own
+	 * monitor.
+	 */
+	private final Map<String, DiscardSummary> discardMap = new HashMap<String, DiscardSummary>();
+
+	private volatile boolean discarded = false;
+
+	private final DiscardCounters discardCounters = new DiscardCounters();
+
+	private final AsyncAppenderMetrics metrics = new AsyncAppenderMetrics(new IntSupplier() {
+		@Override
+		public int getAsInt() {
+			final FoundationByteRing ring = byteRing;
+			return ring == null ? 0 : ring.size();
+		}
+	}, discardCounters);
+
+	private volatile FoundationByteRing byteRing = null;
+
+	private Thread dispatcher = null;
+
+	private long bufferSize = DEFAULT_BUFFER_SIZE;
+
+	private int slotSize = DEFAULT_SLOT_SIZE;
+
+	private String waitStrategy = FoundationWaitStrategy.BLOCKING;
+
+	private boolean blocking = true;
+
+	/**
+	 * set when a drain missed its deadline - the dispatcher discards what is
+	 * left instead of writing it and nobody waits for it any more.
+	 */
+	private volatile boolean abandoned = false;
+
+	/**
+	 * records the dispatcher wrote to the file appender. Written by the
+	 * dispatcher only.
+	 */
+	private final AtomicLong writtenRecords = new AtomicLong();
+
+	/**
+	 * Start the dispatcher. Until then, or if the dispatcher died, events are
+	 * appended synchronously.
+	 */
+	@Override
+	public synchronized void activateOptions() {
+		if (byteRing != null) {
+			return;
+		}
+		final FoundationByteRing ring = new FoundationByteRing((int) Math.min(bufferSize, Integer.MAX_VALUE / 2), slotSize, FoundationWaitStrategy.forName(waitStrategy));
+		dispatcher = new Thread(new Dispatcher(ring));
+		// It is the user's responsibility to close appenders before exiting.
+		dispatcher.setDaemon(true);
+		dispatcher.setName("FoundationRenderingAsyncAppender-Dispatcher-" + dispatcher.getName());
+		byteRing = ring;
+		dispatcher.start();
+	}
+
+	/**
+	 * Same as AppenderSkeleton.doAppend without holding the appender monitor.
+	 */
+	@Override
+	public void doAppend(final LoggingEvent event) {
+		if (closed) {
+			LogLog.error("Attempted to append to closed appender named [" + name + "].");
+			return;
+		}
+		if (FoundationAppenderSupport.isAccepted(this, event)) {
+			append(event);
+		}
+	}
+
+	@Override
+	public void append(final LoggingEvent event) {
+		final FoundationByteRing ring = byteRing;
+		final Thread dispatcherThread = dispatcher;
+		final FoundationFileRollingAppender target = getTarget();
+
+		// if not started, the dispatcher thread has died or there is nothing to render for then append synchronously
+		if (target == null || ring == null || ring.isHalted() || dispatcherThread == null || !dispatcherThread.isAlive()) {
+			FoundationLoggingDispatcher.dispatch(appenders, event, null);
+			return;
+		}
+
+		if (!FoundationAppenderSupport.isAccepted(target, event)) {
+			return;
+		}
+
+		final Layout layout = FoundationRecordEncoder.layoutFor(event, target);
+		if (layout == null) {
+			// let the file appender report it.
+			target.doAppend(event);
+			return;
+		}
+
+		final FoundationRecordEncoder encoder = FoundationRecordEncoder.forCurrentThread();
+		final ByteBuffer record = encoder.encode(event, layout, target);
+		try {
+			if (!ring.fits(record.remaining())) {
+				// larger than the whole ring - written ahead of the queued records.
+				FoundationLoggingDispatcher.dispatch(appenders, event, null);
+				return;
+			}
+
+			if (ring.tryPublish(record.array(), record.arrayOffset() + record.position(), record.remaining(), event.getTimeStamp())) {
+				return;
+			}
+
+			// the ring is full. the dispatcher must not wait for itself.
+			if (blocking && Thread.currentThread() != dispatcherThread) {
+				final long blockedSince = System.nanoTime();
+				final boolean published = ring.publish(record.array(), record.arrayOffset() + record.position(), record.remaining(), event.getTimeStamp(), dispatcherThread);
+				metrics.blocked(System.nanoTime() - blockedSince);
+				if (published) {
+					return;
+				}
+			}
+		} finally {
+			encoder.release();
+		}
+
+		if (ring.isHalted() || !dispatcherThread.isAlive()) {
+			// halted or died since the check above - the dispatcher may be gone.
+			FoundationLoggingDispatcher.dispatch(appenders, event, null);
+			return;
+		}
+
+		synchronized (discardMap) {
+			final String loggerName = event.getLoggerName();
+			final DiscardSummary summary = discardMap.get(loggerName);
+			if (summary == null) {
+				discardMap.put(loggerName, new DiscardSummary(event));
+			} else {
+				summary.add(event);
+			}
+			discarded = true;
+		}
+		discardCounters.record(event);
+	}
+
+	/**
+	 * @return the file appender the records are rendered for, null if the
+	 *         attached appenders are anything else.
+	 */
+	private FoundationFileRollingAppender getTarget() {
+		final Appender[] current = appenders.getAppenders();
+		if (current.length == 1 && current[0] instanceof FoundationFileRollingAppender) {
+			return (FoundationFileRollingAppender) current[0];
+		}
+		return null;
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+
+		stopDispatcher();
+		metrics.unregister();
+
+		// close all attached appenders.
+		final Enumeration<?> iter = appenders.getAllAppenders();
+
+		if (iter != null) {
+			while (iter.hasMoreElements()) {
+				final Object next = iter.nextElement();
+
+				if (next instanceof Appender) {
+					((Appender) next).close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * halt and wait for the dispatcher to write every queued record. The
+	 * attached appenders are left open.
+	 */
+	void stopDispatcher() {
+		final Thread dispatcherThread;
+		synchronized (this) {
+			dispatcherThread = dispatcher;
+			halt();
+		}
+
+		// a dispatcher abandoned by a drain may be stuck in the file appender for good.
+		if (dispatcherThread != null && dispatcherThread != Thread.currentThread() && !abandoned) {
+			try {
+				dispatcherThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LogLog.error("Got an InterruptedException while waiting for the dispatcher to finish.", e);
+			}
+		}
+	}
+
+	private void halt() {
+		final FoundationByteRing ring = byteRing;
+		if (ring != null) {
+			ring.halt();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void drain(final long deadlineNanos, final FoundationShutdownHook.Report report) {
+		final FoundationByteRing ring = byteRing;
+		final long writtenBefore = writtenRecords.get();
+		final Thread dispatcherThread;
+		synchronized (this) {
+			dispatcherThread = dispatcher;
+			halt();
+		}
+		if (ring == null) {
+			return;
+		}
+
+		final long remaining = deadlineNanos - System.nanoTime();
+		if (dispatcherThread != null && remaining > 0) {
+			try {
+				dispatcherThread.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (dispatcherThread != null && dispatcherThread.isAlive()) {
+			abandoned = true;
+		}
+		// in records, not slots - a record may take several.
+		report.add(writtenRecords.get() - writtenBefore, ring.pendingRecords());
+	}
+
+	AsyncAppenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the number of events discarded since the appender was created.
+	 */
+	public long getDiscardedCount() {
+		return discardCounters.getTotal();
+	}
+
+	/**
+	 * dispatch the summaries of the events discarded because the ring was
+	 * full. Dispatcher thread only.
+	 */
+	private void dispatchDiscardSummaries() {
+		if (!discarded) {
+			return;
+		}
+		final List<LoggingEvent> summaries;
+		synchronized (discardMap) {
+			summaries = new ArrayList<LoggingEvent>(discardMap.size());
+			for (DiscardSummary summary : discardMap.values()) {
+				summaries.add(summary.createEvent());
+			}
+			discardMap.clear();
+			discarded = false;
+		}
+		for (LoggingEvent summary : summaries) {
+			FoundationLoggingDispatcher.dispatch(appenders, summary, metrics);
+		}
+	}
+
+	@Override
+	public void addAppender(final Appender newAppender) {
+		appenders.addAppender(newAppender);
+	}
+
+	@Override
+	public Enumeration getAllAppenders() {
+		return appenders.getAllAppenders();
+	}
+
+	@Override
+	public Appender getAppender(final String name) {
+		return appenders.getAppender(name);
+	}
+
+	@Override
+	public boolean isAttached(final Appender appender) {
+		return appenders.isAttached(appender);
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return false;
+	}
+
+	@Override
+	public void removeAllAppenders() {
+		appenders.removeAllAppenders();
+	}
+
+	@Override
+	public void removeAppender(final Appender appender) {
+		appenders.removeAppender(appender);
+	}
+
+	@Override
+	public void removeAppender(final String name) {
+		appenders.removeAppender(name);
+	}
+
+	public String getBufferSize() {
+		return Long.toString(bufferSize);
+	}
+
+	/**
+	 * Sets the ring size in bytes, e.g. 4MB. Rounded up to a power of 2
+	 * number of slots. Takes effect on activateOptions.
+	 */
+	public void setBufferSize(final String value) {
+		bufferSize = OptionConverter.toFileSize(value, DEFAULT_BUFFER_SIZE);
+	}
+
+	public int getSlotSize() {
+		return slotSize;
+	}
+
+	/**
+	 * @param size
+	 *            the bytes in a ring slot. A record takes as many slots as it
+	 *            needs - a size a bit above the typical record wastes the
+	 *            least. Takes effect on activateOptions.
+	 */
+	public void setSlotSize(final int size) {
+		slotSize = (size < 16) ? 16 : size;
+	}
+
+	public boolean getBlocking() {
+		return blocking;
+	}
+
+	/**
+	 * @param value
+	 *            true to park the logging thread while the ring is full,
+	 *            false to discard the event and summarize the discarded
+	 *            events.
+	 */
+	public void setBlocking(final boolean value) {
+		blocking = value;
+	}
+
+	public String getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/**
+	 * @param waitStrategy
+	 *            blocking, sleeping, yielding or busySpin. Takes effect on
+	 *            activateOptions.
+	 */
+	public void setWaitStrategy(final String waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Writes the published records to the file until the appender is closed
+	 * and every record was written.
+	 */
+	private final class Dispatcher implements Runnable, FoundationByteRing.RegionHandler {
+
+		private final FoundationByteRing ring;
+
+		private Dispatcher(final FoundationByteRing ring) {
+			this.ring = ring;
+		}
+
+		@Override
+		public void run() {
+			final FoundationWaitStrategy strategy = ring.getWaitStrategy();
+			int idleCount = 0;
+			try {
+				while (true) {
+					// counted here and not by the logging threads - the
+					// depth only grows until the next drain.
+					final int depth = ring.size();
+					final int drained = ring.drain(this, MAX_BATCH_SLOTS);
+					if (drained > 0) {
+						metrics.enqueued(drained, depth);
+						metrics.drained(drained);
+						idleCount = 0;
+						continue;
+					}
+					dispatchDiscardSummaries();
+					if (ring.isDrained()) {
+						break;
+					}
+					strategy.waitForEvents(ring, idleCount++);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void onRegions(final ByteBuffer[] regions, final int count, final int records, final long timeStamp) {
+			if (abandoned) {
+				// counted as dropped by the drain.
+				return;
+			}
+			final FoundationFileRollingAppender target = getTarget();
+			if (target == null) {
+				LogLog.error("Dropped " + records + " rendered records - the file appender of [" + name + "] was removed.");
+				return;
+			}
+			final long start = System.nanoTime();
+			target.writeEncoded(regions, count, timeStamp);
+			writtenRecords.lazySet(writtenRecords.get() + records);
+			metrics.appended(target.getName(), System.nanoTime() - start);
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated multi producer / single consumer ring buffer.
+ * <p>
+ * Producers claim a sequence with a compare and set on the claim cursor, store
+ * their entry in the slot of that sequence and publish the slot by writing
+ * the sequence into the slot's published marker. The single consumer reads
+ * the contiguous run of published slots and hands them to an
+ * {@link EventHandler} in one batch, releasing each slot as soon as it took
+ * the entry - nothing is allocated on either side.
+ */
+final class FoundationRingBuffer<E> implements FoundationWaitStrategy.Waitable {
+
+	/**
+	 * how long a blocked producer parks before checking for space again.
+	 */
+	private static final long PRODUCER_PARK_NANOS = 1000;
+
+	private final Object[] entries;
+
+	/**
+	 * the sequence last published in each slot, -1 if none.
+	 */
+	private final AtomicLongArray published;
+
+	private final int mask;
+
+	/**
+	 * next sequence to claim.
+	 */
+	private final AtomicLong claimed = new AtomicLong();
+
+	/**
+	 * next sequence to consume - every slot below it is free. Written by the
+	 * consumer only.
+	 */
+	private final AtomicLong consumed = new AtomicLong();
+
+	private final FoundationWaitStrategy waitStrategy;
+
+	/**
+	 * set in the claim cursor by halt - once halted no sequence can be
+	 * claimed, so the consumer can't miss a late producer.
+	 */
+	private static final long HALTED_BIT = Long.MIN_VALUE;
+
+	private volatile boolean halted = false;
+
+	/**
+	 * @param requestedCapacity
+	 *            rounded up to the next power of 2.
+	 */
+	FoundationRingBuffer(final int requestedCapacity, final FoundationWaitStrategy waitStrategy) {
+		int capacity = 1;
+		while (capacity < requestedCapacity) {
+			capacity <<= 1;
+		}
+		this.entries = new Object[capacity];
+		this.published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			published.set(i, -1);
+		}
+		this.mask = capacity - 1;
+		this.waitStrategy = waitStrategy;
+	}
+
+	int getCapacity() {
+		return entries.length;
+	}
+
+	/**
+	 * @return the number of claimed entries that were not consumed yet.
+	 */
+	int size() {
+		return (int) ((claimed.get() & ~HALTED_BIT) - consumed.get());
+	}
+
+	/**
+	 * @return the number of entries claimed since the ring buffer was
+	 *         created. Every claimed entry is published, so once halted this
+	 *         is the number of entries the consumer will ever see.
+	 */
+	long claimedCount() {
+		return claimed.get() & ~HALTED_BIT;
+	}
+
+	/**
+	 * publish the entry if there is room for it.
+	 *
+	 * @return false if the ring buffer is full or halted.
+	 */
+	boolean tryPublish(final E entry) {
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence < 0) {
+				// halted.
+				return false;
+			}
+			if (sequence - consumed.get() >= entries.length) {
+				return false;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		final int index = (int) sequence & mask;
+		entries[index] = entry;
+		published.set(index, sequence);
+		waitStrategy.signalAllWhenBlocking();
+		return true;
+	}
+
+	/**
+	 * publish the entry, parking while the ring buffer is full.
+	 *
+	 * @param consumer
+	 *            the consumer thread - once it died nothing makes room.
+	 * @return false if the entry was not published because the ring buffer
+	 *         was halted, the consumer died or the thread was interrupted
+	 *         (the interrupt status is kept).
+	 */
+	boolean publish(final E entry, final Thread consumer) {
+		while (!tryPublish(entry)) {
+			if (halted || !consumer.isAlive() || Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the next entry to consume is published.
+	 */
+	@Override
+	public boolean hasAvailable() {
+		final long next = consumed.get();
+		return published.get((int) next & mask) == next;
+	}
+
+	/**
+	 * Hand the contiguous run of published entries, at most maxBatch of them,
+	 * to the handler. Consumer thread only.
+	 *
+	 * @return the number of entries handled.
+	 */
+	@SuppressWarnings("unchecked")
+	int drain(final EventHandler<? super E> handler, final int maxBatch) {
+		final long next = consumed.get();
+		final long limit = next + maxBatch;
+		long end = next;
+		while (end < limit && published.get((int) end & mask) == end) {
+			end++;
+		}
+
+		for (long sequence = next; sequence < end; sequence++) {
+			final int index = (int) sequence & mask;
+			final E entry = (E) entries[index];
+			entries[index] = null;
+			// release the slot before handling so producers don't wait for the appenders.
+			consumed.lazySet(sequence + 1);
+			handler.onEvent(entry, sequence == end - 1);
+		}
+		return (int) (end - next);
+	}
+
+	/**
+	 * @return true once halted and every claimed entry was consumed.
+	 */
+	boolean isDrained() {
+		return halted && consumed.get() == (claimed.get() & ~HALTED_BIT);
+	}
+
+	@Override
+	public boolean isHalted() {
+		return halted;
+	}
+
+	/**
+	 * stop accepting producers and wake up the consumer so it can
+	 * drain what's left.
+	 */
+	void halt() {
+		long current;
+		do {
+			current = claimed.get();
+		} while (current >= 0 && !claimed.compareAndSet(current, current | HALTED_BIT));
+		halted = true;
+		waitStrategy.signalAllWhenBlocking();
+	}
+
+	FoundationWaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/**
+	 * Consumer callback.
+	 */
+	interface EventHandler<E> {
+
+		/**
+		 * @param endOfBatch
+		 *            true for the last entry of the drained batch.
+		 */
+		void onEvent(E event, boolean endOfBatch);
+	}
+
+}
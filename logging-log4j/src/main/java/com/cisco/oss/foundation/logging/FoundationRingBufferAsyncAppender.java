@@ -0,0 +1,489 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import com.cisco.oss.foundation.logging.FoundationLoggingDispatcher.DiscardSummary;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Async appender built on a preallocated {@link FoundationRingBuffer} instead
+ * of a synchronized list. Logging threads claim a slot and publish the event
+ * without taking a shared monitor and the dispatcher thread drains the
+ * published events in batches without allocating. The way the dispatcher
+ * waits for events is set by the <code>WaitStrategy</code> property - see
+ * {@link FoundationWaitStrategy}.
+ * <p>
+ * Chosen for the Foundation async appender references by setting
+ * <code>FoundationLogger.asyncAppenderType=ringBuffer</code>.
+ */
+public class FoundationRingBufferAsyncAppender extends AppenderSkeleton implements AppenderAttachable, DrainableAppender {
+
+	/**
+	 * The default ring buffer size.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	/**
+	 * the most events handed to the appenders in one drain.
+	 */
+	private static final int MAX_BATCH_SIZE = 256;
+
+	/**
+	 * Nested appenders.
+	 */
+	private final CopyOnWriteAppenderAttachable appenders = new CopyOnWriteAppenderAttachable();
+
+	/**
+	 * Map of DiscardSummary objects keyed by logger name, also used as its own
+	 * monitor.
+	 */
+	private final Map<String, DiscardSummary> discardMap = new HashMap<String, DiscardSummary>();
+
+	private volatile boolean discarded = false;
+
+	private final DiscardCounters discardCounters = new DiscardCounters();
+
+	private final AsyncAppenderMetrics metrics = new AsyncAppenderMetrics(new IntSupplier() {
+		@Override
+		public int getAsInt() {
+			final FoundationRingBuffer<LoggingEvent> buffer = ringBuffer;
+			return buffer == null ? 0 : buffer.size();
+		}
+	}, discardCounters);
+
+	private volatile FoundationRingBuffer<LoggingEvent> ringBuffer = null;
+
+	private Thread dispatcher = null;
+
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	private String waitStrategy = FoundationWaitStrategy.BLOCKING;
+
+	private boolean locationInfo = false;
+
+	private final SnapshotFields snapshotFields = new SnapshotFields();
+
+	private boolean blocking = true;
+
+	/**
+	 * set when a drain missed its deadline - the dispatcher discards what is
+	 * left instead of appending it and nobody waits for it any more.
+	 */
+	private volatile boolean abandoned = false;
+
+	/**
+	 * events the dispatcher handed to the attached appenders. Written by the
+	 * dispatcher only.
+	 */
+	private final AtomicLong handedEvents = new AtomicLong();
+
+	/**
+	 * Start the dispatcher. Until then, or if the dispatcher died, events are
+	 * appended synchronously.
+	 */
+	@Override
+	public synchronized void activateOptions() {
+		if (ringBuffer != null) {
+			return;
+		}
+		final FoundationRingBuffer<LoggingEvent> buffer = new FoundationRingBuffer<LoggingEvent>(bufferSize, FoundationWaitStrategy.forName(waitStrategy));
+		dispatcher = new Thread(new Dispatcher(buffer));
+		// It is the user's responsibility to close appenders before exiting.
+		dispatcher.setDaemon(true);
+		dispatcher.setName("FoundationRingBufferAsyncAppender-Dispatcher-" + dispatcher.getName());
+		ringBuffer = buffer;
+		dispatcher.start();
+	}
+
+	/**
+	 * Same as AppenderSkeleton.doAppend without holding the appender monitor.
+	 */
+	@Override
+	public void doAppend(final LoggingEvent event) {
+		if (closed) {
+			LogLog.error("Attempted to append to closed appender named [" + name + "].");
+			return;
+		}
+		if (FoundationAppenderSupport.isAccepted(this, event)) {
+			append(event);
+		}
+	}
+
+	@Override
+	public void append(final LoggingEvent event) {
+		final FoundationRingBuffer<LoggingEvent> buffer = ringBuffer;
+		final Thread dispatcherThread = dispatcher;
+
+		// if not started or the dispatcher thread has died then append synchronously
+		if (buffer == null || buffer.isHalted() || dispatcherThread == null || !dispatcherThread.isAlive()) {
+			FoundationLoggingDispatcher.dispatch(appenders, event, null);
+			return;
+		}
+
+		FoundationAsyncAppender.prepareForDispatch(event, snapshotFields.fieldsFor(appenders.getAppenders(), locationInfo));
+
+		if (buffer.tryPublish(event)) {
+			return;
+		}
+
+		// the buffer is full. the dispatcher must not wait for itself.
+		if (blocking && Thread.currentThread() != dispatcherThread) {
+			final long blockedSince = System.nanoTime();
+			final boolean published = buffer.publish(event, dispatcherThread);
+			metrics.blocked(System.nanoTime() - blockedSince);
+			if (published) {
+				return;
+			}
+		}
+
+		if (buffer.isHalted() || !dispatcherThread.isAlive()) {
+			// halted or died since the check above - the dispatcher may be gone.
+			FoundationLoggingDispatcher.dispatch(appenders, event, null);
+			return;
+		}
+
+		synchronized (discardMap) {
+			final String loggerName = event.getLoggerName();
+			final DiscardSummary summary = discardMap.get(loggerName);
+			if (summary == null) {
+				discardMap.put(loggerName, new DiscardSummary(event));
+			} else {
+				summary.add(event);
+			}
+			discarded = true;
+		}
+		discardCounters.record(event);
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+
+		stopDispatcher();
+		metrics.unregister();
+
+		// close all attached appenders.
+		final Enumeration<?> iter = appenders.getAllAppenders();
+
+		if (iter != null) {
+			while (iter.hasMoreElements()) {
+				final Object next = iter.nextElement();
+
+				if (next instanceof Appender) {
+					((Appender) next).close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * stop taking new events without waiting for the dispatcher. Events
+	 * appended from now on are appended synchronously.
+	 */
+	void halt() {
+		final FoundationRingBuffer<LoggingEvent> buffer = ringBuffer;
+		if (buffer != null) {
+			buffer.halt();
+		}
+	}
+
+	/**
+	 * halt and wait for the dispatcher to hand every queued event to the
+	 * attached appenders. The attached appenders are left open.
+	 */
+	void stopDispatcher() {
+		final Thread dispatcherThread;
+		synchronized (this) {
+			dispatcherThread = dispatcher;
+			halt();
+		}
+
+		// a dispatcher abandoned by a drain may be stuck in an appender for good.
+		if (dispatcherThread != null && dispatcherThread != Thread.currentThread() && !abandoned) {
+			try {
+				dispatcherThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LogLog.error("Got an InterruptedException while waiting for the dispatcher to finish.", e);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void drain(final long deadlineNanos, final FoundationShutdownHook.Report report) {
+		final FoundationRingBuffer<LoggingEvent> buffer = ringBuffer;
+		final long handedBefore = handedEvents.get();
+		final Thread dispatcherThread;
+		synchronized (this) {
+			dispatcherThread = dispatcher;
+			halt();
+		}
+		if (buffer == null) {
+			return;
+		}
+
+		final long remaining = deadlineNanos - System.nanoTime();
+		if (dispatcherThread != null && remaining > 0) {
+			try {
+				dispatcherThread.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (dispatcherThread != null && dispatcherThread.isAlive()) {
+			abandoned = true;
+		}
+		// halted - no more events get in, so every published event the
+		// appenders didn't get by now is dropped. The slot of an event is
+		// released before it is handed, so the ring size can't tell.
+		final long handed = handedEvents.get();
+		report.add(handed - handedBefore, buffer.claimedCount() - handed);
+	}
+
+	AsyncAppenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the number of events discarded since the appender was created.
+	 */
+	public long getDiscardedCount() {
+		return discardCounters.getTotal();
+	}
+
+	/**
+	 * @return the first attached appender, null if there is none.
+	 */
+	Appender getAttachedAppender() {
+		final Appender[] current = appenders.getAppenders();
+		return current.length == 0 ? null : current[0];
+	}
+
+	/**
+	 * dispatch the summaries of the events discarded because the buffer was
+	 * full. Dispatcher thread only.
+	 */
+	private void dispatchDiscardSummaries() {
+		if (!discarded) {
+			return;
+		}
+		final List<LoggingEvent> summaries;
+		synchronized (discardMap) {
+			summaries = new ArrayList<LoggingEvent>(discardMap.size());
+			for (DiscardSummary summary : discardMap.values()) {
+				summaries.add(summary.createEvent());
+			}
+			discardMap.clear();
+			discarded = false;
+		}
+		for (LoggingEvent summary : summaries) {
+			FoundationLoggingDispatcher.dispatch(appenders, summary, metrics);
+		}
+	}
+
+	@Override
+	public void addAppender(final Appender newAppender) {
+		appenders.addAppender(newAppender);
+	}
+
+	@Override
+	public Enumeration getAllAppenders() {
+		return appenders.getAllAppenders();
+	}
+
+	@Override
+	public Appender getAppender(final String name) {
+		return appenders.getAppender(name);
+	}
+
+	@Override
+	public boolean isAttached(final Appender appender) {
+		return appenders.isAttached(appender);
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return false;
+	}
+
+	@Override
+	public void removeAllAppenders() {
+		appenders.removeAllAppenders();
+	}
+
+	@Override
+	public void removeAppender(final Appender appender) {
+		appenders.removeAppender(appender);
+	}
+
+	@Override
+	public void removeAppender(final String name) {
+		appenders.removeAppender(name);
+	}
+
+	public boolean getLocationInfo() {
+		return locationInfo;
+	}
+
+	public void setLocationInfo(final boolean flag) {
+		locationInfo = flag;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Sets the ring buffer size, rounded up to a power of 2. Takes effect on
+	 * activateOptions.
+	 *
+	 * @param size
+	 *            buffer size, must be positive.
+	 */
+	public void setBufferSize(final int size) {
+		if (size < 0) {
+			throw new NegativeArraySizeException("size");
+		}
+		bufferSize = (size < 1) ? 1 : size;
+	}
+
+	public boolean getBlocking() {
+		return blocking;
+	}
+
+	/**
+	 * @param value
+	 *            true to park the logging thread while the buffer is full,
+	 *            false to discard the event and summarize the discarded
+	 *            events.
+	 */
+	public void setBlocking(final boolean value) {
+		blocking = value;
+	}
+
+	public String getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	/**
+	 * @param waitStrategy
+	 *            blocking, sleeping, yielding or busySpin. Takes effect on
+	 *            activateOptions.
+	 */
+	public void setWaitStrategy(final String waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	/**
+	 * Drains the ring buffer into the nested appenders until the appender is
+	 * closed and every published event was dispatched.
+	 */
+	private final class Dispatcher implements Runnable, FoundationRingBuffer.EventHandler<LoggingEvent> {
+
+		private final FoundationRingBuffer<LoggingEvent> buffer;
+
+		/**
+		 * the appenders of the batch being drained, null between batches.
+		 */
+		private Appender[] batch = null;
+
+		private Dispatcher(final FoundationRingBuffer<LoggingEvent> buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void run() {
+			final FoundationWaitStrategy strategy = buffer.getWaitStrategy();
+			int idleCount = 0;
+			try {
+				while (true) {
+					// counted here and not by the logging threads, which
+					// share nothing but the claim cursor - the depth only
+					// grows until the next drain.
+					final int depth = buffer.size();
+					final int drained;
+					try {
+						drained = buffer.drain(this, MAX_BATCH_SIZE);
+					} finally {
+						endBatch();
+					}
+					if (drained > 0) {
+						metrics.enqueued(drained, depth);
+						metrics.drained(drained);
+						idleCount = 0;
+						continue;
+					}
+					dispatchDiscardSummaries();
+					if (buffer.isDrained()) {
+						break;
+					}
+					strategy.waitForEvents(buffer, idleCount++);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void onEvent(final LoggingEvent event, final boolean endOfBatch) {
+			if (abandoned) {
+				discardCounters.record(event);
+				return;
+			}
+			// the appenders flush once for all the events of a drain.
+			if (batch == null) {
+				batch = FoundationLoggingDispatcher.beginBatch(appenders);
+			}
+			FoundationLoggingDispatcher.dispatch(appenders, event, metrics);
+			handedEvents.lazySet(handedEvents.get() + 1);
+			if (endOfBatch) {
+				endBatch();
+			}
+		}
+
+		private void endBatch() {
+			if (batch != null) {
+				final Appender[] ended = batch;
+				batch = null;
+				FoundationLoggingDispatcher.endBatch(ended);
+			}
+		}
+	}
+
+}
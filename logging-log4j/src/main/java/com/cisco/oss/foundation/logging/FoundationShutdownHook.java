@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import com.cisco.oss.foundation.logging.appender.FoundationFileRollingAppender;
+import org.apache.log4j.Appender;
+import org.apache.log4j.Category;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.spi.AppenderAttachable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shutdown hook that drains the async appenders before log4j closes the
+ * appenders, so events still queued when the JVM is asked to stop (e.g.
+ * SIGTERM) reach the files. Intake stops first - events logged by other
+ * shutdown hooks are written by the logging thread - then the async queues
+ * and the log file compressors get until the deadline to finish, the async
+ * loggers first since they feed the async appenders. The summaries of the
+ * messages the rate limits suppressed are logged before that. What was
+ * drained and what was dropped is reported on the standard error.
+ * <p>
+ * Enabled unless <code>FoundationLogger.shutdownHook=false</code>, the
+ * deadline is set in milliseconds by
+ * <code>FoundationLogger.shutdownTimeout</code>.
+ */
+final class FoundationShutdownHook implements Runnable {
+
+	private static final String Foundation_SHUTDOWN_HOOK = "FoundationLogger.shutdownHook";
+
+	private static final String Foundation_SHUTDOWN_TIMEOUT = "FoundationLogger.shutdownTimeout";
+
+	private static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+	private static boolean registered = false;
+
+	private final long timeoutMillis;
+
+	private FoundationShutdownHook(final long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * register the shutdown hook once, unless disabled in the properties.
+	 */
+	static void register(final Properties properties) {
+		if (!Boolean.valueOf(properties.getProperty(Foundation_SHUTDOWN_HOOK, "true"))) {
+			return;
+		}
+		long timeout = DEFAULT_SHUTDOWN_TIMEOUT;
+		final String timeoutStr = properties.getProperty(Foundation_SHUTDOWN_TIMEOUT);
+		if (timeoutStr != null) {
+			try {
+				timeout = Long.parseLong(timeoutStr.trim());
+			} catch (NumberFormatException e) {
+				System.err.println("[FoundationLogger] Can not format to long the property: " + Foundation_SHUTDOWN_TIMEOUT + ". using: " + DEFAULT_SHUTDOWN_TIMEOUT); // NOPMD
+			}
+		}
+		synchronized (FoundationShutdownHook.class) {
+			if (registered) {
+				return;
+			}
+			registered = true;
+		}
+		try {
+			Runtime.getRuntime().addShutdownHook(new Thread(new FoundationShutdownHook(timeout), "FoundationLogger-Shutdown"));
+		} catch (IllegalStateException e) {
+			// already shutting down.
+		}
+	}
+
+	@Override
+	public void run() {
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final Report report = new Report();
+		FoundationRateLimiter.logPendingSummaries();
+		// the async loggers feed the async appenders - drain them first.
+		if (FoundationAsyncLoggers.drain(deadline, report)) {
+			report.asyncAppenders++;
+		}
+		drain(allAppenders(), deadline, report);
+		report.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		LogManager.shutdown();
+		if (report.getAsyncAppenders() > 0) {
+			System.err.println("[FoundationLogger] Shutdown: " + report); // NOPMD
+		}
+	}
+
+	/**
+	 * @return the appenders of all the loggers, including the appenders
+	 *         nested in async appenders. Each appender once.
+	 */
+	static List<Appender> allAppenders() {
+		final Map<Appender, Boolean> found = new IdentityHashMap<Appender, Boolean>();
+		final List<Appender> appenders = new ArrayList<Appender>();
+		collect(LogManager.getRootLogger().getAllAppenders(), found, appenders);
+		final Enumeration<?> loggers = LogManager.getCurrentLoggers();
+		while (loggers.hasMoreElements()) {
+			collect(((Category) loggers.nextElement()).getAllAppenders(), found, appenders);
+		}
+		return appenders;
+	}
+
+	private static void collect(final Enumeration<?> enumeration, final Map<Appender, Boolean> found, final List<Appender> appenders) {
+		if (enumeration == null) {
+			return;
+		}
+		while (enumeration.hasMoreElements()) {
+			final Appender appender = (Appender) enumeration.nextElement();
+			if (found.put(appender, Boolean.TRUE) == null) {
+				appenders.add(appender);
+				if (appender instanceof AppenderAttachable) {
+					collect(((AppenderAttachable) appender).getAllAppenders(), found, appenders);
+				}
+			}
+		}
+	}
+
+	/**
+	 * drain the async appenders, then let the compressors of the rolling file
+	 * appenders finish, all within the timeout. The appenders are not closed.
+	 */
+	static Report drain(final Collection<Appender> appenders, final long timeoutMillis) {
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final Report report = new Report();
+		drain(appenders, deadline, report);
+		report.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		return report;
+	}
+
+	private static void drain(final Collection<Appender> appenders, final long deadline, final Report report) {
+		for (Appender appender : appenders) {
+			if (appender instanceof DrainableAppender) {
+				report.asyncAppenders++;
+				((DrainableAppender) appender).drain(deadline, report);
+			}
+		}
+		// the drained events may have rolled the files.
+		for (Appender appender : appenders) {
+			if (appender instanceof FoundationFileRollingAppender) {
+				report.uncompressed += ((FoundationFileRollingAppender) appender).finishCompression(deadline);
+			}
+		}
+	}
+
+	/**
+	 * What the shutdown drained and dropped.
+	 */
+	static final class Report {
+
+		private int asyncAppenders;
+
+		private long drained;
+
+		private long dropped;
+
+		private int uncompressed;
+
+		private long elapsedMillis;
+
+		/**
+		 * @param drainedEvents
+		 *            queued events appended before the deadline.
+		 * @param droppedEvents
+		 *            queued events discarded at the deadline.
+		 */
+		void add(final long drainedEvents, final long droppedEvents) {
+			drained += drainedEvents;
+			dropped += droppedEvents;
+		}
+
+		int getAsyncAppenders() {
+			return asyncAppenders;
+		}
+
+		long getDrained() {
+			return drained;
+		}
+
+		long getDropped() {
+			return dropped;
+		}
+
+		int getUncompressed() {
+			return uncompressed;
+		}
+
+		@Override
+		public String toString() {
+			return "drained " + drained + " events, dropped " + dropped + " events and left " + uncompressed + " files uncompressed in " + elapsedMillis + " ms";
+		}
+	}
+
+}
@@ -0,0 +1,998 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import com.cisco.oss.foundation.logging.FoundationLoggingDispatcher.DiscardSummary;
+import com.cisco.oss.foundation.logging.appender.FoundationFileRollingAppender;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Async appender for a single {@link FoundationFileRollingAppender} in which
+ * every logging thread renders into a buffer of its own. The logging thread
+ * formats and encodes the event like {@link FoundationRenderingAsyncAppender}
+ * and copies the bytes into its stripe, tagged with a global sequence number
+ * - the only write the logging threads share. The flusher thread merges the
+ * records of all the stripes back into sequence order and writes them to the
+ * file.
+ * <p>
+ * A record reaches the file at most <code>FlushInterval</code> milliseconds
+ * after it was logged, sooner once the stripe of its thread is half full. A
+ * stripe grows from nothing up to <code>BufferSize</code> as its thread logs,
+ * and all the stripes together hold at most <code>TotalBufferSize</code>
+ * bytes. A thread whose stripe is full, or can't grow, parks until the
+ * flusher took its records, or discards the event if <code>Blocking</code>
+ * is false. The stripe of a thread that died is written out and then
+ * dropped. The merged records are
+ * written in chunks of whole records and the file rolls between chunks, by
+ * the time stamp of the first record of the chunk.
+ * <p>
+ * As with the rendering appender, the file appender threshold and filters are
+ * checked on the logging thread and its deduplication is not applied. Chosen
+ * for the Foundation async appender references of file appenders by setting
+ * <code>FoundationLogger.asyncAppenderType=striped</code>.
+ */
+public class FoundationStripedAsyncAppender extends AppenderSkeleton implements AppenderAttachable, DrainableAppender {
+
+	/**
+	 * The default stripe size in bytes.
+	 */
+	public static final long DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The default size in bytes of all the stripes together.
+	 */
+	public static final long DEFAULT_TOTAL_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * The default flush interval in milliseconds.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+	/**
+	 * the most bytes handed to the file in one write, so the file can roll
+	 * inside a large flush.
+	 */
+	private static final int MAX_WRITE_BYTES = 64 * 1024;
+
+	private static final int INITIAL_STRIPE_RECORDS = 64;
+
+	/**
+	 * the first buffer of a stripe, which grows by doubling.
+	 */
+	private static final int INITIAL_STRIPE_BYTES = 256;
+
+	private static final byte[] NO_BYTES = new byte[0];
+
+	private static final long[] NO_SEQUENCES = new long[0];
+
+	private static final int[] NO_LENGTHS = new int[0];
+
+	/**
+	 * Nested appenders.
+	 */
+	private final CopyOnWriteAppenderAttachable appenders = new CopyOnWriteAppenderAttachable();
+
+	/**
+	 * Map of DiscardSummary objects keyed by logger name, also used as its own
+	 * monitor.
+	 */
+	private final Map<String, DiscardSummary> discardMap = new HashMap<String, DiscardSummary>();
+
+	private volatile boolean discarded = false;
+
+	private final DiscardCounters discardCounters = new DiscardCounters();
+
+	/**
+	 * the next sequence number to hand out.
+	 */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * the next sequence number to write. Written by the flusher only.
+	 */
+	private volatile long flushed = 0;
+
+	/**
+	 * the records the flusher wrote to the file, and those it lost because
+	 * the file appender was removed. Written by the flusher only.
+	 */
+	private volatile long writtenRecords = 0;
+
+	private volatile long lostRecords = 0;
+
+	/**
+	 * the bytes allocated by all the stripes, within totalBufferSize.
+	 * Changed when a stripe grows or releases its buffer - not per record.
+	 */
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	/**
+	 * set when a stripe could not grow - the flusher releases the buffers
+	 * of the empty stripes.
+	 */
+	private volatile boolean allocationFailed = false;
+
+	private final AsyncAppenderMetrics metrics = new AsyncAppenderMetrics(new IntSupplier() {
+		@Override
+		public int getAsInt() {
+			return (int) Math.min(Integer.MAX_VALUE, sequence.get() - flushed);
+		}
+	}, discardCounters);
+
+	/**
+	 * the stripes of the live threads and of the dead ones that still hold
+	 * records.
+	 */
+	private final List<Stripe> stripeList = new CopyOnWriteArrayList<Stripe>();
+
+	private final ThreadLocal<Stripe> stripes = new ThreadLocal<Stripe>() {
+		@Override
+		protected Stripe initialValue() {
+			final Stripe stripe = new Stripe(Thread.currentThread(), getStripeCapacity());
+			stripeList.add(stripe);
+			return stripe;
+		}
+	};
+
+	/**
+	 * guards the flush requests and the wait of the blocked logging threads.
+	 */
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	private final Condition flushRequested = flushLock.newCondition();
+
+	private final Condition roomAvailable = flushLock.newCondition();
+
+	private boolean flushPending = false;
+
+	private Thread flusher = null;
+
+	private volatile boolean halted = false;
+
+	/**
+	 * set when a drain missed its deadline - the flusher discards what is left
+	 * instead of writing it.
+	 */
+	private volatile boolean abandoned = false;
+
+	private long bufferSize = DEFAULT_BUFFER_SIZE;
+
+	private long totalBufferSize = DEFAULT_TOTAL_BUFFER_SIZE;
+
+	private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+	private boolean blocking = true;
+
+	/**
+	 * Start the flusher. Until then, or if the flusher died, events are
+	 * appended synchronously.
+	 */
+	@Override
+	public synchronized void activateOptions() {
+		if (flusher != null) {
+			return;
+		}
+		final Thread thread = new Thread(new Flusher());
+		// It is the user's responsibility to close appenders before exiting.
+		thread.setDaemon(true);
+		thread.setName("FoundationStripedAsyncAppender-Flusher-" + thread.getName());
+		flusher = thread;
+		thread.start();
+	}
+
+	/**
+	 * Same as AppenderSkeleton.doAppend without holding the appender monitor.
+	 */
+	@Override
+	public void doAppend(final LoggingEvent event) {
+		if (closed) {
+			LogLog.error("Attempted to append to closed appender named [" + name + "].");
+			return;
+		}
+		if (FoundationAppenderSupport.isAccepted(this, event)) {
+			append(event);
+		}
+	}
+
+	@Override
+	public void append(final LoggingEvent event) {
+		final Thread flusherThread = flusher;
+		final FoundationFileRollingAppender target = getTarget();
+
+		// if not started, the flusher thread has died or there is nothing to render for then append synchronously
+		if (target == null || halted || flusherThread == null || !flusherThread.isAlive()) {
+			FoundationLoggingDispatcher.dispatch(appenders, event, null);
+			return;
+		}
+
+		if (!FoundationAppenderSupport.isAccepted(target, event)) {
+			return;
+		}
+
+		final Layout layout = FoundationRecordEncoder.layoutFor(event, target);
+		if (layout == null) {
+			// let the file appender report it.
+			target.doAppend(event);
+			return;
+		}
+
+		final FoundationRecordEncoder encoder = FoundationRecordEncoder.forCurrentThread();
+		final ByteBuffer record = encoder.encode(event, layout, target);
+		try {
+			final Stripe stripe = stripes.get();
+			final byte[] bytes = record.array();
+			final int offset = record.arrayOffset() + record.position();
+			if (offer(stripe, bytes, offset, record.remaining(), event.getTimeStamp())) {
+				return;
+			}
+
+			// the stripe is full. the flusher must not wait for itself.
+			if (blocking && Thread.currentThread() != flusherThread) {
+				final long blockedSince = System.nanoTime();
+				final boolean added = offerBlocking(stripe, bytes, offset, record.remaining(), event.getTimeStamp(), flusherThread);
+				metrics.blocked(System.nanoTime() - blockedSince);
+				if (added) {
+					return;
+				}
+			}
+		} finally {
+			encoder.release();
+		}
+
+		synchronized (discardMap) {
+			final String loggerName = event.getLoggerName();
+			final DiscardSummary summary = discardMap.get(loggerName);
+			if (summary == null) {
+				discardMap.put(loggerName, new DiscardSummary(event));
+			} else {
+				summary.add(event);
+			}
+			discarded = true;
+		}
+		discardCounters.record(event);
+	}
+
+	/**
+	 * add the record to the stripe if there is room for it. The sequence
+	 * number is taken under the stripe lock, so once the flusher locked a
+	 * stripe every number below the one it read before is in its stripe.
+	 *
+	 * @return false if the stripe is full, can't grow or the appender was
+	 *         halted.
+	 */
+	private boolean offer(final Stripe stripe, final byte[] bytes, final int offset, final int length, final long timeStamp) {
+		final boolean added;
+		final boolean requestFlush;
+		stripe.lock.lock();
+		try {
+			if (halted || !stripe.hasRoom(length)) {
+				return false;
+			}
+			added = stripe.used + length <= stripe.bytes.length || grow(stripe, stripe.used + length);
+			if (added) {
+				stripe.add(sequence.getAndIncrement(), bytes, offset, length, timeStamp);
+				requestFlush = !stripe.flushRequested && stripe.used * 2 >= stripe.capacity;
+				if (requestFlush) {
+					stripe.flushRequested = true;
+				}
+			} else {
+				// the flusher releases the buffers of the empty stripes.
+				allocationFailed = true;
+				requestFlush = true;
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+		if (requestFlush) {
+			requestFlush();
+		}
+		return added;
+	}
+
+	/**
+	 * grow the stripe buffer to hold the given number of bytes, doubling it
+	 * if the total buffer size allows. Called holding the stripe lock.
+	 *
+	 * @return false if the total buffer size doesn't allow it.
+	 */
+	private boolean grow(final Stripe stripe, final int required) {
+		final int current = stripe.bytes.length;
+		int length = Math.max(required, Math.min(stripe.capacity, Math.max(INITIAL_STRIPE_BYTES, current * 2)));
+		if (!reserve(length - current)) {
+			length = required;
+			if (!reserve(length - current)) {
+				return false;
+			}
+		}
+		stripe.bytes = Arrays.copyOf(stripe.bytes, length);
+		return true;
+	}
+
+	/**
+	 * @return true if the bytes fit in the total buffer size - always when
+	 *         no stripe holds any, so a single large record gets through.
+	 */
+	private boolean reserve(final long bytes) {
+		long current;
+		do {
+			current = allocatedBytes.get();
+			if (current > 0 && current + bytes > totalBufferSize) {
+				return false;
+			}
+		} while (!allocatedBytes.compareAndSet(current, current + bytes));
+		return true;
+	}
+
+	/**
+	 * drop the buffer of the stripe. Called holding the stripe lock, when it
+	 * holds no records.
+	 */
+	private void release(final Stripe stripe) {
+		allocatedBytes.addAndGet(-stripe.bytes.length);
+		stripe.bytes = NO_BYTES;
+	}
+
+	/**
+	 * @return the bytes allocated by all the stripes.
+	 */
+	long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * add the record to the stripe, parking while it is full.
+	 *
+	 * @return false if the record was not added because the appender was
+	 *         halted, the flusher died or the thread was interrupted (the
+	 *         interrupt status is kept).
+	 */
+	private boolean offerBlocking(final Stripe stripe, final byte[] bytes, final int offset, final int length, final long timeStamp, final Thread flusherThread) {
+		flushLock.lock();
+		try {
+			while (!offer(stripe, bytes, offset, length, timeStamp)) {
+				if (halted || !flusherThread.isAlive()) {
+					return false;
+				}
+				flushPending = true;
+				flushRequested.signal();
+				roomAvailable.await(flushInterval, TimeUnit.MILLISECONDS);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void requestFlush() {
+		flushLock.lock();
+		try {
+			flushPending = true;
+			flushRequested.signal();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private int getStripeCapacity() {
+		return (int) Math.min(bufferSize, Integer.MAX_VALUE / 2);
+	}
+
+	/**
+	 * @return the file appender the records are rendered for, null if the
+	 *         attached appenders are anything else.
+	 */
+	private FoundationFileRollingAppender getTarget() {
+		final Appender[] current = appenders.getAppenders();
+		if (current.length == 1 && current[0] instanceof FoundationFileRollingAppender) {
+			return (FoundationFileRollingAppender) current[0];
+		}
+		return null;
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+
+		stopFlusher();
+		metrics.unregister();
+		releaseStripes();
+
+		// close all attached appenders.
+		final Enumeration<?> iter = appenders.getAllAppenders();
+
+		if (iter != null) {
+			while (iter.hasMoreElements()) {
+				final Object next = iter.nextElement();
+
+				if (next instanceof Appender) {
+					((Appender) next).close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * halt and wait for the flusher to write every buffered record. The
+	 * attached appenders are left open.
+	 */
+	void stopFlusher() {
+		final Thread flusherThread;
+		synchronized (this) {
+			flusherThread = flusher;
+			halt();
+		}
+
+		// a flusher abandoned by the drain may never return from the file appender.
+		if (flusherThread != null && flusherThread != Thread.currentThread() && !abandoned) {
+			try {
+				flusherThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LogLog.error("Got an InterruptedException while waiting for the flusher to finish.", e);
+			}
+		}
+	}
+
+	/**
+	 * drop the buffers of all the stripes once the flusher is done with them,
+	 * so the stripes a pooled thread keeps after a reload hold nothing.
+	 */
+	private void releaseStripes() {
+		final Thread flusherThread = flusher;
+		if (flusherThread != null && flusherThread.isAlive()) {
+			return;
+		}
+		for (Stripe stripe : stripeList) {
+			stripe.lock.lock();
+			try {
+				release(stripe);
+				stripe.clear();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		stripeList.clear();
+	}
+
+	/**
+	 * stop accepting records, wake up the flusher for its last flush and the
+	 * blocked logging threads.
+	 */
+	private void halt() {
+		halted = true;
+		flushLock.lock();
+		try {
+			flushPending = true;
+			flushRequested.signal();
+			roomAvailable.signalAll();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void drain(final long deadlineNanos, final FoundationShutdownHook.Report report) {
+		final long writtenBefore = writtenRecords;
+		final Thread flusherThread;
+		synchronized (this) {
+			flusherThread = flusher;
+			halt();
+		}
+
+		final long remaining = deadlineNanos - System.nanoTime();
+		if (flusherThread != null && remaining > 0) {
+			try {
+				flusherThread.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (flusherThread != null && flusherThread.isAlive()) {
+			abandoned = true;
+		}
+		// what the flusher took but didn't write is dropped along with what
+		// it never took.
+		final long written = writtenRecords;
+		report.add((int) (written - writtenBefore), (int) (sequence.get() - written - lostRecords));
+	}
+
+	AsyncAppenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the number of events discarded since the appender was created.
+	 */
+	public long getDiscardedCount() {
+		return discardCounters.getTotal();
+	}
+
+	/**
+	 * dispatch the summaries of the events discarded because a stripe was
+	 * full. Flusher thread only.
+	 */
+	private void dispatchDiscardSummaries() {
+		if (!discarded) {
+			return;
+		}
+		final List<LoggingEvent> summaries;
+		synchronized (discardMap) {
+			summaries = new ArrayList<LoggingEvent>(discardMap.size());
+			for (DiscardSummary summary : discardMap.values()) {
+				summaries.add(summary.createEvent());
+			}
+			discardMap.clear();
+			discarded = false;
+		}
+		for (LoggingEvent summary : summaries) {
+			FoundationLoggingDispatcher.dispatch(appenders, summary, metrics);
+		}
+	}
+
+	@Override
+	public void addAppender(final Appender newAppender) {
+		appenders.addAppender(newAppender);
+	}
+
+	@Override
+	public Enumeration getAllAppenders() {
+		return appenders.getAllAppenders();
+	}
+
+	@Override
+	public Appender getAppender(final String name) {
+		return appenders.getAppender(name);
+	}
+
+	@Override
+	public boolean isAttached(final Appender appender) {
+		return appenders.isAttached(appender);
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return false;
+	}
+
+	@Override
+	public void removeAllAppenders() {
+		appenders.removeAllAppenders();
+	}
+
+	@Override
+	public void removeAppender(final Appender appender) {
+		appenders.removeAppender(appender);
+	}
+
+	@Override
+	public void removeAppender(final String name) {
+		appenders.removeAppender(name);
+	}
+
+	public String getBufferSize() {
+		return Long.toString(bufferSize);
+	}
+
+	/**
+	 * Sets the size in bytes the buffer of each logging thread grows up to,
+	 * e.g. 64KB. A single record larger than that gets a buffer of its own
+	 * size until it was written. Applies to the threads that log for the first time
+	 * after the call.
+	 */
+	public void setBufferSize(final String value) {
+		bufferSize = OptionConverter.toFileSize(value, DEFAULT_BUFFER_SIZE);
+	}
+
+	public String getTotalBufferSize() {
+		return Long.toString(totalBufferSize);
+	}
+
+	/**
+	 * Sets the most bytes all the stripes together hold, e.g. 4MB. A thread
+	 * whose stripe can't grow within it is handled like one whose stripe is
+	 * full.
+	 */
+	public void setTotalBufferSize(final String value) {
+		totalBufferSize = OptionConverter.toFileSize(value, DEFAULT_TOTAL_BUFFER_SIZE);
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * @param millis
+	 *            the longest a record stays in the buffer of its thread.
+	 */
+	public void setFlushInterval(final long millis) {
+		flushInterval = (millis < 1) ? 1 : millis;
+	}
+
+	public boolean getBlocking() {
+		return blocking;
+	}
+
+	/**
+	 * @param value
+	 *            true to park the logging thread while its buffer is full,
+	 *            false to discard the event and summarize the discarded
+	 *            events.
+	 */
+	public void setBlocking(final boolean value) {
+		blocking = value;
+	}
+
+	/**
+	 * The buffer of one logging thread. Its records are in sequence order,
+	 * added by the thread and removed by the flusher, both under the lock.
+	 * Nothing is allocated until the thread logs.
+	 */
+	private static final class Stripe {
+
+		private final Thread owner;
+
+		private final int capacity;
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * grown by the appender within the total buffer size.
+		 */
+		private byte[] bytes = NO_BYTES;
+
+		private int used = 0;
+
+		private long[] sequences = NO_SEQUENCES;
+
+		private long[] timeStamps = NO_SEQUENCES;
+
+		private int[] lengths = NO_LENGTHS;
+
+		private int records = 0;
+
+		/**
+		 * set once the stripe got half full, until the flusher took its
+		 * records.
+		 */
+		private boolean flushRequested = false;
+
+		/**
+		 * the records and bytes the flusher is taking. Flusher only.
+		 */
+		private int takenRecords = 0;
+
+		private int takenBytes = 0;
+
+		private Stripe(final Thread owner, final int capacity) {
+			this.owner = owner;
+			this.capacity = capacity;
+		}
+
+		/**
+		 * @return true if the record fits in the stripe capacity - always
+		 *         when the stripe is empty.
+		 */
+		private boolean hasRoom(final int length) {
+			return used == 0 || used + length <= capacity;
+		}
+
+		/**
+		 * add a record the buffer has room for.
+		 */
+		private void add(final long sequenceNumber, final byte[] record, final int offset, final int length, final long timeStamp) {
+			if (records == sequences.length) {
+				final int size = Math.max(INITIAL_STRIPE_RECORDS, records * 2);
+				sequences = Arrays.copyOf(sequences, size);
+				timeStamps = Arrays.copyOf(timeStamps, size);
+				lengths = Arrays.copyOf(lengths, size);
+			}
+			System.arraycopy(record, offset, bytes, used, length);
+			used += length;
+			sequences[records] = sequenceNumber;
+			timeStamps[records] = timeStamp;
+			lengths[records] = length;
+			records++;
+		}
+
+		/**
+		 * remove the taken records, moving the ones added since to the
+		 * start.
+		 *
+		 * @return the bytes of buffer released.
+		 */
+		private int removeTaken() {
+			used -= takenBytes;
+			records -= takenRecords;
+			System.arraycopy(bytes, takenBytes, bytes, 0, used);
+			System.arraycopy(sequences, takenRecords, sequences, 0, records);
+			System.arraycopy(timeStamps, takenRecords, timeStamps, 0, records);
+			System.arraycopy(lengths, takenRecords, lengths, 0, records);
+			int released = 0;
+			if (bytes.length > capacity && used <= capacity) {
+				// done with an oversized record.
+				released = bytes.length - capacity;
+				bytes = Arrays.copyOf(bytes, capacity);
+			}
+			takenRecords = 0;
+			takenBytes = 0;
+			flushRequested = false;
+			return released;
+		}
+
+		/**
+		 * drop the records and their arrays. The buffer is released by the
+		 * appender.
+		 */
+		private void clear() {
+			used = 0;
+			records = 0;
+			sequences = NO_SEQUENCES;
+			timeStamps = NO_SEQUENCES;
+			lengths = NO_LENGTHS;
+			takenRecords = 0;
+			takenBytes = 0;
+			flushRequested = false;
+		}
+	}
+
+	/**
+	 * Merges the stripes into the file every flush interval or when asked,
+	 * until the appender is halted and every record was written.
+	 */
+	private final class Flusher implements Runnable {
+
+		/**
+		 * the length, position in the merged buffer and time stamp of each
+		 * record of a flush, indexed by its sequence number less flushed.
+		 */
+		private int[] recordLengths = new int[INITIAL_STRIPE_RECORDS];
+
+		private int[] positions = new int[INITIAL_STRIPE_RECORDS];
+
+		private long[] recordTimeStamps = new long[INITIAL_STRIPE_RECORDS];
+
+		private byte[] merged = new byte[MAX_WRITE_BYTES];
+
+		private ByteBuffer mergedBuffer = ByteBuffer.wrap(merged);
+
+		private final ByteBuffer[] regions = new ByteBuffer[1];
+
+		@Override
+		public void run() {
+			try {
+				while (!halted) {
+					flushLock.lock();
+					try {
+						if (!flushPending && !halted) {
+							flushRequested.await(flushInterval, TimeUnit.MILLISECONDS);
+						}
+						flushPending = false;
+					} finally {
+						flushLock.unlock();
+					}
+					flush();
+					dispatchDiscardSummaries();
+					if (allocationFailed) {
+						releaseEmptyStripes();
+					}
+				}
+
+				// a thread that saw the appender running added its record
+				// before releasing its stripe lock - the ones that lock it
+				// from now on see it halted.
+				for (Stripe stripe : stripeList) {
+					stripe.lock.lock();
+					stripe.lock.unlock();
+				}
+				flush();
+				dispatchDiscardSummaries();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * write every record numbered below the sequence number read on
+		 * entry, in sequence order.
+		 */
+		private void flush() {
+			final long first = flushed;
+			final long cut = sequence.get();
+			final int count = (int) (cut - first);
+			if (count == 0) {
+				return;
+			}
+			if (recordLengths.length < count) {
+				final int size = Math.max(count, recordLengths.length * 2);
+				recordLengths = new int[size];
+				positions = new int[size];
+				recordTimeStamps = new long[size];
+			}
+
+			// the lengths first, to place each record without a second copy.
+			for (Stripe stripe : stripeList) {
+				stripe.lock.lock();
+				try {
+					int taken = 0;
+					int takenBytes = 0;
+					while (taken < stripe.records && stripe.sequences[taken] < cut) {
+						final int index = (int) (stripe.sequences[taken] - first);
+						recordLengths[index] = stripe.lengths[taken];
+						recordTimeStamps[index] = stripe.timeStamps[taken];
+						takenBytes += stripe.lengths[taken];
+						taken++;
+					}
+					stripe.takenRecords = taken;
+					stripe.takenBytes = takenBytes;
+				} finally {
+					stripe.lock.unlock();
+				}
+			}
+			int total = 0;
+			for (int i = 0; i < count; i++) {
+				positions[i] = total;
+				total += recordLengths[i];
+			}
+			if (merged.length < total) {
+				merged = new byte[Math.max(total, merged.length * 2)];
+				mergedBuffer = ByteBuffer.wrap(merged);
+			}
+
+			for (Stripe stripe : stripeList) {
+				if (stripe.takenRecords == 0) {
+					continue;
+				}
+				stripe.lock.lock();
+				try {
+					int offset = 0;
+					for (int i = 0; i < stripe.takenRecords; i++) {
+						final int index = (int) (stripe.sequences[i] - first);
+						System.arraycopy(stripe.bytes, offset, merged, positions[index], stripe.lengths[i]);
+						offset += stripe.lengths[i];
+					}
+					allocatedBytes.addAndGet(-stripe.removeTaken());
+				} finally {
+					stripe.lock.unlock();
+				}
+			}
+			flushed = cut;
+
+			flushLock.lock();
+			try {
+				roomAvailable.signalAll();
+			} finally {
+				flushLock.unlock();
+			}
+			metrics.enqueued(count, count);
+			metrics.drained(count);
+
+			write(count, total);
+			removeDeadStripes();
+		}
+
+		private void write(final int count, final int total) {
+			if (abandoned) {
+				// counted as dropped by the drain.
+				return;
+			}
+			final FoundationFileRollingAppender target = getTarget();
+			if (target == null) {
+				LogLog.error("Dropped " + count + " rendered records - the file appender of [" + name + "] was removed.");
+				lostRecords += count;
+				return;
+			}
+			final long start = System.nanoTime();
+			int next = 0;
+			while (next < count) {
+				final int chunkStart = next;
+				int chunkBytes = recordLengths[next++];
+				while (next < count && chunkBytes + recordLengths[next] <= MAX_WRITE_BYTES) {
+					chunkBytes += recordLengths[next++];
+				}
+				mergedBuffer.clear();
+				mergedBuffer.position(positions[chunkStart]);
+				mergedBuffer.limit(positions[chunkStart] + chunkBytes);
+				regions[0] = mergedBuffer;
+				target.writeEncoded(regions, 1, recordTimeStamps[chunkStart]);
+				writtenRecords += next - chunkStart;
+			}
+			metrics.appended(target.getName(), System.nanoTime() - start);
+			if (total > MAX_WRITE_BYTES * 16) {
+				// don't hold on to the buffer of an unusually large flush.
+				merged = new byte[MAX_WRITE_BYTES];
+				mergedBuffer = ByteBuffer.wrap(merged);
+			}
+		}
+
+		/**
+		 * give the buffers of the stripes that hold no records back to the
+		 * total buffer size, for the threads whose stripe couldn't grow.
+		 */
+		private void releaseEmptyStripes() {
+			allocationFailed = false;
+			for (Stripe stripe : stripeList) {
+				stripe.lock.lock();
+				try {
+					if (stripe.records == 0 && stripe.bytes.length > 0) {
+						release(stripe);
+					}
+				} finally {
+					stripe.lock.unlock();
+				}
+			}
+			flushLock.lock();
+			try {
+				roomAvailable.signalAll();
+			} finally {
+				flushLock.unlock();
+			}
+		}
+
+		/**
+		 * drop the stripes of the threads that died once they were written.
+		 */
+		private void removeDeadStripes() {
+			for (Stripe stripe : stripeList) {
+				if (stripe.owner.isAlive()) {
+					continue;
+				}
+				stripe.lock.lock();
+				try {
+					if (stripe.records == 0) {
+						release(stripe);
+						stripeList.remove(stripe);
+					}
+				} finally {
+					stripe.lock.unlock();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.OptionHandler;
+import org.slf4j.Marker;
+
+/**
+ * A filter evaluated by the FoundationLogger before the logger level check and
+ * before any message or event object is created. Turbo filters are configured
+ * in the log4j properties file:
+ * <pre>
+ * FoundationLogger.turboFilters=name1,name2
+ * FoundationLogger.turboFilter.name1=[class name]
+ * FoundationLogger.turboFilter.name1.[property]=[value]
+ * </pre>
+ * The filters are called in order. The first filter that returns
+ * {@link #ACCEPT} or {@link #DENY} decides, if all filters are
+ * {@link #NEUTRAL} the logger level decides. Note that an accepted event is
+ * still subject to the appender threshold and filters.
+ * <p>
+ * Implementations are called on every logging call so they must be thread
+ * safe and cheap.
+ */
+public abstract class FoundationTurboFilter implements OptionHandler {
+
+	/**
+	 * The event should be logged regardless of the logger level.
+	 */
+	public static final int ACCEPT = Filter.ACCEPT;
+
+	/**
+	 * This filter has no opinion.
+	 */
+	public static final int NEUTRAL = Filter.NEUTRAL;
+
+	/**
+	 * The event should be dropped.
+	 */
+	public static final int DENY = Filter.DENY;
+
+	/**
+	 * the MDC key holding the flow context.
+	 */
+	public static final String FLOW_CONTEXT_KEY = "flowCtxt";
+
+	private String name;
+
+	/**
+	 * Decide on a logging call.
+	 *
+	 * @param logger
+	 *            the logger called.
+	 * @param level
+	 *            the level of the call.
+	 * @param marker
+	 *            the marker of the call, may be null.
+	 * @return {@link #ACCEPT}, {@link #NEUTRAL} or {@link #DENY}
+	 */
+	public abstract int decide(Logger logger, Priority level, Marker marker);
+
+	/**
+	 * get the flow context of the current thread. Only filters that need it
+	 * pay for the MDC lookup.
+	 */
+	protected static String getFlowContext() {
+		final Object flowContext = MDC.get(FLOW_CONTEXT_KEY);
+		return flowContext == null ? null : flowContext.toString();
+	}
+
+	/**
+	 * Called after all the properties were set.
+	 */
+	@Override
+	public void activateOptions() {
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How the consumer of a {@link FoundationRingBuffer} or a
+ * {@link FoundationByteRing} waits for events:
+ * <ul>
+ * <li>blocking - waits on a lock condition, producers signal it. Lowest CPU,
+ * highest wake up latency. The default.</li>
+ * <li>sleeping - spins, then yields, then parks for a short while.</li>
+ * <li>yielding - spins, then yields the CPU.</li>
+ * <li>busySpin - never gives up the CPU. Only for a dedicated core.</li>
+ * </ul>
+ */
+abstract class FoundationWaitStrategy {
+
+	static final String BLOCKING = "blocking";
+
+	static final String SLEEPING = "sleeping";
+
+	static final String YIELDING = "yielding";
+
+	static final String BUSY_SPIN = "busySpin";
+
+	private static final int SPIN_TRIES = 100;
+
+	/**
+	 * @return the wait strategy with the given name, the blocking one if the
+	 *         name is unknown or blank.
+	 */
+	static FoundationWaitStrategy forName(final String name) {
+		final String strategy = name == null ? "" : name.trim();
+		if (SLEEPING.equalsIgnoreCase(strategy)) {
+			return new Sleeping();
+		}
+		if (YIELDING.equalsIgnoreCase(strategy)) {
+			return new Yielding();
+		}
+		if (BUSY_SPIN.equalsIgnoreCase(strategy)) {
+			return new BusySpin();
+		}
+		if (strategy.length() > 0 && !BLOCKING.equalsIgnoreCase(strategy)) {
+			System.err.println("[FoundationLogger] Unknown async wait strategy: " + name + ". using: " + BLOCKING); // NOPMD
+		}
+		return new Blocking();
+	}
+
+	/**
+	 * Called by the consumer when there was nothing to consume. Returns when
+	 * events may be available, the ring buffer was halted or just after
+	 * backing off - the caller checks again.
+	 *
+	 * @param idleCount
+	 *            how many times in a row the consumer found nothing.
+	 */
+	abstract void waitForEvents(Waitable ringBuffer, int idleCount) throws InterruptedException;
+
+	/**
+	 * Called by the producers after publishing.
+	 */
+	void signalAllWhenBlocking() {
+	}
+
+	/**
+	 * The ring a consumer waits on.
+	 */
+	interface Waitable {
+
+		/**
+		 * @return true if the next entry to consume is published.
+		 */
+		boolean hasAvailable();
+
+		boolean isHalted();
+	}
+
+	static final class Blocking extends FoundationWaitStrategy {
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private final Condition eventsAvailable = lock.newCondition();
+
+		private volatile boolean consumerWaiting = false;
+
+		@Override
+		void waitForEvents(final Waitable ringBuffer, final int idleCount) throws InterruptedException {
+			lock.lock();
+			try {
+				consumerWaiting = true;
+				// checked after announcing the wait - a producer that published
+				// before seeing the flag is seen here.
+				while (!ringBuffer.hasAvailable() && !ringBuffer.isHalted()) {
+					eventsAvailable.await();
+				}
+			} finally {
+				consumerWaiting = false;
+				lock.unlock();
+			}
+		}
+
+		@Override
+		void signalAllWhenBlocking() {
+			if (consumerWaiting) {
+				lock.lock();
+				try {
+					eventsAvailable.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	static final class Sleeping extends FoundationWaitStrategy {
+
+		private static final long SLEEP_NANOS = 100000;
+
+		@Override
+		void waitForEvents(final Waitable ringBuffer, final int idleCount) throws InterruptedException {
+			if (idleCount < SPIN_TRIES) {
+				return;
+			}
+			if (idleCount < 2 * SPIN_TRIES) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(SLEEP_NANOS);
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	static final class Yielding extends FoundationWaitStrategy {
+
+		@Override
+		void waitForEvents(final Waitable ringBuffer, final int idleCount) throws InterruptedException {
+			if (idleCount >= SPIN_TRIES) {
+				Thread.yield();
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	static final class BusySpin extends FoundationWaitStrategy {
+
+		@Override
+		void waitForEvents(final Waitable ringBuffer, final int idleCount) throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * An appender that can format a single event with a layout other than its
+ * own - e.g. a marker specific layout - without having its layout replaced.
+ * Appenders that don't implement it get their layout swapped for the event.
+ */
+public interface LayoutAwareAppender extends Appender {
+
+	/**
+	 * Same as {@link Appender#doAppend(LoggingEvent)}, formatting the event
+	 * with the given layout.
+	 */
+	void doAppend(LoggingEvent event, Layout layout);
+
+}
@@ -19,10 +19,12 @@ package com.cisco.oss.foundation.logging;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import java.text.MessageFormat;
+import java.util.function.Supplier;
 
 /**
- * Helper class for formatting log messages.
+ * Helper class for formatting log messages. Formats are compiled once into a
+ * {@link LoggingTemplate} and cached, so they are not parsed again on every
+ * call.
  *
  * @author Yair Ogen
  * @author Jethro Revill
@@ -40,22 +42,22 @@ public final class LoggingHelper { // NOPMD
 	/**
 	 * Formatter for communication messages.
 	 */
-	private static final MessageFormat COMM_MESSAGE_FORMAT = new MessageFormat("protocol[{0}] source[{1}] destination[{2}] {3}");
+	private static final LoggingTemplate COMM_MESSAGE_FORMAT = LoggingTemplate.compileMessageFormat("protocol[{0}] source[{1}] destination[{2}] {3}");
 
 	/**
 	 * Formatter for communication messages with addition of in out mode.
 	 */
-	private static final MessageFormat COMM_MESSAGE_FORMAT_IN_OUT = new MessageFormat("{0}: protocol[{1}] source[{2}] destination[{3}] {4}"); // NOPMD
+	private static final LoggingTemplate COMM_MESSAGE_FORMAT_IN_OUT = LoggingTemplate.compileMessageFormat("{0}: protocol[{1}] source[{2}] destination[{3}] {4}"); // NOPMD
 
 	/**
 	 * Formatter for connection establishment messages.
 	 */
-	private static final MessageFormat CON_ESTABLISHMENT_FORMAT = new MessageFormat("[{0}] remote host[{1}] {2}");
+	private static final LoggingTemplate CON_ESTABLISHMENT_FORMAT = LoggingTemplate.compileMessageFormat("[{0}] remote host[{1}] {2}");
 
 	/**
 	 * Formatter for connection termination messages.
 	 */
-	private static final MessageFormat CON_TERMINATION_FORMAT = new MessageFormat("[{0}] remote host[{1}] {2} - {3}");
+	private static final LoggingTemplate CON_TERMINATION_FORMAT = LoggingTemplate.compileMessageFormat("[{0}] remote host[{1}] {2} - {3}");
 
 	/**
 	 * Private constructor ensures LoggingHelper cannot be instantiated.
@@ -118,7 +120,7 @@ public final class LoggingHelper { // NOPMD
 			if (converter != null) {
 				formatParams = converter.convert(params);
 			}
-			final String message = String.format(format, formatParams);
+			final String message = LoggingTemplate.forFormat(format).format(formatParams);
 			logger.trace(message, throwable);
 		}
 	}
@@ -192,7 +194,7 @@ public final class LoggingHelper { // NOPMD
 			if (converter != null) {
 				formatParams = converter.convert(params);
 			}
-			final String message = String.format(format, formatParams);
+			final String message = LoggingTemplate.forFormat(format).format(formatParams);
 			logger.debug(message, throwable);
 		}
 	}
@@ -244,7 +246,7 @@ public final class LoggingHelper { // NOPMD
 	 */
 	public static void info(final Logger logger, final String format, final Throwable throwable, final Object... params) {
 		if (logger.isInfoEnabled()) {
-			final String message = String.format(format, params);
+			final String message = LoggingTemplate.forFormat(format).format(params);
 			logger.info(message, throwable);
 		}
 	}
@@ -276,7 +278,7 @@ public final class LoggingHelper { // NOPMD
 	 *            the parameters to be formatted into it the string format
 	 */
 	public static void warn(final Logger logger, final String format, final Throwable throwable, final Object... params) {
-		final String message = String.format(format, params);
+		final String message = LoggingTemplate.forFormat(format).format(params);
 		logger.warn(message, throwable);
 	}
 
@@ -307,7 +309,7 @@ public final class LoggingHelper { // NOPMD
 	 *            the parameters to be formatted into it the string format
 	 */
 	public static void error(final Logger logger, final String format, final Throwable throwable, final Object... params) {
-		final String message = String.format(format, params);
+		final String message = LoggingTemplate.forFormat(format).format(params);
 		logger.error(message, throwable);
 	}
 
@@ -338,10 +340,584 @@ public final class LoggingHelper { // NOPMD
 	 *            the parameters to be formatted into it the string format
 	 */
 	public static void fatal(final Logger logger, final String format, final Throwable throwable, final Object... params) {
-		final String message = String.format(format, params);
+		final String message = LoggingTemplate.forFormat(format).format(params);
 		logger.fatal(message, throwable);
 	}
 
+	/**
+	 * log the message returned by the supplier only if trace level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 */
+	public static void trace(final Logger logger, final Supplier<?> messageSupplier) {
+		logSupplied(logger, Level.TRACE, messageSupplier, null);
+	}
+
+	/**
+	 * log the message returned by the supplier only if trace level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 * @param throwable
+	 *            a throwable object that holds the throwable information
+	 */
+	public static void trace(final Logger logger, final Supplier<?> messageSupplier, final Throwable throwable) {
+		logSupplied(logger, Level.TRACE, messageSupplier, throwable);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if trace level is
+	 * enabled. The parameters are supplied lazily.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param params
+	 *            supply the parameters to be formatted into it the string
+	 *            format, called only if the level is enabled
+	 */
+	public static void trace(final Logger logger, final String format, final Supplier<?>... params) {
+		logSupplied(logger, Level.TRACE, format, params);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if trace level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void trace(final Logger logger, final String format, final int param) {
+		if (logger.isEnabledFor(Level.TRACE)) {
+			logger.log(Level.TRACE, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if trace level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void trace(final Logger logger, final String format, final long param) {
+		if (logger.isEnabledFor(Level.TRACE)) {
+			logger.log(Level.TRACE, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if trace level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void trace(final Logger logger, final String format, final double param) {
+		if (logger.isEnabledFor(Level.TRACE)) {
+			logger.log(Level.TRACE, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * log the message returned by the supplier only if debug level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 */
+	public static void debug(final Logger logger, final Supplier<?> messageSupplier) {
+		logSupplied(logger, Level.DEBUG, messageSupplier, null);
+	}
+
+	/**
+	 * log the message returned by the supplier only if debug level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 * @param throwable
+	 *            a throwable object that holds the throwable information
+	 */
+	public static void debug(final Logger logger, final Supplier<?> messageSupplier, final Throwable throwable) {
+		logSupplied(logger, Level.DEBUG, messageSupplier, throwable);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if debug level is
+	 * enabled. The parameters are supplied lazily.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param params
+	 *            supply the parameters to be formatted into it the string
+	 *            format, called only if the level is enabled
+	 */
+	public static void debug(final Logger logger, final String format, final Supplier<?>... params) {
+		logSupplied(logger, Level.DEBUG, format, params);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if debug level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void debug(final Logger logger, final String format, final int param) {
+		if (logger.isEnabledFor(Level.DEBUG)) {
+			logger.log(Level.DEBUG, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if debug level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void debug(final Logger logger, final String format, final long param) {
+		if (logger.isEnabledFor(Level.DEBUG)) {
+			logger.log(Level.DEBUG, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if debug level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void debug(final Logger logger, final String format, final double param) {
+		if (logger.isEnabledFor(Level.DEBUG)) {
+			logger.log(Level.DEBUG, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * log the message returned by the supplier only if info level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 */
+	public static void info(final Logger logger, final Supplier<?> messageSupplier) {
+		logSupplied(logger, Level.INFO, messageSupplier, null);
+	}
+
+	/**
+	 * log the message returned by the supplier only if info level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 * @param throwable
+	 *            a throwable object that holds the throwable information
+	 */
+	public static void info(final Logger logger, final Supplier<?> messageSupplier, final Throwable throwable) {
+		logSupplied(logger, Level.INFO, messageSupplier, throwable);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if info level is
+	 * enabled. The parameters are supplied lazily.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param params
+	 *            supply the parameters to be formatted into it the string
+	 *            format, called only if the level is enabled
+	 */
+	public static void info(final Logger logger, final String format, final Supplier<?>... params) {
+		logSupplied(logger, Level.INFO, format, params);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if info level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void info(final Logger logger, final String format, final int param) {
+		if (logger.isEnabledFor(Level.INFO)) {
+			logger.log(Level.INFO, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if info level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void info(final Logger logger, final String format, final long param) {
+		if (logger.isEnabledFor(Level.INFO)) {
+			logger.log(Level.INFO, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if info level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void info(final Logger logger, final String format, final double param) {
+		if (logger.isEnabledFor(Level.INFO)) {
+			logger.log(Level.INFO, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * log the message returned by the supplier only if warn level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 */
+	public static void warn(final Logger logger, final Supplier<?> messageSupplier) {
+		logSupplied(logger, Level.WARN, messageSupplier, null);
+	}
+
+	/**
+	 * log the message returned by the supplier only if warn level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 * @param throwable
+	 *            a throwable object that holds the throwable information
+	 */
+	public static void warn(final Logger logger, final Supplier<?> messageSupplier, final Throwable throwable) {
+		logSupplied(logger, Level.WARN, messageSupplier, throwable);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if warn level is
+	 * enabled. The parameters are supplied lazily.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param params
+	 *            supply the parameters to be formatted into it the string
+	 *            format, called only if the level is enabled
+	 */
+	public static void warn(final Logger logger, final String format, final Supplier<?>... params) {
+		logSupplied(logger, Level.WARN, format, params);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if warn level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void warn(final Logger logger, final String format, final int param) {
+		if (logger.isEnabledFor(Level.WARN)) {
+			logger.log(Level.WARN, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if warn level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void warn(final Logger logger, final String format, final long param) {
+		if (logger.isEnabledFor(Level.WARN)) {
+			logger.log(Level.WARN, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if warn level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void warn(final Logger logger, final String format, final double param) {
+		if (logger.isEnabledFor(Level.WARN)) {
+			logger.log(Level.WARN, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * log the message returned by the supplier only if error level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 */
+	public static void error(final Logger logger, final Supplier<?> messageSupplier) {
+		logSupplied(logger, Level.ERROR, messageSupplier, null);
+	}
+
+	/**
+	 * log the message returned by the supplier only if error level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 * @param throwable
+	 *            a throwable object that holds the throwable information
+	 */
+	public static void error(final Logger logger, final Supplier<?> messageSupplier, final Throwable throwable) {
+		logSupplied(logger, Level.ERROR, messageSupplier, throwable);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if error level is
+	 * enabled. The parameters are supplied lazily.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param params
+	 *            supply the parameters to be formatted into it the string
+	 *            format, called only if the level is enabled
+	 */
+	public static void error(final Logger logger, final String format, final Supplier<?>... params) {
+		logSupplied(logger, Level.ERROR, format, params);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if error level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void error(final Logger logger, final String format, final int param) {
+		if (logger.isEnabledFor(Level.ERROR)) {
+			logger.log(Level.ERROR, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if error level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void error(final Logger logger, final String format, final long param) {
+		if (logger.isEnabledFor(Level.ERROR)) {
+			logger.log(Level.ERROR, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if error level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void error(final Logger logger, final String format, final double param) {
+		if (logger.isEnabledFor(Level.ERROR)) {
+			logger.log(Level.ERROR, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * log the message returned by the supplier only if fatal level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 */
+	public static void fatal(final Logger logger, final Supplier<?> messageSupplier) {
+		logSupplied(logger, Level.FATAL, messageSupplier, null);
+	}
+
+	/**
+	 * log the message returned by the supplier only if fatal level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param messageSupplier
+	 *            supplies the message, called only if the level is enabled
+	 * @param throwable
+	 *            a throwable object that holds the throwable information
+	 */
+	public static void fatal(final Logger logger, final Supplier<?> messageSupplier, final Throwable throwable) {
+		logSupplied(logger, Level.FATAL, messageSupplier, throwable);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if fatal level is
+	 * enabled. The parameters are supplied lazily.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param params
+	 *            supply the parameters to be formatted into it the string
+	 *            format, called only if the level is enabled
+	 */
+	public static void fatal(final Logger logger, final String format, final Supplier<?>... params) {
+		logSupplied(logger, Level.FATAL, format, params);
+	}
+
+	/**
+	 * Enable logging using String.format internally only if fatal level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void fatal(final Logger logger, final String format, final int param) {
+		if (logger.isEnabledFor(Level.FATAL)) {
+			logger.log(Level.FATAL, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if fatal level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void fatal(final Logger logger, final String format, final long param) {
+		if (logger.isEnabledFor(Level.FATAL)) {
+			logger.log(Level.FATAL, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	/**
+	 * Enable logging using String.format internally only if fatal level is
+	 * enabled. The parameter is boxed only if the level is enabled.
+	 * 
+	 * @param logger
+	 *            the logger that will be used to log the message
+	 * @param format
+	 *            the format string (the template string)
+	 * @param param
+	 *            the parameter to be formatted into it the string format
+	 */
+	public static void fatal(final Logger logger, final String format, final double param) {
+		if (logger.isEnabledFor(Level.FATAL)) {
+			logger.log(Level.FATAL, LoggingTemplate.forFormat(format).format(param), null);
+		}
+	}
+
+	private static void logSupplied(final Logger logger, final Level level, final Supplier<?> messageSupplier, final Throwable throwable) {
+		if (logger.isEnabledFor(level)) {
+			logger.log(level, messageSupplier.get(), throwable);
+		}
+	}
+
+	private static void logSupplied(final Logger logger, final Level level, final String format, final Supplier<?>[] params) {
+		if (logger.isEnabledFor(level)) {
+			final Object[] formatParams = new Object[params.length];
+			for (int i = 0; i < params.length; i++) {
+				formatParams[i] = params[i].get();
+			}
+			logger.log(level, LoggingTemplate.forFormat(format).format(formatParams), null);
+		}
+	}
+
 	/**
 	 * log message using the String.format API.
 	 * 
@@ -358,7 +934,7 @@ public final class LoggingHelper { // NOPMD
 	 */
 	public static void log(final Logger logger, final Level level, final Throwable throwable, final String format, final Object... params) {
 		if (level.isGreaterOrEqual(logger.getEffectiveLevel())) {
-			logger.log(level, String.format(format, params), throwable);
+			logger.log(level, LoggingTemplate.forFormat(format).format(params), throwable);
 		}
 
 	}
@@ -377,7 +953,7 @@ public final class LoggingHelper { // NOPMD
 	 */
 	public static void log(final Logger logger, final Level level, final String format, final Object... params) {
 		if (level.isGreaterOrEqual(logger.getEffectiveLevel())) {
-			logger.log(level, String.format(format, params));
+			logger.log(level, LoggingTemplate.forFormat(format).format(params));
 		}
 	}
 
@@ -399,7 +975,7 @@ public final class LoggingHelper { // NOPMD
 	 */
 	public static void log(final Logger logger, final String callerFQCN, final Level level, final Throwable throwable, final String format, final Object... params) {
 		if (level.isGreaterOrEqual(logger.getEffectiveLevel())) {
-			logger.log(callerFQCN, level, String.format(format, params), throwable);
+			logger.log(callerFQCN, level, LoggingTemplate.forFormat(format).format(params), throwable);
 		}
 	}
 
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import java.math.BigInteger;
+import java.text.DecimalFormatSymbols;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Formattable;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A message template compiled once into literal segments and argument
+ * references. Supports the two template flavors used by {@link LoggingHelper}:
+ * <ul>
+ * <li>String.format templates made of "%s", "%d", "%n" and "%%"</li>
+ * <li>MessageFormat templates made of "{0}", "{1}" ... place holders</li>
+ * </ul>
+ * Any other construct (width, precision, flags, quotes, format types...) is
+ * not compiled and the template delegates to String.format / MessageFormat so
+ * the output is always the same as before. Templates are immutable and render
+ * into a per thread StringBuilder so they can be shared between threads.
+ */
+final class LoggingTemplate {
+
+	/**
+	 * don't let formats built at runtime grow the cache forever.
+	 */
+	private static final int MAX_CACHED_TEMPLATES = 1024;
+
+	private static final int MAX_REUSED_BUILDER_SIZE = 8192;
+
+	private static final ConcurrentMap<String, LoggingTemplate> PRINTF_TEMPLATES = new ConcurrentHashMap<String, LoggingTemplate>();
+
+	private static final ConcurrentMap<String, LoggingTemplate> MESSAGE_FORMAT_TEMPLATES = new ConcurrentHashMap<String, LoggingTemplate>();
+
+	private static final ThreadLocal<ReusableBuilder> BUILDER = new ThreadLocal<ReusableBuilder>() {
+		@Override
+		protected ReusableBuilder initialValue() {
+			return new ReusableBuilder();
+		}
+	};
+
+	private static final char STRING = 's';
+
+	private static final char DECIMAL = 'd';
+
+	private static final char MESSAGE_FORMAT_ARGUMENT = '{';
+
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
+	private final String pattern;
+
+	private final boolean messageFormat;
+
+	/**
+	 * null if the pattern could not be compiled.
+	 */
+	private final String[] literals;
+
+	private final int[] argumentIndexes;
+
+	private final char[] conversions;
+
+	private LoggingTemplate(final String pattern, final boolean messageFormat, final String[] literals, final int[] argumentIndexes, final char[] conversions) {
+		this.pattern = pattern;
+		this.messageFormat = messageFormat;
+		this.literals = literals;
+		this.argumentIndexes = argumentIndexes;
+		this.conversions = conversions;
+	}
+
+	/**
+	 * @return the cached compiled template for a String.format pattern.
+	 */
+	static LoggingTemplate forFormat(final String format) {
+		return cached(PRINTF_TEMPLATES, format, false);
+	}
+
+	/**
+	 * @return the cached compiled template for a MessageFormat pattern.
+	 */
+	static LoggingTemplate forMessageFormat(final String pattern) {
+		return cached(MESSAGE_FORMAT_TEMPLATES, pattern, true);
+	}
+
+	private static LoggingTemplate cached(final ConcurrentMap<String, LoggingTemplate> cache, final String pattern, final boolean messageFormat) {
+		LoggingTemplate template = cache.get(pattern);
+		if (template == null) {
+			template = messageFormat ? compileMessageFormat(pattern) : compileFormat(pattern);
+			if (cache.size() < MAX_CACHED_TEMPLATES) {
+				final LoggingTemplate existing = cache.putIfAbsent(pattern, template);
+				if (existing != null) {
+					template = existing;
+				}
+			}
+		}
+		return template;
+	}
+
+	static LoggingTemplate compileFormat(final String format) {
+		final List<String> literals = new ArrayList<String>();
+		final List<Character> conversions = new ArrayList<Character>();
+		final StringBuilder literal = new StringBuilder();
+		boolean hasDecimal = false;
+
+		final int length = format.length();
+		for (int i = 0; i < length; i++) {
+			final char c = format.charAt(i);
+			if (c != '%') {
+				literal.append(c);
+				continue;
+			}
+			if (i + 1 == length) {
+				return notCompiled(format, false);
+			}
+			final char conversion = format.charAt(++i);
+			switch (conversion) {
+				case '%':
+					literal.append('%');
+					break;
+				case 'n':
+					literal.append(System.getProperty("line.separator"));
+					break;
+				case STRING:
+				case DECIMAL:
+					hasDecimal |= conversion == DECIMAL;
+					literals.add(literal.toString());
+					literal.setLength(0);
+					conversions.add(conversion);
+					break;
+				default:
+					return notCompiled(format, false);
+			}
+		}
+		literals.add(literal.toString());
+
+		// String.format renders %d with the digits of the default locale.
+		if (hasDecimal && DecimalFormatSymbols.getInstance(Locale.getDefault()).getZeroDigit() != '0') {
+			return notCompiled(format, false);
+		}
+
+		final int[] argumentIndexes = new int[conversions.size()];
+		final char[] conversionArray = new char[conversions.size()];
+		for (int i = 0; i < argumentIndexes.length; i++) {
+			argumentIndexes[i] = i;
+			conversionArray[i] = conversions.get(i);
+		}
+		return new LoggingTemplate(format, false, literals.toArray(new String[literals.size()]), argumentIndexes, conversionArray);
+	}
+
+	static LoggingTemplate compileMessageFormat(final String pattern) {
+		final List<String> literals = new ArrayList<String>();
+		final List<Integer> argumentIndexes = new ArrayList<Integer>();
+		final StringBuilder literal = new StringBuilder();
+
+		final int length = pattern.length();
+		for (int i = 0; i < length; i++) {
+			final char c = pattern.charAt(i);
+			if (c == '\'' || c == '}') {
+				return notCompiled(pattern, true);
+			}
+			if (c != '{') {
+				literal.append(c);
+				continue;
+			}
+			final int end = pattern.indexOf('}', i);
+			if (end <= i + 1 || end - i > 4) {
+				return notCompiled(pattern, true);
+			}
+			int index = 0;
+			for (int j = i + 1; j < end; j++) {
+				final char digit = pattern.charAt(j);
+				if (digit < '0' || digit > '9') {
+					return notCompiled(pattern, true);
+				}
+				index = index * 10 + digit - '0';
+			}
+			literals.add(literal.toString());
+			literal.setLength(0);
+			argumentIndexes.add(index);
+			i = end;
+		}
+		literals.add(literal.toString());
+
+		final int[] indexes = new int[argumentIndexes.size()];
+		final char[] conversions = new char[indexes.length];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = argumentIndexes.get(i);
+			conversions[i] = MESSAGE_FORMAT_ARGUMENT;
+		}
+		return new LoggingTemplate(pattern, true, literals.toArray(new String[literals.size()]), indexes, conversions);
+	}
+
+	private static LoggingTemplate notCompiled(final String pattern, final boolean messageFormat) {
+		return new LoggingTemplate(pattern, messageFormat, null, null, null);
+	}
+
+	/**
+	 * @return true if the pattern was compiled, false if rendering delegates
+	 *         to String.format / MessageFormat.
+	 */
+	boolean isCompiled() {
+		return literals != null;
+	}
+
+	/**
+	 * render the template with the given arguments.
+	 */
+	String format(final Object... arguments) {
+		final Object[] args = arguments == null ? NO_ARGUMENTS : arguments;
+		if (literals == null || !canRender(args)) {
+			return fallback(args);
+		}
+
+		final ReusableBuilder reusable = BUILDER.get();
+		// toString() of an argument may log through the LoggingHelper as well.
+		final StringBuilder builder = reusable.inUse ? new StringBuilder(pattern.length() + 32) : reusable.builder;
+		final boolean release = !reusable.inUse;
+		reusable.inUse = true;
+		try {
+			builder.setLength(0);
+			for (int i = 0; i < argumentIndexes.length; i++) {
+				builder.append(literals[i]);
+				final int index = argumentIndexes[i];
+				if (messageFormat && index >= args.length) {
+					// same as MessageFormat - a missing argument leaves the place holder.
+					builder.append('{').append(index).append('}');
+				} else {
+					final Object argument = args[index];
+					if (conversions[i] == DECIMAL && argument != null && !(argument instanceof BigInteger)) {
+						builder.append(((Number) argument).longValue());
+					} else {
+						builder.append(String.valueOf(argument));
+					}
+				}
+			}
+			builder.append(literals[literals.length - 1]);
+			return builder.toString();
+		} finally {
+			if (release) {
+				if (builder.capacity() > MAX_REUSED_BUILDER_SIZE) {
+					reusable.builder = new StringBuilder(256);
+				}
+				reusable.inUse = false;
+			}
+		}
+	}
+
+	/**
+	 * @return false if one of the arguments needs the full String.format /
+	 *         MessageFormat handling (or the error String.format would throw).
+	 */
+	private boolean canRender(final Object[] args) {
+		if (!messageFormat && args.length < argumentIndexes.length) {
+			return false;
+		}
+		for (int i = 0; i < argumentIndexes.length; i++) {
+			final int index = argumentIndexes[i];
+			if (index >= args.length) {
+				continue;
+			}
+			final Object argument = args[index];
+			if (argument == null) {
+				continue;
+			}
+			switch (conversions[i]) {
+				case STRING:
+					if (argument instanceof Formattable) {
+						return false;
+					}
+					break;
+				case DECIMAL:
+					if (!(argument instanceof Integer || argument instanceof Long || argument instanceof Short || argument instanceof Byte || argument instanceof BigInteger)) {
+						return false;
+					}
+					break;
+				default:
+					if (argument instanceof Number || argument instanceof Date) {
+						return false;
+					}
+			}
+		}
+		return true;
+	}
+
+	private String fallback(final Object[] args) {
+		if (messageFormat) {
+			// MessageFormat instances are not thread safe.
+			return new MessageFormat(pattern).format(args);
+		}
+		return String.format(pattern, args);
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+
+	private static final class ReusableBuilder {
+
+		private StringBuilder builder = new StringBuilder(256);
+
+		private boolean inUse;
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable routing table of (marker name, appender name) to the layout the
+ * appender should use for events with that marker. Compiled from
+ * {@link FoundationLogger#markerAppendersMap} so the dispatcher never reads
+ * the mutable map on the hot path.
+ */
+final class MarkerLayoutRoutes {
+
+	static final MarkerLayoutRoutes EMPTY = new MarkerLayoutRoutes(Collections.<String, Map<String, Layout>> emptyMap());
+
+	private final Map<String, Map<String, Layout>> routes;
+
+	private MarkerLayoutRoutes(final Map<String, Map<String, Layout>> routes) {
+		this.routes = routes;
+	}
+
+	/**
+	 * copy the given marker to appender layouts map. The caller must make
+	 * sure it is not modified while it is copied.
+	 */
+	static MarkerLayoutRoutes compile(final Map<String, Map<String, Layout>> markerAppenders) {
+		final Map<String, Map<String, Layout>> routes = new HashMap<String, Map<String, Layout>>();
+		for (Map.Entry<String, Map<String, Layout>> entry : markerAppenders.entrySet()) {
+			if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+				routes.put(entry.getKey(), Collections.unmodifiableMap(new HashMap<String, Layout>(entry.getValue())));
+			}
+		}
+		return routes.isEmpty() ? EMPTY : new MarkerLayoutRoutes(Collections.unmodifiableMap(routes));
+	}
+
+	boolean isEmpty() {
+		return routes.isEmpty();
+	}
+
+	/**
+	 * @return the layout the appender should format the event with, null to
+	 *         use its own layout.
+	 */
+	Layout layoutFor(final LoggingEvent event, final Appender appender) {
+		if (routes.isEmpty() || !(event instanceof FoundationLof4jLoggingEvent)) {
+			return null;
+		}
+		final Marker marker = ((FoundationLof4jLoggingEvent) event).getSlf4jMarker();
+		if (marker == null) {
+			return null;
+		}
+		final Map<String, Layout> appenderLayouts = routes.get(marker.getName());
+		return appenderLayouts == null ? null : appenderLayouts.get(appender.getName());
+	}
+
+	/**
+	 * @return the layouts routed to the appender for any marker.
+	 */
+	List<Layout> layoutsOf(final Appender appender) {
+		if (routes.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final List<Layout> layouts = new ArrayList<Layout>();
+		for (Map<String, Layout> appenderLayouts : routes.values()) {
+			final Layout layout = appenderLayouts.get(appender.getName());
+			if (layout != null) {
+				layouts.add(layout);
+			}
+		}
+		return layouts;
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.cisco.oss.foundation.logging;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+import org.slf4j.Marker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turbo filter that drops (or forces) logging calls made with specific
+ * markers. Calls at or above the threshold level are never affected so errors
+ * are not lost. e.g.:
+ * <pre>
+ * FoundationLogger.turboFilters=noisy
+ * FoundationLogger.turboFilter.noisy=com.cisco.oss.foundation.logging.MarkerTurboFilter
+ * FoundationLogger.turboFilter.noisy.markers=HEARTBEAT,POLLING
+ * FoundationLogger.turboFilter.noisy.onMatch=DENY
+ * FoundationLogger.turboFilter.noisy.threshold=WARN
+ * </pre>
+ */
+public class MarkerTurboFilter extends FoundationTurboFilter {
+
+	private static final String[] NO_MARKERS = new String[0];
+
+	private volatile String[] markers = NO_MARKERS;
+
+	private int onMatch = DENY;
+
+	private Level threshold = Level.WARN;
+
+	@Override
+	public int decide(final Logger logger, final Priority level, final Marker marker) {
+		if (marker == null || level.isGreaterOrEqual(threshold)) {
+			return NEUTRAL;
+		}
+		final String[] names = markers;
+		for (int i = 0; i < names.length; i++) {
+			// contains also checks the marker references.
+			if (marker.contains(names[i])) {
+				return onMatch;
+			}
+		}
+		return NEUTRAL;
+	}
+
+	/**
+	 * @param markers
+	 *            comma separated list of marker names.
+	 */
+	public void setMarkers(final String markers) {
+		final List<String> names = new ArrayList<String>();
+		if (markers != null) {
+			for (String marker : markers.split(",")) {
+				if (StringUtils.isNotBlank(marker)) {
+					names.add(marker.trim());
+				}
+			}
+		}
+		this.markers = names.toArray(new String[names.size()]);
+	}
+
+	public String getMarkers() {
+		return StringUtils.join(markers, ",");
+	}
+
+	/**
+	 * @param onMatch
+	 *            DENY (default) or ACCEPT.
+	 */
+	public void setOnMatch(final String onMatch) {
+		this.onMatch = "ACCEPT".equalsIgnoreCase(StringUtils.trim(onMatch)) ? ACCEPT : DENY;
+	}
+
+	public String getOnMatch() {
+		return onMatch == ACCEPT ? "ACCEPT" : "DENY";
+	}
+
+	/**
+	 * @param threshold
+	 *            calls at or above this level are not filtered. Default is WARN.
+	 */
+	public void setThreshold(final String threshold) {
+		this.threshold = Level.toLevel(threshold, Level.WARN);
+	}
+
+	public String getThreshold() {
+		return threshold.toString();
+	}
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import com.cisco.oss.foundation.logging.converters.FoundationLoggingPatternConverter;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.EnhancedPatternLayout;
+import org.apache.log4j.Layout;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.pattern.ClassNamePatternConverter;
+import org.apache.log4j.pattern.DatePatternConverter;
+import org.apache.log4j.pattern.FileLocationPatternConverter;
+import org.apache.log4j.pattern.FullLocationPatternConverter;
+import org.apache.log4j.pattern.LevelPatternConverter;
+import org.apache.log4j.pattern.LineLocationPatternConverter;
+import org.apache.log4j.pattern.LineSeparatorPatternConverter;
+import org.apache.log4j.pattern.LiteralPatternConverter;
+import org.apache.log4j.pattern.LoggerPatternConverter;
+import org.apache.log4j.pattern.LoggingEventPatternConverter;
+import org.apache.log4j.pattern.MessagePatternConverter;
+import org.apache.log4j.pattern.MethodLocationPatternConverter;
+import org.apache.log4j.pattern.NDCPatternConverter;
+import org.apache.log4j.pattern.PropertiesPatternConverter;
+import org.apache.log4j.pattern.RelativeTimePatternConverter;
+import org.apache.log4j.pattern.SequenceNumberPatternConverter;
+import org.apache.log4j.pattern.ThreadPatternConverter;
+import org.apache.log4j.pattern.ThrowableInformationPatternConverter;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Which thread bound event fields the appenders behind an async appender
+ * read, so only those are captured on the logging thread. Pattern layouts -
+ * including the marker layouts routed to the appenders - are asked for their
+ * converters; the location, which costs a stack walk, is only captured if
+ * one of them formats it (%F, %L, %M, %C or %l). Appenders whose needs can't
+ * be told (no pattern layout, filters, nested appenders) get the NDC, MDC and
+ * thread name as before, and the location if the LocationInfo property is
+ * set.
+ * <p>
+ * The result is cached until the appenders, their layouts or the marker
+ * layouts change.
+ */
+final class SnapshotFields {
+
+	static final int NDC = 1;
+
+	static final int MDC = 2;
+
+	static final int THREAD_NAME = 4;
+
+	static final int LOCATION = 8;
+
+	/**
+	 * what an appender that doesn't say may read, besides the location.
+	 */
+	private static final int UNKNOWN = NDC | MDC | THREAD_NAME;
+
+	/**
+	 * set if the location is left to the LocationInfo property.
+	 */
+	private static final int UNRESOLVED = 16;
+
+	private volatile Plan plan = null;
+
+	/**
+	 * @return the fields to capture for events appended to the given
+	 *         appenders.
+	 */
+	int fieldsFor(final Appender[] appenders, final boolean locationInfo) {
+		final MarkerLayoutRoutes routes = FoundationLogger.getMarkerLayoutRoutes();
+		Plan current = plan;
+		if (current == null || !current.matches(appenders, routes)) {
+			current = new Plan(appenders, routes);
+			plan = current;
+		}
+		final int fields = current.fields;
+		if ((fields & UNRESOLVED) != 0 && locationInfo) {
+			return (fields & ~UNRESOLVED) | LOCATION;
+		}
+		return fields & ~UNRESOLVED;
+	}
+
+	/**
+	 * Resolve the given lazy fields on the calling thread.
+	 */
+	static void capture(final LoggingEvent event, final int fields) {
+		if ((fields & NDC) != 0) {
+			event.getNDC();
+		}
+		if ((fields & THREAD_NAME) != 0) {
+			event.getThreadName();
+		}
+		if ((fields & MDC) != 0) {
+			event.getMDCCopy();
+		}
+		if ((fields & LOCATION) != 0) {
+			event.getLocationInformation();
+		}
+	}
+
+	static int ofAppender(final Appender appender, final MarkerLayoutRoutes routes) {
+		// nested appenders get the event on another thread, filters may read anything.
+		if (appender instanceof AppenderAttachable || (appender instanceof AppenderSkeleton && ((AppenderSkeleton) appender).getFilter() != null)) {
+			return UNKNOWN | UNRESOLVED;
+		}
+		final Layout layout = appender.getLayout();
+		if (layout == null) {
+			return UNKNOWN | UNRESOLVED;
+		}
+		int fields = ofLayout(layout);
+		for (Layout markerLayout : routes.layoutsOf(appender)) {
+			fields |= ofLayout(markerLayout);
+		}
+		return fields;
+	}
+
+	static int ofLayout(final Layout layout) {
+		final LoggingEventPatternConverter[] converters;
+		if (layout instanceof FoundationLoggingPatternLayout) {
+			converters = ((FoundationLoggingPatternLayout) layout).getPatternConverters();
+		} else if (layout instanceof EnhancedPatternLayout) {
+			converters = parse(((EnhancedPatternLayout) layout).getConversionPattern());
+		} else if (layout instanceof PatternLayout) {
+			converters = parse(((PatternLayout) layout).getConversionPattern());
+		} else {
+			converters = null;
+		}
+		if (converters == null) {
+			return UNKNOWN | UNRESOLVED;
+		}
+		int fields = 0;
+		for (int i = 0; i < converters.length; i++) {
+			fields |= ofConverter(converters[i]);
+		}
+		return fields;
+	}
+
+	private static LoggingEventPatternConverter[] parse(final String pattern) {
+		return pattern == null ? null : new FoundationLoggingPatternConverter(pattern).getPatternConverters();
+	}
+
+	static int ofConverter(final LoggingEventPatternConverter converter) {
+		if (converter instanceof NDCPatternConverter) {
+			return NDC;
+		}
+		if (converter instanceof PropertiesPatternConverter) {
+			return MDC;
+		}
+		if (converter instanceof ThreadPatternConverter) {
+			return THREAD_NAME;
+		}
+		if (converter instanceof FileLocationPatternConverter || converter instanceof LineLocationPatternConverter || converter instanceof MethodLocationPatternConverter
+				|| converter instanceof ClassNamePatternConverter || converter instanceof FullLocationPatternConverter) {
+			return LOCATION;
+		}
+		if (converter instanceof LiteralPatternConverter || converter instanceof DatePatternConverter || converter instanceof LevelPatternConverter || converter instanceof LoggerPatternConverter
+				|| converter instanceof MessagePatternConverter || converter instanceof LineSeparatorPatternConverter || converter instanceof RelativeTimePatternConverter
+				|| converter instanceof SequenceNumberPatternConverter || converter instanceof ThrowableInformationPatternConverter) {
+			return 0;
+		}
+		// the Foundation converters read the message, marker, level, logger and throwable only.
+		if (converter.getClass().getPackage() == FoundationLoggingPatternConverter.class.getPackage()) {
+			return 0;
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * The fields needed by a set of appenders and what they were computed
+	 * from.
+	 */
+	private static final class Plan {
+
+		private final Appender[] appenders;
+
+		private final MarkerLayoutRoutes routes;
+
+		private final Layout[] layouts;
+
+		private final Filter[] filters;
+
+		private final int fields;
+
+		private Plan(final Appender[] appenders, final MarkerLayoutRoutes routes) {
+			this.appenders = appenders;
+			this.routes = routes;
+			this.layouts = new Layout[appenders.length];
+			this.filters = new Filter[appenders.length];
+			int required = 0;
+			for (int i = 0; i < appenders.length; i++) {
+				layouts[i] = appenders[i].getLayout();
+				filters[i] = filterOf(appenders[i]);
+				required |= ofAppender(appenders[i], routes);
+			}
+			this.fields = required;
+		}
+
+		private boolean matches(final Appender[] current, final MarkerLayoutRoutes currentRoutes) {
+			if (current != appenders || currentRoutes != routes) {
+				return false;
+			}
+			for (int i = 0; i < appenders.length; i++) {
+				if (appenders[i].getLayout() != layouts[i] || filterOf(appenders[i]) != filters[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static Filter filterOf(final Appender appender) {
+			return appender instanceof AppenderSkeleton ? ((AppenderSkeleton) appender).getFilter() : null;
+		}
+	}
+
+}
@@ -16,6 +16,7 @@
 
 package com.cisco.oss.foundation.logging.appender;
 
+import com.cisco.oss.foundation.logging.FoundationParameterizedMessage;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
@@ -33,6 +34,11 @@ public class EmptyMessageFilter extends Filter {
 			if(StringUtils.isEmpty((String)event.getMessage())){
 				return Filter.DENY;
 			}
+		}else if(event.getMessage() instanceof FoundationParameterizedMessage){
+			// an empty format can't produce a non empty message - no need to render it.
+			if(StringUtils.isEmpty(((FoundationParameterizedMessage)event.getMessage()).getFormat())){
+				return Filter.DENY;
+			}
 		}
 		return Filter.NEUTRAL;
 	}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging.appender;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+/**
+ * Collapses consecutive identical events - same logger, level, rendered
+ * message and throwable class - written within a window of the first one into
+ * a single "last message repeated N times" line.
+ * <p>
+ * The owning appender writes the summary before the next written event, once
+ * the window ended, before a roll and on close.
+ * <p>
+ * Not thread safe: used under the lock of the owning appender.
+ */
+final class EventDeduplicator {
+
+	private static final String FQCN = EventDeduplicator.class.getName();
+
+	private final long windowMillis;
+
+	/**
+	 * the last event that was actually written.
+	 */
+	private LoggingEvent written = null;
+
+	private String writtenThrowableClass = null;
+
+	private int repeats = 0;
+
+	private LoggingEvent lastRepeat = null;
+
+	EventDeduplicator(final long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * @return true if the event repeats the last written event within the
+	 *         window. The event is counted and should not be written.
+	 */
+	boolean absorb(final LoggingEvent event) {
+		if (written == null || event.timeStamp - written.timeStamp > windowMillis) {
+			return false;
+		}
+		if (!event.getLevel().equals(written.getLevel()) || !equals(event.getLoggerName(), written.getLoggerName())) {
+			return false;
+		}
+		if (!equals(event.getRenderedMessage(), written.getRenderedMessage()) || !equals(throwableClass(event), writtenThrowableClass)) {
+			return false;
+		}
+		repeats++;
+		lastRepeat = event;
+		return true;
+	}
+
+	/**
+	 * remember the event that was just written.
+	 */
+	void written(final LoggingEvent event) {
+		written = event;
+		writtenThrowableClass = throwableClass(event);
+		repeats = 0;
+		lastRepeat = null;
+	}
+
+	/**
+	 * @return true if there are repeats and the window of the last written
+	 *         event ended - no later event can be absorbed.
+	 */
+	boolean isExpired(final long now) {
+		return repeats > 0 && now - written.timeStamp > windowMillis;
+	}
+
+	/**
+	 * @return the summary of the repeats of the last written event, or null
+	 *         if there were none. Either way the pending state is cleared.
+	 */
+	LoggingEvent takeSummary() {
+		LoggingEvent summary = null;
+		if (repeats > 0) {
+			summary = new LoggingEvent(FQCN, Logger.getLogger(lastRepeat.getLoggerName()), lastRepeat.timeStamp, lastRepeat.getLevel(), "Last message repeated " + repeats + " times", null);
+		}
+		written = null;
+		writtenThrowableClass = null;
+		repeats = 0;
+		lastRepeat = null;
+		return summary;
+	}
+
+	private static String throwableClass(final LoggingEvent event) {
+		final ThrowableInformation throwableInformation = event.getThrowableInformation();
+		if (throwableInformation == null) {
+			return null;
+		}
+		final Throwable throwable = throwableInformation.getThrowable();
+		if (throwable != null) {
+			return throwable.getClass().getName();
+		}
+		// deserialized events only have the string representation.
+		final String[] rep = throwableInformation.getThrowableStrRep();
+		return rep != null && rep.length > 0 ? rep[0] : null;
+	}
+
+	private static boolean equals(final Object first, final Object second) {
+		return first == null ? second == null : first.equals(second);
+	}
+
+}
@@ -15,9 +15,15 @@
  */
 package com.cisco.oss.foundation.logging.appender;
 
+import com.cisco.oss.foundation.logging.BatchAwareAppender;
+import com.cisco.oss.foundation.logging.FoundationAppenderSupport;
 import com.cisco.oss.foundation.logging.FoundationLof4jLoggingEvent;
+import com.cisco.oss.foundation.logging.FoundationLoggingPatternLayout;
+import com.cisco.oss.foundation.logging.LayoutAwareAppender;
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
 import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.helpers.OptionConverter;
 import org.apache.log4j.helpers.SynchronizedCountingQuietWriter;
@@ -25,9 +31,18 @@ import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This appender is responsible for writing log events to file, and rolling
@@ -114,6 +129,14 @@ import java.util.Locale;
  * property is not set, no message will be written to the top of new log files.
  * Messages are appended at {@link org.apache.log4j.Level#ALL} using the root
  * logger.
+ * <h2>Repeated messages</h2>
+ * <p>
+ * Setting the <tt>DeduplicationWindow</tt> property to a number of
+ * milliseconds (default 0 - disabled) collapses consecutive identical events
+ * (same logger, level, message and throwable class) written within that
+ * window of the first one into a single &quot;Last message repeated N
+ * times&quot; line. The pending count is written when a different event
+ * arrives, shortly after the window ends, before a file roll and on close.
  * <h2>Roll on start-up</h2>
  * <p>
  * The appender can be configured to roll the most recent backup file,
@@ -228,7 +251,7 @@ import java.util.Locale;
  * @version 2.7
  * @see org.apache.log4j.DailyRollingFileAppender
  */
-public class FoundationFileRollingAppender extends FileAppender {
+public class FoundationFileRollingAppender extends FileAppender implements LayoutAwareAppender, BatchAwareAppender {
 
 	/**
 	 * Properties bean to facilitate property sharing between objects.
@@ -255,6 +278,87 @@ public class FoundationFileRollingAppender extends FileAppender {
 
 	private boolean addApplicationState = true;
 
+	/**
+	 * When true events are formatted into buffers owned by this appender and
+	 * written to the file without creating the intermediate String.
+	 */
+	private boolean garbageFree = false;
+
+	/**
+	 * buffers are dropped if an unusually large event made them grow beyond this size.
+	 */
+	private static final int MAX_REUSED_BUFFER_SIZE = 8192;
+
+	private static final int DEFAULT_BUFFER_SIZE = 256;
+
+	/**
+	 * reused format buffers, guarded by the append lock.
+	 */
+	private StringBuffer formatBuffer = null;
+
+	private char[] charBuffer = null;
+
+	/**
+	 * Serializes the appends instead of the synchronized
+	 * AppenderSkeleton.doAppend, so virtual threads waiting for the file I/O
+	 * of another thread don't pin their carrier thread. Taken before the
+	 * appender monitor, which log4j still uses while the file is switched.
+	 */
+	private final ReentrantLock appendLock = new ReentrantLock();
+
+	private static final long DEFAULT_BATCH_FLUSH_SIZE = 64 * 1024;
+
+	/**
+	 * the shortest interval in milliseconds between checks for repeats whose
+	 * window ended.
+	 */
+	private static final long MIN_REPEAT_SUMMARY_PERIOD = 100;
+
+	/**
+	 * characters written during a batch before it is flushed anyway.
+	 */
+	private long batchFlushSize = DEFAULT_BATCH_FLUSH_SIZE;
+
+	/**
+	 * events at or above it are flushed right away, even with buffered IO or
+	 * during a batch. null to flush as configured.
+	 */
+	private Level flushLevel = null;
+
+	/**
+	 * the number of open batches, guarded by the append lock. Events aren't
+	 * flushed one by one while a batch is open.
+	 */
+	private int openBatches = 0;
+
+	/**
+	 * the character count of the writer at the last flush during a batch,
+	 * guarded by the append lock.
+	 */
+	private long flushedCount = 0;
+
+	/**
+	 * 0 disables the deduplication of repeated events.
+	 */
+	private long deduplicationWindow = 0;
+
+	/**
+	 * guarded by the appender lock, null if deduplication is disabled.
+	 */
+	private EventDeduplicator deduplicator = null;
+
+	/**
+	 * writes the pending repeats once the window ended without another
+	 * event. Guarded by this, null if deduplication is disabled.
+	 */
+	private Timer repeatSummaryTimer = null;
+
+	/**
+	 * the channel of the open file, for the records encoded by the caller.
+	 * Replaced when the file is (re)opened, guarded by the append lock.
+	 */
+	private FileChannel fileChannel = null;
+
 	public boolean isAddApplicationState() {
 		return addApplicationState;
 	}
@@ -263,6 +367,59 @@ public class FoundationFileRollingAppender extends FileAppender {
 		this.addApplicationState = addApplicationState;
 	}
 
+	public boolean getGarbageFree() {
+		return garbageFree;
+	}
+
+	/**
+	 * Enable the garbage free mode: events formatted by a
+	 * FoundationLoggingPatternLayout are written through reused buffers.
+	 */
+	public void setGarbageFree(final boolean garbageFree) {
+		this.garbageFree = garbageFree;
+	}
+
+	public long getDeduplicationWindow() {
+		return deduplicationWindow;
+	}
+
+	/**
+	 * @param deduplicationWindow
+	 *            window in milliseconds in which consecutive identical events
+	 *            are collapsed to a single line, 0 to disable.
+	 */
+	public void setDeduplicationWindow(final long deduplicationWindow) {
+		this.deduplicationWindow = deduplicationWindow;
+	}
+
+	public String getBatchFlushSize() {
+		return Long.toString(batchFlushSize);
+	}
+
+	/**
+	 * @param value
+	 *            characters written during an async batch after which the
+	 *            file is flushed without waiting for the end of the batch,
+	 *            e.g. 64KB. 0 flushes only at the end of the batch.
+	 */
+	public void setBatchFlushSize(final String value) {
+		batchFlushSize = OptionConverter.toFileSize(value, DEFAULT_BATCH_FLUSH_SIZE);
+	}
+
+	public String getFlushLevel() {
+		return flushLevel == null ? null : flushLevel.toString();
+	}
+
+	/**
+	 * @param value
+	 *            the level, e.g. ERROR, at which an event is flushed to the
+	 *            file as soon as it is written, so the last error before a
+	 *            crash isn't left in a buffer.
+	 */
+	public void setFlushLevel(final String value) {
+		flushLevel = value == null || value.trim().length() == 0 ? null : OptionConverter.toLevel(value.trim(), Level.ERROR);
+	}
+
 	public FoundationFileRollingAppender() {
 		super();
 	}
@@ -314,12 +471,33 @@ public class FoundationFileRollingAppender extends FileAppender {
 	 *
 	 * @see org.apache.log4j.FileAppender#activateOptions()
 	 */
-	public synchronized final void activateOptions() {
+	public final void activateOptions() {
+		this.appendLock.lock();
+		try {
+			this.activate();
+		} finally {
+			this.appendLock.unlock();
+		}
+	}
+
+	private synchronized void activate() {
 		this.deactivateOptions();
 		super.activateOptions();
 		if (getFilterEmptyMessages()) {
 			addFilter(new EmptyMessageFilter());
 		}
+		this.deduplicator = this.deduplicationWindow > 0 ? new EventDeduplicator(this.deduplicationWindow) : null;
+		if (this.deduplicator != null) {
+			final long period = Math.max(this.deduplicationWindow, MIN_REPEAT_SUMMARY_PERIOD);
+			this.repeatSummaryTimer = new Timer("FoundationFileRollingAppender-RepeatSummary-" + this.getName(), true);
+			this.repeatSummaryTimer.schedule(new TimerTask() {
+
+				@Override
+				public void run() {
+					writeExpiredRepeatSummary();
+				}
+			}, period, period);
+		}
 
 		// rollables
 		this.setFileRollable(new CompositeRoller(this, this.getProperties()));
@@ -353,7 +531,19 @@ public class FoundationFileRollingAppender extends FileAppender {
 	 *
 	 * @see org.apache.log4j.WriterAppender#close()
 	 */
-	public synchronized final void close() {
+	public final void close() {
+		this.appendLock.lock();
+		try {
+			this.closeAppender();
+		} finally {
+			this.appendLock.unlock();
+		}
+	}
+
+	private synchronized void closeAppender() {
+		if (!this.closed) {
+			this.writeRepeatSummary();
+		}
 		this.deactivateOptions();
 		super.close();
 	}
@@ -684,6 +874,8 @@ public class FoundationFileRollingAppender extends FileAppender {
 	 * @see org.apache.log4j.FileAppender#closeFile()
 	 */
 	protected final void closeFile() {
+		// the repeats belong to the file that is closed (e.g. on roll)
+		this.writeRepeatSummary();
 		/*
 		 * The Log4J 1.2.15 WriterAppender doesn't write footers on file roll,
 		 * so do it here.
@@ -693,6 +885,19 @@ public class FoundationFileRollingAppender extends FileAppender {
 		 * closeWriter() duplicates closeFile(), so we can take our pick
 		 */
 		super.closeWriter();
+		this.fileChannel = null;
+	}
+
+	/**
+	 * Keeps the channel of the file so encoded records can be written to it
+	 * directly.
+	 * 
+	 * @see org.apache.log4j.WriterAppender#createWriter(java.io.OutputStream)
+	 */
+	@Override
+	protected OutputStreamWriter createWriter(final OutputStream os) {
+		this.fileChannel = os instanceof FileOutputStream ? ((FileOutputStream) os).getChannel() : null;
+		return super.createWriter(os);
 	}
 
 	/*
@@ -706,40 +911,329 @@ public class FoundationFileRollingAppender extends FileAppender {
 		super.qw = countingQuietWriter;
 	}
 
+	/**
+	 * Same as AppenderSkeleton.doAppend, serialized by the append lock
+	 * instead of the appender monitor.
+	 * 
+	 * @see org.apache.log4j.AppenderSkeleton#doAppend(org.apache.log4j.spi.LoggingEvent)
+	 */
+	@Override
+	public void doAppend(final LoggingEvent event) {
+		this.doAppend(event, null);
+	}
+
+	/**
+	 * Same as doAppend, formatting the event with the given layout instead of
+	 * the appender layout - e.g. the layout of the event marker.
+	 * 
+	 * @param eventLayout
+	 *            the layout to use, null for the appender layout.
+	 */
+	@Override
+	public void doAppend(final LoggingEvent event, final Layout eventLayout) {
+		this.appendLock.lock();
+		try {
+			if (this.closed) {
+				LogLog.error("Attempted to append to closed appender named [" + this.name + "].");
+				return;
+			}
+			if (FoundationAppenderSupport.isAccepted(this, event) && this.checkEntryConditions()) {
+				this.subAppend(event, eventLayout == null ? this.layout : eventLayout);
+			}
+		} finally {
+			this.appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Write records that were already formatted and encoded - in the file
+	 * encoding - by the logging threads, in one gathering write. The file is
+	 * rolled first if needed, using the given time stamp, and what was written
+	 * through the writer is flushed so the order is kept. The filters,
+	 * deduplication and flush settings of this appender don't apply to the
+	 * records.
+	 * 
+	 * @param regions
+	 *            the encoded records, written from their position to their
+	 *            limit.
+	 * @param count
+	 *            the number of regions to write.
+	 * @param timeStamp
+	 *            the time stamp of the first record.
+	 */
+	public void writeEncoded(final ByteBuffer[] regions, final int count, final long timeStamp) {
+		this.appendLock.lock();
+		try {
+			if (this.closed) {
+				LogLog.error("Attempted to append to closed appender named [" + this.name + "].");
+				return;
+			}
+			if (!this.checkEntryConditions()) {
+				return;
+			}
+			this.rollFile(new LoggingEvent(Logger.class.getName(), Logger.getRootLogger(), timeStamp, Level.ALL, "encoded records", null));
+			this.qw.flush();
+
+			final FileChannel channel = this.fileChannel;
+			if (channel == null) {
+				this.errorHandler.error("No file channel to write encoded records to in appender named [" + this.name + "].");
+				return;
+			}
+			long written = 0;
+			int first = 0;
+			while (first < count) {
+				written += channel.write(regions, first, count - first);
+				while (first < count && !regions[first].hasRemaining()) {
+					first++;
+				}
+			}
+			this.getProperties().setBytesWrittenCount(this.getProperties().getBytesWrittenCount() + written);
+		} catch (IOException e) {
+			if (e instanceof InterruptedIOException) {
+				Thread.currentThread().interrupt();
+			}
+			this.errorHandler.error("Failed to write encoded records.", e, ErrorCode.WRITE_FAILURE);
+		} finally {
+			this.appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Stop flushing per event until the matching endBatch. Called by the async
+	 * dispatchers before they hand over a batch.
+	 */
+	@Override
+	public void beginBatch() {
+		this.appendLock.lock();
+		try {
+			if (this.openBatches++ == 0 && this.qw instanceof SynchronizedCountingQuietWriter) {
+				this.flushedCount = ((SynchronizedCountingQuietWriter) this.qw).getCount();
+			}
+		} finally {
+			this.appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Flush once for all the events of the batch.
+	 */
+	@Override
+	public void endBatch() {
+		this.appendLock.lock();
+		try {
+			if (this.openBatches > 0 && --this.openBatches == 0 && this.immediateFlush && this.qw != null && !this.closed) {
+				this.qw.flush();
+			}
+		} finally {
+			this.appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Per event flushing as configured, except during a batch where the file
+	 * is only flushed when the batch wrote more than the batch flush size.
+	 * Events at or above the flush level are always flushed.
+	 * Called holding the append lock.
+	 */
+	@Override
+	protected boolean shouldFlush(final LoggingEvent event) {
+		if (this.flushLevel != null && event.getLevel().isGreaterOrEqual(this.flushLevel)) {
+			return true;
+		}
+		if (this.openBatches == 0 || !this.immediateFlush) {
+			return super.shouldFlush(event);
+		}
+		if (this.batchFlushSize <= 0 || !(this.qw instanceof SynchronizedCountingQuietWriter)) {
+			return false;
+		}
+		final long count = ((SynchronizedCountingQuietWriter) this.qw).getCount();
+		// the count restarts when the file rolls.
+		final long unflushed = count < this.flushedCount ? count : count - this.flushedCount;
+		if (unflushed < this.batchFlushSize) {
+			return false;
+		}
+		this.flushedCount = count;
+		return true;
+	}
+
 	/**
 	 * Responsible for executing file rolls as and when required, in addition to
 	 * delegating to the super class to perform the actual append operation.
-	 * Synchronized for safety during enforced file roll.
+	 * Called holding the append lock, which keeps enforced file rolls safe.
 	 * 
 	 * @see org.apache.log4j.WriterAppender#subAppend(org.apache.log4j.spi.LoggingEvent)
 	 */
 	@Override
 	protected final void subAppend(final LoggingEvent event) {
+		this.subAppend(event, this.layout);
+	}
+
+	private void subAppend(final LoggingEvent event, final Layout eventLayout) {
 		if (event instanceof ScheduledFileRollEvent) {
-			// the scheduled append() call has been made by a different thread
-			synchronized (this) {
+			// the scheduled append() call has been made by a different thread.
+			// it is interrupted when the appender is closed.
+			try {
+				this.appendLock.lockInterruptibly();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			try {
 				if (this.closed) {
 					// just consume the event
 					return;
 				}
 				this.rollFile(event);
+			} finally {
+				this.appendLock.unlock();
 			}
 		} else if (event instanceof FileRollEvent) {
 			// definitely want to avoid rolling here whilst a file roll event is still being handled
 			super.subAppend(event);
 		} else {
 
-			if(event instanceof FoundationLof4jLoggingEvent){
-				FoundationLof4jLoggingEvent foundationLof4jLoggingEvent = (FoundationLof4jLoggingEvent)event;
-				foundationLof4jLoggingEvent.setAppenderName(this.getName());
-			}
-			
 			this.rollFile(event);
-			super.subAppend(event);
+
+			final EventDeduplicator eventDeduplicator = this.deduplicator;
+			if (eventDeduplicator != null) {
+				if (eventDeduplicator.absorb(event)) {
+					return;
+				}
+				// keep the order - the repeats of the previous event go first
+				this.writeRepeatSummary();
+			}
+
+			this.writeEvent(event, eventLayout);
+
+			if (eventDeduplicator != null) {
+				eventDeduplicator.written(event);
+			}
+		}
+	}
+
+	private void writeEvent(final LoggingEvent event, final Layout eventLayout) {
+		// the event is shared between appenders - expose our name to the
+		// marker formatters without mutating it.
+		final String previousAppender = FoundationLof4jLoggingEvent.beginAppend(this.getName());
+		try {
+			if (garbageFree && eventLayout instanceof FoundationLoggingPatternLayout && this.qw instanceof SynchronizedCountingQuietWriter) {
+				this.subAppendGarbageFree(event, (FoundationLoggingPatternLayout) eventLayout);
+			} else if (eventLayout == this.layout) {
+				super.subAppend(event);
+			} else {
+				this.subAppendWithLayout(event, eventLayout);
+			}
+		} finally {
+			FoundationLof4jLoggingEvent.endAppend(previousAppender);
+		}
+	}
+
+	/**
+	 * Same as WriterAppender.subAppend with a layout other than the appender
+	 * layout.
+	 */
+	private void subAppendWithLayout(final LoggingEvent event, final Layout eventLayout) {
+		this.qw.write(eventLayout.format(event));
+
+		if (eventLayout.ignoresThrowable()) {
+			final String[] throwableLines = event.getThrowableStrRep();
+			if (throwableLines != null) {
+				for (int i = 0; i < throwableLines.length; i++) {
+					this.qw.write(throwableLines[i]);
+					this.qw.write(Layout.LINE_SEP);
+				}
+			}
+		}
+
+		if (this.shouldFlush(event)) {
+			this.qw.flush();
+		}
+	}
+
+	/**
+	 * write the "last message repeated" line of repeats whose window ended,
+	 * so the count of a burst followed by silence isn't held back until the
+	 * next event. Called by the repeat summary timer.
+	 */
+	private void writeExpiredRepeatSummary() {
+		this.appendLock.lock();
+		try {
+			final EventDeduplicator eventDeduplicator = this.deduplicator;
+			if (this.closed || this.qw == null || eventDeduplicator == null || !eventDeduplicator.isExpired(System.currentTimeMillis())) {
+				return;
+			}
+			this.writeRepeatSummary();
+		} catch (RuntimeException e) {
+			LogLog.error("Failed to write the repeat summary of appender named [" + this.name + "].", e);
+		} finally {
+			this.appendLock.unlock();
 		}
 	}
 
+	/**
+	 * write the "last message repeated" line of the pending repeats, if any.
+	 */
+	private void writeRepeatSummary() {
+		final EventDeduplicator eventDeduplicator = this.deduplicator;
+		if (eventDeduplicator == null) {
+			return;
+		}
+		final LoggingEvent summary = eventDeduplicator.takeSummary();
+		if (summary != null && this.qw != null) {
+			this.writeEvent(summary, this.layout);
+		}
+	}
+
+	/**
+	 * Same as WriterAppender.subAppend but formats into the reused buffers and
+	 * writes the characters directly. FoundationLoggingPatternLayout handles
+	 * the throwable itself so there is nothing else to write.
+	 */
+	private void subAppendGarbageFree(final LoggingEvent event, final FoundationLoggingPatternLayout eventLayout) {
+		StringBuffer buf = this.formatBuffer;
+		if (buf == null) {
+			buf = new StringBuffer(DEFAULT_BUFFER_SIZE);
+		} else {
+			buf.setLength(0);
+		}
+		eventLayout.format(event, buf);
+
+		final int length = buf.length();
+		char[] chars = this.charBuffer;
+		if (chars == null || chars.length < length) {
+			chars = new char[Math.max(length, DEFAULT_BUFFER_SIZE)];
+		}
+		buf.getChars(0, length, chars, 0);
+		((SynchronizedCountingQuietWriter) this.qw).write(chars, 0, length);
+
+		// don't hold on to buffers that grew because of a huge event.
+		this.formatBuffer = buf.capacity() > MAX_REUSED_BUFFER_SIZE ? null : buf;
+		this.charBuffer = chars.length > MAX_REUSED_BUFFER_SIZE ? null : chars;
+
+		if (this.shouldFlush(event)) {
+			this.qw.flush();
+		}
+	}
+
+	/**
+	 * Stop the compressor once the queued backup files were compressed or the
+	 * deadline passed. Used on shutdown before the appender is closed.
+	 * 
+	 * @param deadlineNanos
+	 *            the deadline, as {@link System#nanoTime()}.
+	 * @return the number of backup files left uncompressed.
+	 */
+	public int finishCompression(final long deadlineNanos) {
+		final LogFileCompressor compressor = this.getLogFileCompressor();
+		return compressor == null ? 0 : compressor.end(deadlineNanos);
+	}
+
 	private synchronized void deactivateOptions() {
+		// repeat summary
+		if (this.repeatSummaryTimer != null) {
+			this.repeatSummaryTimer.cancel();
+			this.repeatSummaryTimer = null;
+		}
 		// scavenger
 		final LogFileScavenger logFileScavenger = this.getLogFileScavenger();
 		if (logFileScavenger != null) {
@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.InterruptedIOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -166,6 +167,36 @@ final class LogFileCompressor implements Runnable, FileRollEventListener {
     this.threadRef = null;
   }
 
+  /**
+   * Stops the compressor once the queued files were compressed or the
+   * deadline passed. A compressor still running at the deadline is left to
+   * finish on its (daemon) thread and is not waited for again.
+   *
+   * @param deadlineNanos
+   *          the deadline, as {@link System#nanoTime()}.
+   * @return the number of files still queued.
+   */
+  final int end(final long deadlineNanos) {
+    final Thread thread = this.threadRef;
+    this.keepRunning.set(false);
+    this.threadRef = null;
+    if (thread == null) {
+      return 0;
+    }
+    synchronized (this.queue) {
+      this.queue.notifyAll();
+    }
+    final long remaining = deadlineNanos - System.nanoTime();
+    if (remaining > 0) {
+      try {
+        thread.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return thread.isAlive() ? this.getQueueSize() : 0;
+  }
+
   final void compress(final File file) {
     if (this.isRunning()) {
       synchronized (this.queue) {
@@ -31,32 +31,17 @@ import java.io.File;
  */
 final class TimeBasedRoller extends AbstractRoller implements FileRollable {
 
-  private final class TimeSample {
-    private final long sample;
-
-    TimeSample(long timeInMillis) {
-      super();
-      this.sample = timeInMillis;
-    }
-
-    long getMillis() {
-      return this.sample;
-    }
-
-    boolean isAtOrAfter(long timeInMillis) {
-      return this.sample >= timeInMillis;
-    }
-
-    boolean isAtOrAfter(TimeSample other) {
-      return (other != null) ? (this.sample >= other.sample) : true;
-    }
-  }
+  /**
+   * Marks a time sample that was not taken yet. Samples are kept as plain
+   * longs so sampling each event does not allocate.
+   */
+  private static final long NO_SAMPLE = Long.MIN_VALUE;
 
   private final TimeBasedRollStrategy rollStrategy;
 
-  private TimeSample currentSample;
+  private long currentSample;
 
-  private TimeSample previousSample;
+  private long previousSample = NO_SAMPLE;
 
   TimeBasedRoller(final FoundationFileRollingAppender rollingAppender,
       final AppenderRollingProperties appenderRollingProperties) {
@@ -73,7 +58,7 @@ final class TimeBasedRoller extends AbstractRoller implements FileRollable {
     LogLog.debug("Appender [" + rollingAppender.getName() + "] to be rolled "
         + rollStrategyEnum.toString());
     this.rollStrategy = rollStrategyEnum;
-    this.currentSample = new TimeSample(System.currentTimeMillis());
+    this.currentSample = System.currentTimeMillis();
     this.initNextRolloverTime();
   }
 
@@ -105,19 +90,19 @@ final class TimeBasedRoller extends AbstractRoller implements FileRollable {
   }
 
   private void takeTimeSample(final LoggingEvent loggingEvent) {
-    this.currentSample = new TimeSample(loggingEvent.getTimeStamp());
+    this.currentSample = loggingEvent.getTimeStamp();
   }
 
   private long sampledTime() {
-    if (this.previousSample == null) {
+    if (this.previousSample == NO_SAMPLE) {
       final File file = super.getAppender().getIoFile();
       if (FileHelper.getInstance().isReadable(file)) {
-        this.previousSample = new TimeSample(file.lastModified());
+        this.previousSample = file.lastModified();
       } else {
         this.previousSample = this.currentSample;
       }
     }
-    return this.previousSample.getMillis();
+    return this.previousSample;
   }
 
   /**
@@ -126,9 +111,8 @@ final class TimeBasedRoller extends AbstractRoller implements FileRollable {
    * precede the timestamp of the last logging event to be appended.
    */
   private void storeTimeSample() {
-    if (this.currentSample.isAtOrAfter(this.previousSample)) {
+    if (this.currentSample >= this.previousSample) {
       this.previousSample = this.currentSample;
-      this.currentSample = null;
     }
   }
 
@@ -141,7 +125,7 @@ final class TimeBasedRoller extends AbstractRoller implements FileRollable {
   }
 
   private boolean isRolloverDue(final long nextRolloverTime) {
-    return this.currentSample.isAtOrAfter(nextRolloverTime);
+    return this.currentSample >= nextRolloverTime;
   }
 
   private void initNextRolloverTime() {
@@ -171,7 +155,7 @@ final class TimeBasedRoller extends AbstractRoller implements FileRollable {
   }
 
   private void updateNextRolloverTime() {
-    final long nowInMillis = this.currentSample.getMillis();
+    final long nowInMillis = this.currentSample;
     final long nextRollMillis = this.rollStrategy
         .nextRollTimeInMillis(nowInMillis);
     this.setNextRolloverTimeMillis(nextRollMillis);
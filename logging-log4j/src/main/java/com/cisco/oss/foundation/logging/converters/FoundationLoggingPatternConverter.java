@@ -146,6 +146,13 @@ public class FoundationLoggingPatternConverter extends org.apache.log4j.helpers.
 		}
 	}
 
+	/**
+	 * @return the converters of the pattern, in order.
+	 */
+	public LoggingEventPatternConverter[] getPatternConverters() {
+		return patternConverters.clone();
+	}
+
 	/**
 	 * Will return false if any of the conversion specifiers in the pattern
 	 * handles {@link Exception Exceptions}.
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.apache.log4j;
+
+import org.apache.log4j.spi.LoggerRepository;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Gives a hierarchy living outside of the log4j package access to the
+ * package private linking state of a {@link Category}: its repository and its
+ * parent. The parent is updated with a compare and set so concurrent logger
+ * creation can link loggers without a hierarchy wide lock.
+ */
+public final class FoundationCategoryLinks {
+
+	private static final AtomicReferenceFieldUpdater<Category, Category> PARENT = AtomicReferenceFieldUpdater.newUpdater(Category.class, Category.class, "parent");
+
+	private FoundationCategoryLinks() {
+	}
+
+	/**
+	 * set the repository of a category that was not published yet.
+	 */
+	public static void setHierarchy(final Category category, final LoggerRepository repository) {
+		category.setHierarchy(repository);
+	}
+
+	/**
+	 * set the parent of a category that was not published yet.
+	 */
+	public static void setParent(final Category category, final Category parent) {
+		PARENT.set(category, parent);
+	}
+
+	/**
+	 * Make <code>candidate</code> the parent of <code>category</code> unless
+	 * the current parent is already at least as close. Both the current parent
+	 * and the candidate must be ancestors of the category (or the root) so the
+	 * closer one is the one with the longer name.
+	 *
+	 * @return true if the parent was changed.
+	 */
+	public static boolean linkToCloserParent(final Category category, final Category candidate, final Category root) {
+		while (true) {
+			final Category current = category.parent;
+			if (current == candidate || candidate == root) {
+				return false;
+			}
+			if (current != null && current != root && current.getName().length() >= candidate.getName().length()) {
+				return false;
+			}
+			if (PARENT.compareAndSet(category, current, candidate)) {
+				return true;
+			}
+		}
+	}
+
+}
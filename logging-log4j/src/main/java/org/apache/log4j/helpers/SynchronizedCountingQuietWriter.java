@@ -22,11 +22,13 @@ import org.apache.log4j.spi.ErrorHandler;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.Writer;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Counts the number of characters written. Access to the count is synchronized
- * using the {@link java.io.Writer}'s lock. This is necessary because the count is
- * maintained as a <tt>long</tt>.
+ * Counts the number of characters written. Access to the count is guarded by
+ * a {@link ReentrantLock} rather than the {@link java.io.Writer}'s monitor so a
+ * virtual thread blocked on file I/O doesn't pin its carrier thread. This is
+ * necessary because the count is maintained as a <tt>long</tt>.
  *
  * @author <a href="mailto:simon_park_mail AT yahoo DOT co DOT uk">Simon
  *         Park</a>
@@ -37,6 +39,8 @@ public final class SynchronizedCountingQuietWriter extends QuietWriter {
 
   private long charCount;
 
+  private final ReentrantLock writeLock = new ReentrantLock();
+
   public SynchronizedCountingQuietWriter(final Writer writer,
       final ErrorHandler eh) {
     super(writer, eh);
@@ -54,10 +58,13 @@ public final class SynchronizedCountingQuietWriter extends QuietWriter {
       return;
     }
     try {
-      synchronized (lock) {
+      writeLock.lock();
+      try {
         final int length = string.length();
         out.write(string, 0, length);
         this.charCount += length;
+      } finally {
+        writeLock.unlock();
       }
     } catch (IOException e) {
       if (e instanceof InterruptedIOException) {
@@ -68,10 +75,36 @@ public final class SynchronizedCountingQuietWriter extends QuietWriter {
     }
   }
 
+  /**
+   * Write a range of a character array. Used by the garbage free mode of the
+   * FoundationFileRollingAppender to write reused buffers without creating a
+   * String.
+   */
+  public final void write(final char[] chars, final int offset, final int length) {
+    try {
+      writeLock.lock();
+      try {
+        out.write(chars, offset, length);
+        this.charCount += length;
+      } finally {
+        writeLock.unlock();
+      }
+    } catch (IOException e) {
+      if (e instanceof InterruptedIOException) {
+        Thread.currentThread().interrupt();
+      }
+      errorHandler.error("Failed to write [" + new String(chars, offset, length) + "].", e,
+          ErrorCode.WRITE_FAILURE);
+    }
+  }
+
   public void flush() {
     try {
-      synchronized (lock) {
+      writeLock.lock();
+      try {
         out.flush();
+      } finally {
+        writeLock.unlock();
       }
     } catch (IOException e) {
       errorHandler.error("Failed to flush writer,", e, ErrorCode.FLUSH_FAILURE);
@@ -79,20 +112,29 @@ public final class SynchronizedCountingQuietWriter extends QuietWriter {
   }
 
   public void close() throws IOException {
-    synchronized (lock) {
+    writeLock.lock();
+    try {
       out.close();
+    } finally {
+      writeLock.unlock();
     }
   }
 
   public final long getCount() {
-    synchronized (lock) {
+    writeLock.lock();
+    try {
       return charCount;
+    } finally {
+      writeLock.unlock();
     }
   }
 
   public final void setCount(final long count) {
-    synchronized (lock) {
+    writeLock.lock();
+    try {
       this.charCount = count;
+    } finally {
+      writeLock.unlock();
     }
   }
 }
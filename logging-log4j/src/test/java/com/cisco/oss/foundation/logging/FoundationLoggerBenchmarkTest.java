@@ -0,0 +1,541 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import com.cisco.oss.foundation.logging.appender.FoundationFileRollingAppender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Hierarchy;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggerRepository;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.RootLogger;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rough micro benchmarks of the FoundationLogger hot paths. They take long,
+ * print their numbers and depend on the machine, so they are skipped unless
+ * run with -Dtest=FoundationLoggerBenchmarkTest -Dfoundation.benchmarks=true.
+ */
+public class FoundationLoggerBenchmarkTest {
+
+	private static final String BENCHMARKS_PROPERTY = "foundation.benchmarks";
+
+	private static final int ITERATIONS = 5000000;
+
+	private static final int HIERARCHY_DEPTH = 30;
+
+	private static final int ALLOCATION_ITERATIONS = 1000000;
+
+	private static final int REGISTRY_THREADS = 32;
+
+	private static final int ASYNC_THREADS = 4, ASYNC_EVENTS = 1000000, ASYNC_BUFFER_SIZE = 1024;
+
+	/**
+	 * 10 * 50 * 100 leaf loggers plus their 510 parents.
+	 */
+	private static final int REGISTRY_TOP = 10, REGISTRY_MIDDLE = 50, REGISTRY_LEAVES = 100;
+
+	@BeforeClass
+	public static void benchmarksEnabled() {
+		Assume.assumeTrue(Boolean.getBoolean(BENCHMARKS_PROPERTY));
+	}
+
+	@Test
+	public void disabledDebugOnDeepHierarchy() {
+
+		// only the top of the hierarchy has a level - every lookup walks up 30 parents.
+		// each intermediate logger must exist, otherwise log4j links the deepest logger directly to the top.
+		Logger top = Logger.getLogger("benchmark.level");
+		top.setLevel(Level.INFO);
+		StringBuilder name = new StringBuilder("benchmark.level");
+		Logger deep = top;
+		for (int i = 0; i < HIERARCHY_DEPTH; i++) {
+			name.append(".n").append(i);
+			deep = Logger.getLogger(name.toString());
+		}
+
+		assertFalse(deep.isDebugEnabled());
+		assertTrue(deep.isInfoEnabled());
+
+		// warm up both paths
+		runCached(deep);
+		runUncached(deep);
+
+		long start = System.nanoTime();
+		int cachedHits = runCached(deep);
+		long cached = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int uncachedHits = runUncached(deep);
+		long uncached = System.nanoTime() - start;
+
+		System.out.println("isDebugEnabled on depth " + HIERARCHY_DEPTH + " - cached mask: " + ((double) cached / ITERATIONS) + " ns/op, parent walk: " + ((double) uncached / ITERATIONS) + " ns/op");
+
+		assertTrue(cachedHits == 0 && uncachedHits == 0);
+		top.setLevel(null);
+	}
+
+	@Test
+	public void garbageFreeFileAppender() throws Exception {
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+		Assume.assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported() && allocationMXBean.isThreadAllocatedMemoryEnabled());
+
+		long regular = allocatedBytesPerCall(allocationMXBean, false);
+		long garbageFree = allocatedBytesPerCall(allocationMXBean, true);
+
+		System.out.println("file appender allocation - regular: " + regular + " bytes/call, garbage free: " + garbageFree + " bytes/call");
+		assertTrue(garbageFree < regular);
+	}
+
+	private long allocatedBytesPerCall(com.sun.management.ThreadMXBean allocationMXBean, boolean garbageFree) throws Exception {
+		File file = new File("target/garbageFree-" + garbageFree + ".log");
+		file.delete();
+
+		FoundationFileRollingAppender appender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), file.getPath());
+		appender.setName("garbageFree" + garbageFree);
+		appender.setGarbageFree(garbageFree);
+		appender.setRollOnStartup(false);
+		appender.setBufferedIO(true);
+		appender.activateOptions();
+
+		Logger logger = Logger.getLogger("benchmark.garbage.free." + garbageFree);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+		logger.addAppender(appender);
+
+		try {
+			// warm up
+			for (int i = 0; i < ALLOCATION_ITERATIONS / 10; i++) {
+				logger.info("allocation test");
+			}
+
+			long threadId = Thread.currentThread().getId();
+			long before = allocationMXBean.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+				logger.info("allocation test");
+			}
+			long after = allocationMXBean.getThreadAllocatedBytes(threadId);
+			return (after - before) / ALLOCATION_ITERATIONS;
+		} finally {
+			logger.removeAllAppenders();
+			logger.setLevel(null);
+			logger.setAdditivity(true);
+			file.delete();
+		}
+	}
+
+	@Test
+	public void concurrentLoggerCreation() throws Exception {
+		LoggerRepository foundationRepository = LogManager.getLoggerRepository();
+		assertTrue(foundationRepository instanceof FoundationLogHierarchy);
+		Hierarchy log4jHierarchy = new Hierarchy(new RootLogger(Level.DEBUG));
+		FoundationLogFactory factory = new FoundationLogFactory();
+
+		// warm up both registries
+		createLoggers(foundationRepository, factory, "warmup.foundation");
+		createLoggers(log4jHierarchy, factory, "warmup.log4j");
+
+		long log4j = createLoggers(log4jHierarchy, factory, "registry.benchmark");
+		long foundation = createLoggers(foundationRepository, factory, "registry.benchmark");
+
+		int count = REGISTRY_TOP * REGISTRY_MIDDLE * REGISTRY_LEAVES;
+		System.out.println("creating " + count + " loggers from " + REGISTRY_THREADS + " threads - log4j hierarchy: " + (log4j / 1000000) + " ms, foundation hierarchy: " + (foundation / 1000000) + " ms");
+
+		// parents and children were created in random order from different threads - every logger must still point to its closest ancestor.
+		Logger root = foundationRepository.getRootLogger();
+		for (int top = 0; top < REGISTRY_TOP; top++) {
+			String topName = "registry.benchmark.t" + top;
+			Logger topLogger = foundationRepository.exists(topName);
+			assertSame(root, topLogger.getParent());
+			for (int middle = 0; middle < REGISTRY_MIDDLE; middle++) {
+				String middleName = topName + ".m" + middle;
+				Logger middleLogger = foundationRepository.exists(middleName);
+				assertSame(topLogger, middleLogger.getParent());
+				for (int leaf = 0; leaf < REGISTRY_LEAVES; leaf++) {
+					assertSame(middleLogger, foundationRepository.exists(middleName + ".l" + leaf).getParent());
+				}
+			}
+		}
+		assertNull(foundationRepository.exists("registry.benchmark"));
+	}
+
+	/**
+	 * create all the benchmark loggers under the given prefix, shuffled between the threads.
+	 *
+	 * @return the elapsed nanos.
+	 */
+	private long createLoggers(final LoggerRepository repository, final FoundationLogFactory factory, String prefix) throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (int top = 0; top < REGISTRY_TOP; top++) {
+			names.add(prefix + ".t" + top);
+			for (int middle = 0; middle < REGISTRY_MIDDLE; middle++) {
+				names.add(prefix + ".t" + top + ".m" + middle);
+				for (int leaf = 0; leaf < REGISTRY_LEAVES; leaf++) {
+					names.add(prefix + ".t" + top + ".m" + middle + ".l" + leaf);
+				}
+			}
+		}
+		Collections.shuffle(names, new Random(17));
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(REGISTRY_THREADS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		int slice = (names.size() + REGISTRY_THREADS - 1) / REGISTRY_THREADS;
+		for (int i = 0; i < REGISTRY_THREADS; i++) {
+			final List<String> threadNames = names.subList(Math.min(i * slice, names.size()), Math.min((i + 1) * slice, names.size()));
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (String name : threadNames) {
+							repository.getLogger(name, factory);
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "registry-benchmark-" + i);
+			thread.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		assertNull(failure.get());
+		assertEquals(names.size(), countLoggers(repository, prefix));
+		return elapsed;
+	}
+
+	private int countLoggers(LoggerRepository repository, String prefix) {
+		int count = 0;
+		for (Enumeration<?> loggers = repository.getCurrentLoggers(); loggers.hasMoreElements(); ) {
+			if (((Logger) loggers.nextElement()).getName().startsWith(prefix + ".")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void disabledLazyLoggingVariants() {
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+		Assume.assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported() && allocationMXBean.isThreadAllocatedMemoryEnabled());
+
+		final Logger logger = Logger.getLogger("benchmark.lazy");
+		logger.setLevel(Level.INFO);
+		final AbstractLoggingHelperConverter converter = new AbstractLoggingHelperConverter() {
+			@Override
+			public Object[] convert(Object... args) {
+				return args;
+			}
+		};
+
+		measureDisabled(allocationMXBean, "varargs", new IntConsumer() {
+			@Override
+			public void accept(int value) {
+				LoggingHelper.debug(logger, "value %s of %s", value, ITERATIONS);
+			}
+		});
+		measureDisabled(allocationMXBean, "converter", new IntConsumer() {
+			@Override
+			public void accept(int value) {
+				LoggingHelper.debug(logger, "value %s of %s", converter, value, ITERATIONS);
+			}
+		});
+		measureDisabled(allocationMXBean, "supplier", new IntConsumer() {
+			@Override
+			public void accept(final int value) {
+				LoggingHelper.debug(logger, () -> "value " + value + " of " + ITERATIONS);
+			}
+		});
+		measureDisabled(allocationMXBean, "primitive", new IntConsumer() {
+			@Override
+			public void accept(int value) {
+				LoggingHelper.debug(logger, "value %d", value);
+			}
+		});
+
+		logger.setLevel(null);
+	}
+
+	private void measureDisabled(com.sun.management.ThreadMXBean allocationMXBean, String variant, IntConsumer call) {
+		// warm up
+		for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+			call.accept(i);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = allocationMXBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			call.accept(i);
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocationMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+		System.out.println("disabled debug via LoggingHelper, " + variant + ": " + ((double) elapsed / ITERATIONS) + " ns/op, " + ((double) allocated / ITERATIONS) + " bytes/op");
+	}
+
+	@Test
+	public void compiledTemplates() {
+		MessageFormat messageFormat = new MessageFormat("protocol[{0}] source[{1}] destination[{2}] {3}");
+		int iterations = ALLOCATION_ITERATIONS;
+		int length = 0;
+
+		// warm up
+		for (int i = 0; i < iterations; i++) {
+			length += messageFormat.format(new Object[] { "udp", "10.0.0.1:4000", "10.0.0.2:5000", "payload" }).length();
+			length += LoggingHelper.formatCommunicationMessage("udp", "10.0.0.1:4000", "10.0.0.2:5000", "payload").length();
+			length += String.format("request %s took %d ms", "id", i).length();
+			length += LoggingTemplate.forFormat("request %s took %d ms").format("id", i).length();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			length += messageFormat.format(new Object[] { "udp", "10.0.0.1:4000", "10.0.0.2:5000", "payload" }).length();
+		}
+		long jdkMessageFormat = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			length += LoggingHelper.formatCommunicationMessage("udp", "10.0.0.1:4000", "10.0.0.2:5000", "payload").length();
+		}
+		long templateMessageFormat = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			length += String.format("request %s took %d ms", "id", i).length();
+		}
+		long jdkFormat = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			length += LoggingTemplate.forFormat("request %s took %d ms").format("id", i).length();
+		}
+		long templateFormat = System.nanoTime() - start;
+
+		System.out.println("communication message - MessageFormat: " + ((double) jdkMessageFormat / iterations) + " ns/op, compiled template: " + ((double) templateMessageFormat / iterations) + " ns/op");
+		System.out.println("%s/%d message - String.format: " + ((double) jdkFormat / iterations) + " ns/op, compiled template: " + ((double) templateFormat / iterations) + " ns/op");
+		assertTrue(length > 0);
+	}
+
+	@Test
+	public void asyncAppenderThroughput() throws Exception {
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up both appenders
+			FoundationAsyncAppender list = new FoundationAsyncAppender();
+			list.setBufferSize(ASYNC_BUFFER_SIZE);
+			long listNanos = runAsync(list, round == 0 ? ASYNC_EVENTS / 10 : ASYNC_EVENTS);
+
+			FoundationRingBufferAsyncAppender ring = new FoundationRingBufferAsyncAppender();
+			ring.setBufferSize(ASYNC_BUFFER_SIZE);
+			long ringNanos = runAsync(ring, round == 0 ? ASYNC_EVENTS / 10 : ASYNC_EVENTS);
+
+			if (round > 0) {
+				System.out.println("async appender, " + ASYNC_THREADS + " threads - synchronized list: " + ((double) listNanos / ASYNC_EVENTS) + " ns/event, ring buffer: " + ((double) ringNanos / ASYNC_EVENTS) + " ns/event");
+			}
+		}
+	}
+
+	@Test
+	public void renderingAsyncAppenderThroughput() throws Exception {
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up the appenders
+			int events = round == 0 ? ASYNC_EVENTS / 10 : ASYNC_EVENTS;
+
+			FoundationRingBufferAsyncAppender eventObjects = new FoundationRingBufferAsyncAppender();
+			eventObjects.setBufferSize(ASYNC_BUFFER_SIZE);
+			long eventNanos = runAsyncToFile(eventObjects, "eventObjects", events);
+
+			FoundationRenderingAsyncAppender rendering = new FoundationRenderingAsyncAppender();
+			long renderNanos = runAsyncToFile(rendering, "rendering", events);
+
+			FoundationStripedAsyncAppender striped = new FoundationStripedAsyncAppender();
+			long stripedNanos = runAsyncToFile(striped, "striped", events);
+
+			if (round > 0) {
+				System.out.println("async file appender, " + ASYNC_THREADS + " threads - event objects: " + ((double) eventNanos / ASYNC_EVENTS) + " ns/event, rendered bytes: " + ((double) renderNanos / ASYNC_EVENTS) + " ns/event, striped: " + ((double) stripedNanos / ASYNC_EVENTS) + " ns/event");
+			}
+		}
+	}
+
+	/**
+	 * @return nanos until all the events were logged and written to the file.
+	 */
+	private long runAsyncToFile(final AppenderSkeleton async, final String name, final int events) throws Exception {
+		File file = new File("target/async-" + name + ".log");
+		file.delete();
+		FoundationFileRollingAppender fileAppender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%d %-5p [%t] %c{1} %m%n"), file.getPath());
+		fileAppender.setName("asyncFile-" + name);
+		fileAppender.setRollOnStartup(false);
+		fileAppender.setBufferedIO(true);
+		fileAppender.activateOptions();
+
+		((AppenderAttachable) async).addAppender(fileAppender);
+		long elapsed = logFromThreads(async, events);
+
+		long lines = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			while (reader.readLine() != null) {
+				lines++;
+			}
+		} finally {
+			reader.close();
+		}
+		file.delete();
+		assertEquals(events / ASYNC_THREADS * ASYNC_THREADS, lines);
+		return elapsed;
+	}
+
+	/**
+	 * @return nanos until all the events were logged and dispatched.
+	 */
+	private long runAsync(final AppenderSkeleton async, final int events) throws Exception {
+		final CountingAppender counter = new CountingAppender();
+		((AppenderAttachable) async).addAppender(counter);
+		long elapsed = logFromThreads(async, events);
+		assertEquals(events / ASYNC_THREADS * ASYNC_THREADS, counter.count);
+		return elapsed;
+	}
+
+	/**
+	 * @return nanos until all the events were logged and the async appender
+	 *         was closed.
+	 */
+	private long logFromThreads(final AppenderSkeleton async, final int events) throws Exception {
+		async.activateOptions();
+
+		final Logger logger = Logger.getLogger("benchmark.async");
+		logger.setLevel(Level.INFO);
+		logger.setAdditivity(false);
+		logger.addAppender(async);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int t = 0; t < ASYNC_THREADS; t++) {
+			producers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < events / ASYNC_THREADS; i++) {
+						logger.info("async event");
+					}
+				}
+			}));
+		}
+		for (Thread producer : producers) {
+			producer.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		// closing waits for the dispatcher to drain the buffer.
+		logger.removeAllAppenders();
+		long elapsed = System.nanoTime() - begin;
+
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+		return elapsed;
+	}
+
+	private static final class CountingAppender extends AppenderSkeleton {
+
+		private volatile int count;
+
+		@Override
+		protected void append(LoggingEvent event) {
+			// single dispatcher thread
+			count++;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+	}
+
+	private int runCached(Logger logger) {
+		int hits = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			if (logger.isDebugEnabled()) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * what isDebugEnabled used to do on every call.
+	 */
+	private int runUncached(Logger logger) {
+		int hits = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			if (!logger.getLoggerRepository().isDisabled(Level.DEBUG_INT) && Level.DEBUG.isGreaterOrEqual(logger.getEffectiveLevel())) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+}
@@ -0,0 +1,2154 @@
+/*
+ * Copyright 2015 Cisco Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.cisco.oss.foundation.logging;
+
+import com.cisco.oss.foundation.logging.appender.FoundationFileRollingAppender;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.NDC;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.WriterAppender;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.ErrorHandler;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+import org.slf4j.helpers.MessageFormatter;
+import org.slf4j.spi.LocationAwareLogger;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the FoundationLogger dispatch path.
+ */
+public class FoundationLoggerTest {
+
+	@Test
+	public void appenderSnapshotFollowsAddAndRemove() {
+		Logger logger = Logger.getLogger("com.cisco.snapshot.test");
+		assertTrue(logger instanceof FoundationLogger);
+
+		CollectingAppender appender = new CollectingAppender("snapshotTest");
+		logger.addAppender(appender);
+		logger.info("first");
+		assertEquals(1, appender.events.size());
+
+		logger.removeAppender(appender);
+		logger.info("second");
+		assertEquals(1, appender.events.size());
+
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.info("third");
+		assertEquals(2, appender.events.size());
+		assertEquals("third", appender.events.get(1).getRenderedMessage());
+
+		logger.removeAllAppenders();
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void eventIsSharedBetweenAppenders() {
+		Logger logger = Logger.getLogger("com.cisco.shared.event.test");
+		CollectingAppender first = new CollectingAppender("first");
+		CollectingAppender second = new CollectingAppender("second");
+		logger.addAppender(first);
+		logger.addAppender(second);
+		logger.setAdditivity(false);
+
+		logger.error("shared", new IllegalStateException("boom"));
+
+		assertEquals(1, first.events.size());
+		assertEquals(1, second.events.size());
+		assertSame(first.events.get(0), second.events.get(0));
+
+		logger.removeAllAppenders();
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void appenderNameIsPerAppendContext() {
+		FoundationLof4jLoggingEvent event = new FoundationLof4jLoggingEvent(FoundationLoggerTest.class.getName(), Logger.getLogger("com.cisco.appender.name.test"), Level.INFO, "msg", null);
+		assertNull(event.getAppenderName());
+
+		String previous = FoundationLof4jLoggingEvent.beginAppend("outer");
+		assertEquals("outer", event.getAppenderName());
+		String nested = FoundationLof4jLoggingEvent.beginAppend("inner");
+		assertEquals("inner", event.getAppenderName());
+		FoundationLof4jLoggingEvent.endAppend(nested);
+		assertEquals("outer", event.getAppenderName());
+		FoundationLof4jLoggingEvent.endAppend(previous);
+		assertNull(event.getAppenderName());
+	}
+
+	@Test
+	public void locationAwareLogKeepsMarkerAndArguments() {
+		Logger logger = Logger.getLogger("com.cisco.location.aware.test");
+		CollectingAppender appender = new CollectingAppender("locationAware");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		Marker marker = MarkerFactory.getMarker("BRIDGE");
+		LocationAwareLogger locationAwareLogger = (LocationAwareLogger) logger;
+		locationAwareLogger.log(marker, FoundationLoggerTest.class.getName(), LocationAwareLogger.DEBUG_INT, "dropped {}", new Object[]{"arg"}, null);
+		locationAwareLogger.log(marker, FoundationLoggerTest.class.getName(), LocationAwareLogger.INFO_INT, "hello {} {}", new Object[]{"bridged", "world"}, null);
+
+		assertEquals(1, appender.events.size());
+		FoundationLof4jLoggingEvent event = (FoundationLof4jLoggingEvent) appender.events.get(0);
+		assertEquals("hello bridged world", event.getRenderedMessage());
+		assertSame(marker, event.getSlf4jMarker());
+		assertEquals(FoundationLoggerTest.class.getName(), event.fqnOfCategoryClass);
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void parameterizedMessageSnapshotsMutableArguments() {
+		Logger logger = Logger.getLogger("com.cisco.parameterized.test");
+		CollectingAppender appender = new CollectingAppender("parameterized");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+
+		StringBuilder mutable = new StringBuilder("before");
+		IllegalStateException exception = new IllegalStateException("boom");
+		((org.slf4j.Logger) logger).info("value {} number {}", mutable, 7, exception);
+		mutable.append("-after");
+
+		LoggingEvent event = appender.events.get(0);
+		assertTrue(event.getMessage() instanceof FoundationParameterizedMessage);
+		assertSame(exception, event.getThrowableInformation().getThrowable());
+		assertEquals("value before number 7", event.getRenderedMessage());
+
+		logger.removeAllAppenders();
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void nullMessageIsRendered() {
+		Logger logger = Logger.getLogger("com.cisco.parameterized.null.test");
+		StringWriter writer = new StringWriter();
+		WriterAppender appender = new WriterAppender(new PatternLayout("%p %m%n"), writer);
+		appender.setName("nullMessage");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		logger.info(null);
+		assertEquals("INFO " + System.getProperty("line.separator"), writer.toString());
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void parameterizedMessageSurvivesSerialization() throws Exception {
+		Logger logger = Logger.getLogger("com.cisco.parameterized.serialized.test");
+		CollectingAppender appender = new CollectingAppender("parameterizedSerialized");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		((org.slf4j.Logger) logger).info("sent {} of {}", 1, 2);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(appender.events.get(0));
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		LoggingEvent received = (LoggingEvent) in.readObject();
+		in.close();
+		assertEquals("sent 1 of 2", received.getRenderedMessage());
+		assertEquals("sent 1 of 2", received.getMessage());
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void trailingThrowableIsTheEventThrowableOnlyWhenLeftOver() {
+		Logger logger = Logger.getLogger("com.cisco.parameterized.throwable.test");
+		CollectingAppender appender = new CollectingAppender("parameterizedThrowable");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		org.slf4j.Logger slf4jLogger = (org.slf4j.Logger) logger;
+		IllegalStateException exception = new IllegalStateException("boom");
+
+		// consumed by the place holder - rendered like any argument.
+		slf4jLogger.error("failed: {}", (Object) exception);
+		// one place holder for two arguments - the throwable is left over.
+		slf4jLogger.error("failed: {}", "id", exception);
+		// an escaped place holder does not consume an argument.
+		slf4jLogger.error("literal \\{} then {}", "id", exception);
+		slf4jLogger.error("both {} {}", "id", exception);
+
+		assertEquals(4, appender.events.size());
+		assertEquals("failed: java.lang.IllegalStateException: boom", appender.events.get(0).getRenderedMessage());
+		assertNull(appender.events.get(0).getThrowableInformation());
+		assertEquals("failed: id", appender.events.get(1).getRenderedMessage());
+		assertSame(exception, appender.events.get(1).getThrowableInformation().getThrowable());
+		assertEquals(MessageFormatter.format("literal \\{} then {}", "id", exception).getMessage(), appender.events.get(2).getRenderedMessage());
+		assertSame(exception, appender.events.get(2).getThrowableInformation().getThrowable());
+		assertEquals("both id java.lang.IllegalStateException: boom", appender.events.get(3).getRenderedMessage());
+		assertNull(appender.events.get(3).getThrowableInformation());
+
+		logger.removeAllAppenders();
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void asyncAppenderDeliversParameterizedMessages() throws Exception {
+		Logger logger = Logger.getLogger("com.cisco.async.parameterized.test");
+		CollectingAppender appender = new CollectingAppender("asyncTarget");
+		FoundationAsyncAppender async = new FoundationAsyncAppender();
+		async.addAppender(appender);
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+
+		for (int i = 0; i < 100; i++) {
+			((org.slf4j.Logger) logger).info("async {} of {}", i, 100);
+		}
+		logger.removeAllAppenders();
+
+		assertEquals(100, appender.events.size());
+		assertEquals("async 99 of 100", appender.events.get(99).getRenderedMessage());
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void ringBufferAsyncAppenderKeepsPerThreadOrder() throws Exception {
+		final Logger logger = Logger.getLogger("ring.buffer.async.test");
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+		final int threads = 4;
+		final int perThread = 500;
+
+		for (String waitStrategy : Arrays.asList("blocking", "sleeping", "yielding", "busySpin")) {
+			CollectingAppender appender = new CollectingAppender("ringBufferTarget");
+			FoundationRingBufferAsyncAppender async = new FoundationRingBufferAsyncAppender();
+			async.setBufferSize(16);
+			async.setWaitStrategy(waitStrategy);
+			async.addAppender(appender);
+			async.activateOptions();
+			logger.addAppender(async);
+
+			List<Thread> producers = new ArrayList<Thread>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				producers.add(new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = 0; i < perThread; i++) {
+							((org.slf4j.Logger) logger).info("{} {}", thread, i);
+						}
+					}
+				}));
+			}
+			for (Thread producer : producers) {
+				producer.start();
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			logger.removeAllAppenders();
+
+			assertTrue(appender.isClosed());
+			assertEquals(waitStrategy, threads * perThread, appender.events.size());
+			assertEquals(waitStrategy, threads * perThread, async.getMetrics().getEnqueuedCount());
+			assertTrue(waitStrategy, async.getMetrics().getHighWaterMark() >= 1);
+			int[] next = new int[threads];
+			for (LoggingEvent event : appender.events) {
+				String[] parts = event.getRenderedMessage().split(" ");
+				int thread = Integer.parseInt(parts[0]);
+				assertEquals(waitStrategy, next[thread]++, Integer.parseInt(parts[1]));
+			}
+		}
+
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void haltedRingsAcceptNoLateProducer() {
+		FoundationRingBuffer<String> ringBuffer = new FoundationRingBuffer<String>(4, FoundationWaitStrategy.forName(FoundationWaitStrategy.BLOCKING));
+		assertTrue(ringBuffer.tryPublish("queued"));
+		ringBuffer.halt();
+		// a producer that saw the ring running must not claim past the halt.
+		assertFalse(ringBuffer.tryPublish("late"));
+		assertFalse(ringBuffer.publish("late", Thread.currentThread()));
+		assertEquals(1, ringBuffer.size());
+		assertFalse(ringBuffer.isDrained());
+		final List<String> drained = new ArrayList<String>();
+		ringBuffer.drain(new FoundationRingBuffer.EventHandler<String>() {
+			@Override
+			public void onEvent(String event, boolean endOfBatch) {
+				drained.add(event);
+			}
+		}, 16);
+		assertEquals(Arrays.asList("queued"), drained);
+		assertTrue(ringBuffer.isDrained());
+
+		FoundationByteRing byteRing = new FoundationByteRing(64, 16, FoundationWaitStrategy.forName(FoundationWaitStrategy.BLOCKING));
+		byte[] record = "record".getBytes(StandardCharsets.UTF_8);
+		assertTrue(byteRing.tryPublish(record, 0, record.length, 0));
+		byteRing.halt();
+		assertFalse(byteRing.tryPublish(record, 0, record.length, 0));
+		assertEquals(1, byteRing.size());
+		assertFalse(byteRing.isDrained());
+	}
+
+	@Test
+	public void blockedProducersNoticeADeadDispatcher() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		CollectingAppender appender = new CollectingAppender("deadDispatcherTarget") {
+			@Override
+			protected void append(LoggingEvent event) {
+				if (entered.getCount() > 0) {
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					throw new Error("kills the dispatcher");
+				}
+				super.append(event);
+			}
+		};
+		FoundationRingBufferAsyncAppender async = new FoundationRingBufferAsyncAppender();
+		async.setBufferSize(2);
+		async.setBlocking(true);
+		async.addAppender(appender);
+		async.activateOptions();
+
+		final Logger logger = Logger.getLogger("ring.buffer.dead.dispatcher.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		logger.info("record 0");
+		assertTrue(entered.await(10, TimeUnit.SECONDS));
+		// two records fill the ring, the third parks the producer.
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 1; i <= 5; i++) {
+					logger.info("record " + i);
+				}
+			}
+		});
+		producer.start();
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (producer.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+
+		// the dispatcher dies with the ring full - the producer appends on its own thread.
+		release.countDown();
+		producer.join(10000);
+		assertFalse(producer.isAlive());
+		assertEquals("record 5", appender.events.get(appender.events.size() - 1).getRenderedMessage());
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void fanOutAsyncAppenderIsolatesSlowAppenders() throws Exception {
+		final CountDownLatch stalled = new CountDownLatch(1);
+		CollectingAppender slow = new CollectingAppender("slow") {
+			@Override
+			protected void append(LoggingEvent event) {
+				try {
+					stalled.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.append(event);
+			}
+		};
+		CollectingAppender fast = new CollectingAppender("fast");
+
+		FoundationFanOutAsyncAppender async = new FoundationFanOutAsyncAppender();
+		async.setName("fanOut");
+		async.setBufferSize(4);
+		// the slow appender is left at the default - its events are dropped
+		// rather than holding up the logging thread.
+		async.setBlockingAppenders("fast");
+		async.addAppender(slow);
+		async.addAppender(fast);
+		async.activateOptions();
+		assertSame(slow, async.getAppender("slow"));
+
+		Logger logger = Logger.getLogger("fan.out.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		for (int i = 0; i < 100; i++) {
+			logger.info("event " + i);
+		}
+		for (int i = 0; i < 500 && fast.events.size() < 100; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(100, fast.events.size());
+		assertEquals("event 99", fast.events.get(99).getRenderedMessage());
+		assertTrue(slow.events.isEmpty());
+
+		stalled.countDown();
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+
+		assertTrue(slow.isClosed());
+		assertTrue(fast.isClosed());
+		assertTrue(slow.events.size() < 100);
+		assertEquals("event 0", slow.events.get(0).getRenderedMessage());
+		LoggingEvent summary = slow.events.get(slow.events.size() - 1);
+		assertTrue(summary.getRenderedMessage(), summary.getRenderedMessage().startsWith("Discarded "));
+	}
+
+	@Test
+	public void markerLayoutsAreRoutedWithoutSwappingLayouts() throws Exception {
+		File file = new File("target/marker-routing.log");
+		file.delete();
+		Layout fileLayout = new PatternLayout("%m%n");
+		FoundationFileRollingAppender fileAppender = new FoundationFileRollingAppender(fileLayout, file.getPath());
+		fileAppender.setName("markerFile");
+		fileAppender.setRollOnStartup(false);
+		fileAppender.activateOptions();
+
+		StringWriter writer = new StringWriter();
+		Layout writerLayout = new PatternLayout("%m%n");
+		WriterAppender writerAppender = new WriterAppender(writerLayout, writer);
+		writerAppender.setName("markerWriter");
+
+		Map<String, Layout> auditLayouts = new HashMap<String, Layout>();
+		auditLayouts.put("markerFile", new PatternLayout("[audit] %m%n"));
+		auditLayouts.put("markerWriter", new PatternLayout("<audit> %m%n"));
+		FoundationLogger.markerAppendersMap.put("ROUTED_AUDIT", auditLayouts);
+		FoundationLogger.refreshMarkerLayouts();
+
+		FoundationRingBufferAsyncAppender async = new FoundationRingBufferAsyncAppender();
+		async.addAppender(fileAppender);
+		async.addAppender(writerAppender);
+		async.activateOptions();
+
+		Logger logger = Logger.getLogger("marker.routing.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		org.slf4j.Logger slf4jLogger = (org.slf4j.Logger) logger;
+		slf4jLogger.info("plain");
+		slf4jLogger.info(MarkerFactory.getMarker("ROUTED_AUDIT"), "audited");
+		slf4jLogger.info(MarkerFactory.getMarker("OTHER"), "other");
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+		FoundationLogger.markerAppendersMap.remove("ROUTED_AUDIT");
+		FoundationLogger.refreshMarkerLayouts();
+
+		assertSame(fileLayout, fileAppender.getLayout());
+		assertSame(writerLayout, writerAppender.getLayout());
+		assertEquals("plain" + Layout.LINE_SEP + "<audit> audited" + Layout.LINE_SEP + "other" + Layout.LINE_SEP, writer.toString());
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		file.delete();
+		assertEquals(Arrays.asList("plain", "[audit] audited", "other"), lines);
+	}
+
+	@Test
+	public void layoutRoutingSharesTheLockOfPlainAppenders() throws Exception {
+		Layout plainLayout = new PatternLayout("%m");
+		LayoutRecordingAppender appender = new LayoutRecordingAppender("layoutRecording", plainLayout);
+		Map<String, Layout> auditLayouts = new HashMap<String, Layout>();
+		auditLayouts.put("layoutRecording", new PatternLayout("[audit] %m"));
+		FoundationLogger.markerAppendersMap.put("LOCKED_AUDIT", auditLayouts);
+		FoundationLogger.refreshMarkerLayouts();
+
+		// the logging thread appends directly while the dispatcher swaps the
+		// layout of the same appender.
+		FoundationRingBufferAsyncAppender async = new FoundationRingBufferAsyncAppender();
+		async.addAppender(appender);
+		async.activateOptions();
+		Logger logger = Logger.getLogger("layout.lock.test");
+		logger.addAppender(appender);
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		org.slf4j.Logger slf4jLogger = (org.slf4j.Logger) logger;
+		Marker marker = MarkerFactory.getMarker("LOCKED_AUDIT");
+		for (int i = 0; i < 2000; i++) {
+			slf4jLogger.info(marker, "event");
+		}
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+		FoundationLogger.markerAppendersMap.remove("LOCKED_AUDIT");
+		FoundationLogger.refreshMarkerLayouts();
+
+		assertFalse(appender.overlapped);
+		assertSame(plainLayout, appender.getLayout());
+		int plain = 0;
+		int audited = 0;
+		for (String line : appender.lines) {
+			if ("event".equals(line)) {
+				plain++;
+			} else if ("[audit] event".equals(line)) {
+				audited++;
+			}
+		}
+		assertEquals(2000, plain);
+		assertEquals(2000, audited);
+	}
+
+	@Test
+	public void shedPolicyKeepsWarningsUnderPressure() throws Exception {
+		final CountDownLatch dispatching = new CountDownLatch(1);
+		final CountDownLatch stalled = new CountDownLatch(1);
+		CollectingAppender appender = new CollectingAppender("shedTarget") {
+			@Override
+			protected void append(LoggingEvent event) {
+				dispatching.countDown();
+				try {
+					stalled.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.append(event);
+			}
+		};
+		FoundationAsyncAppender async = new FoundationAsyncAppender();
+		async.setBufferSize(4);
+		async.setOverflowPolicy("shed");
+		async.setBlockTimeout(50);
+		async.addAppender(appender);
+
+		Logger logger = Logger.getLogger("shed.policy.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		// keep the dispatcher busy with the first event so the buffer fills up.
+		logger.info("stall");
+		dispatching.await();
+
+		for (String message : Arrays.asList("a", "b", "c", "d")) {
+			logger.info(message);
+		}
+		logger.warn("w1");
+		logger.info("e");
+		logger.error("e1");
+		logger.warn("w2");
+		logger.warn("w3");
+		// nothing left to shed - waits for the block timeout and is discarded.
+		logger.warn("w4");
+
+		assertEquals(6, async.getDiscardedCount());
+		assertEquals(Long.valueOf(5), async.getDiscardCountsByLevel().get("INFO"));
+		assertEquals(Long.valueOf(1), async.getDiscardCountsByLevel().get("WARN"));
+		assertEquals(Long.valueOf(6), async.getDiscardCountsByLogger().get("shed.policy.test"));
+
+		stalled.countDown();
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+
+		List<String> messages = new ArrayList<String>();
+		for (LoggingEvent event : appender.events) {
+			messages.add(event.getRenderedMessage());
+		}
+		assertEquals(Arrays.asList("stall", "w1", "e1", "w2", "w3", "Discarded 6 messages due to full event buffer including: w4"), messages);
+	}
+
+	@Test
+	public void dropOldestPolicyKeepsTheLatestEvents() throws Exception {
+		final CountDownLatch dispatching = new CountDownLatch(1);
+		final CountDownLatch stalled = new CountDownLatch(1);
+		CollectingAppender appender = new CollectingAppender("dropOldestTarget") {
+			@Override
+			protected void append(LoggingEvent event) {
+				dispatching.countDown();
+				try {
+					stalled.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.append(event);
+			}
+		};
+		FoundationAsyncAppender async = new FoundationAsyncAppender();
+		async.setBufferSize(2);
+		async.setOverflowPolicy("dropOldest");
+		async.addAppender(appender);
+
+		Logger logger = Logger.getLogger("drop.oldest.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		logger.info("stall");
+		dispatching.await();
+		for (int i = 0; i < 5; i++) {
+			logger.info("event " + i);
+		}
+		assertEquals(3, async.getDiscardedCount());
+
+		stalled.countDown();
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+
+		assertEquals(4, appender.events.size());
+		assertEquals("event 3", appender.events.get(1).getRenderedMessage());
+		assertEquals("event 4", appender.events.get(2).getRenderedMessage());
+		assertTrue(appender.events.get(3).getRenderedMessage().startsWith("Discarded 3 messages"));
+	}
+
+	@Test
+	public void asyncBufferEnforcesByteBudget() throws Exception {
+		final CountDownLatch dispatching = new CountDownLatch(1);
+		final CountDownLatch stalled = new CountDownLatch(1);
+		CollectingAppender appender = new CollectingAppender("byteBudgetTarget") {
+			@Override
+			protected void append(LoggingEvent event) {
+				dispatching.countDown();
+				try {
+					stalled.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.append(event);
+			}
+		};
+		FoundationAsyncAppender async = new FoundationAsyncAppender();
+		async.setBufferSize(1000);
+		async.setMaxBytes("8KB");
+		async.setBlocking(false);
+		async.addAppender(appender);
+		assertEquals(8192, async.getMaximumBytes());
+
+		Logger logger = Logger.getLogger("byte.budget.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		logger.info("stall");
+		dispatching.await();
+
+		char[] body = new char[2000];
+		Arrays.fill(body, 'x');
+		for (int i = 0; i < 10; i++) {
+			((org.slf4j.Logger) logger).info("body {} {}", i, new String(body));
+		}
+		logger.info("small");
+		assertEquals(9, async.getDiscardedCount());
+
+		stalled.countDown();
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+
+		assertEquals(4, appender.events.size());
+		assertTrue(appender.events.get(1).getRenderedMessage().startsWith("body 0 xxx"));
+		assertEquals("small", appender.events.get(2).getRenderedMessage());
+		assertTrue(appender.events.get(3).getRenderedMessage().startsWith("Discarded 9 messages"));
+	}
+
+	@Test
+	public void byteBudgetEstimatesOnlyTheCapturedFields() {
+		Logger logger = Logger.getLogger("estimate.test");
+		LoggingEvent bare;
+		LoggingEvent captured;
+		NDC.push("estimateNdc");
+		MDC.put("estimateKey", "estimateValue");
+		try {
+			bare = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "message", null);
+			FoundationAsyncAppender.prepareForDispatch(bare, 0);
+			captured = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, "message", null);
+			FoundationAsyncAppender.prepareForDispatch(captured, SnapshotFields.NDC | SnapshotFields.MDC);
+			assertTrue(FoundationAsyncAppender.estimateRetainedSize(captured, SnapshotFields.NDC | SnapshotFields.MDC) > FoundationAsyncAppender.estimateRetainedSize(bare, 0));
+		} finally {
+			NDC.pop();
+			MDC.remove("estimateKey");
+		}
+		// estimating didn't capture what the appenders don't read.
+		assertNull(bare.getNDC());
+		assertNull(bare.getMDC("estimateKey"));
+		assertEquals("estimateNdc", captured.getNDC());
+	}
+
+	@Test
+	public void byteBudgetSubtractsWhatItAdded() throws Exception {
+		final CountDownLatch dispatching = new CountDownLatch(1);
+		final CountDownLatch stalled = new CountDownLatch(1);
+		CollectingAppender appender = new CollectingAppender("budgetTarget") {
+			@Override
+			protected void append(LoggingEvent event) {
+				dispatching.countDown();
+				try {
+					stalled.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.append(event);
+			}
+		};
+		// formats the messages once they are buffered, which shrinks their estimate.
+		CollectingAppender formatter = new CollectingAppender("budgetFormatter") {
+			@Override
+			protected void append(LoggingEvent event) {
+				event.getRenderedMessage();
+				super.append(event);
+			}
+		};
+		FoundationAsyncAppender async = new FoundationAsyncAppender();
+		async.setBufferSize(1000);
+		// room for two of the events below.
+		async.setMaxBytes("600");
+		async.setOverflowPolicy("dropOldest");
+		async.addAppender(appender);
+
+		Logger logger = Logger.getLogger("byte.budget.evict.test");
+		logger.addAppender(async);
+		logger.addAppender(formatter);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		logger.info("stall");
+		dispatching.await();
+		for (int i = 0; i < 20; i++) {
+			((org.slf4j.Logger) logger).info("{}", i % 10);
+		}
+		assertEquals(2, async.getMetrics().getQueueDepth());
+		assertEquals(18, async.getDiscardedCount());
+
+		stalled.countDown();
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void asyncAppenderHealthIsExposedOverJmx() throws Exception {
+		CollectingAppender appender = new CollectingAppender("jmxTarget");
+		FoundationAsyncAppender async = new FoundationAsyncAppender();
+		async.setBufferSize(1);
+		async.setBlocking(false);
+		async.addAppender(appender);
+		async.getMetrics().register("jmxTarget");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.cisco.oss.foundation.logging:type=AsyncAppender,name=\"jmxTarget\"");
+		assertTrue(server.isRegistered(name));
+
+		Logger logger = Logger.getLogger("jmx.metrics.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+		for (int i = 0; i < 200; i++) {
+			logger.info("event " + i);
+		}
+		logger.removeAppender(async);
+
+		long enqueued = (Long) server.getAttribute(name, "EnqueuedCount");
+		long discarded = (Long) server.getAttribute(name, "DiscardedCount");
+		assertEquals(200, enqueued + discarded);
+		assertTrue((Integer) server.getAttribute(name, "HighWaterMark") >= 1);
+		// reading the rate doesn't restart its window.
+		assertTrue((Double) server.getAttribute(name, "EventsPerSecond") > 0);
+		assertTrue((Double) server.getAttribute(name, "EventsPerSecond") > 0);
+		assertTrue(server.getAttribute(name, "AverageAppendMicros") instanceof TabularData);
+		assertTrue(server.getAttribute(name, "BlockedTimeHistogram") instanceof TabularData);
+		assertEquals(discarded, async.getDiscardCountsByLevel().get("INFO") == null ? 0L : async.getDiscardCountsByLevel().get("INFO").longValue());
+
+		async.close();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+		assertFalse(server.isRegistered(name));
+		assertTrue(async.getMetrics().getAverageDrainBatchSize() >= 1);
+		assertTrue(async.getMetrics().getAverageAppendMicros().containsKey("jmxTarget"));
+
+		// once the window is sampled past the burst the rate falls off.
+		for (int i = 0; i < 10; i++) {
+			async.getMetrics().sample(System.nanoTime());
+		}
+		assertEquals(0, async.getMetrics().getEventsPerSecond(), 0);
+	}
+
+	@Test
+	public void enabledLevelsFollowConfigurationChanges() {
+		Logger parent = Logger.getLogger("levels.test");
+		FoundationLogger child = (FoundationLogger) Logger.getLogger("levels.test.child.grandchild");
+		Logger root = Logger.getRootLogger();
+		Level rootLevel = root.getLevel();
+
+		parent.setLevel(Level.WARN);
+		assertFalse(child.isInfoEnabled());
+		assertTrue(child.isWarnEnabled());
+
+		parent.setLevel(Level.DEBUG);
+		assertTrue(child.isDebugEnabled());
+		assertFalse(child.isTraceEnabled());
+
+		// the root level is not intercepted - it's checked with the cached mask.
+		parent.setLevel(null);
+		root.setLevel(Level.ERROR);
+		assertFalse(child.isWarnEnabled());
+		root.setLevel(Level.TRACE);
+		assertTrue(child.isTraceEnabled());
+
+		child.getLoggerRepository().setThreshold(Level.ERROR);
+		assertFalse(child.isWarnEnabled());
+		assertTrue(child.isErrorEnabled());
+		child.getLoggerRepository().setThreshold(Level.ALL);
+
+		root.setLevel(rootLevel);
+	}
+
+	@Test
+	public void turboFiltersDecideBeforeTheLevel() {
+		Properties properties = new Properties();
+		properties.setProperty("FoundationLogger.turboFilters", "flowDebug, noisy");
+		properties.setProperty("FoundationLogger.turboFilter.flowDebug", FlowContextTurboFilter.class.getName());
+		properties.setProperty("FoundationLogger.turboFilter.flowDebug.flowContexts", "flow1");
+		properties.setProperty("FoundationLogger.turboFilter.noisy", MarkerTurboFilter.class.getName());
+		properties.setProperty("FoundationLogger.turboFilter.noisy.markers", "NOISY");
+
+		FoundationLogger logger = (FoundationLogger) Logger.getLogger("turbo.filter.test");
+		CollectingAppender appender = new CollectingAppender("turbo");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		FoundationLogger.setupTurboFilters(properties);
+		try {
+			logger.debug("dropped - no flow context");
+			MDC.put("flowCtxt", "flow1");
+			assertTrue(logger.isDebugEnabled());
+			logger.debug("accepted for flow1");
+			MDC.put("flowCtxt", "flow2");
+			logger.debug("dropped - other flow");
+			MDC.remove("flowCtxt");
+
+			Marker noisy = MarkerFactory.getMarker("NOISY");
+			logger.info(noisy, "dropped - noisy marker");
+			logger.warn(noisy, "kept - above the marker filter threshold");
+		} finally {
+			FoundationLogger.setTurboFilters(Collections.<FoundationTurboFilter>emptyList());
+			MDC.remove("flowCtxt");
+		}
+
+		assertEquals(2, appender.events.size());
+		assertEquals("accepted for flow1", appender.events.get(0).getRenderedMessage());
+		assertEquals("kept - above the marker filter threshold", appender.events.get(1).getRenderedMessage());
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void suppliersAreOnlyCalledWhenEnabled() {
+		FoundationLogger logger = (FoundationLogger) Logger.getLogger("lazy.supplier.test");
+		CollectingAppender appender = new CollectingAppender("lazy");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		final AtomicInteger calls = new AtomicInteger();
+		Supplier<String> expensive = new Supplier<String>() {
+			@Override
+			public String get() {
+				return "diagnostics " + calls.incrementAndGet();
+			}
+		};
+
+		logger.debug(expensive);
+		logger.debug("args {}", expensive);
+		LoggingHelper.debug(logger, expensive);
+		LoggingHelper.debug(logger, "args %s", expensive);
+		assertEquals(0, calls.get());
+
+		logger.info(expensive);
+		logger.info("args {}", expensive);
+		logger.info("long {}", 42L);
+		LoggingHelper.info(logger, "args %s", expensive);
+		LoggingHelper.warn(logger, "double %.1f", 1.25d);
+		LoggingHelper.debug(logger, "int %d", 7);
+
+		assertEquals(3, calls.get());
+		assertEquals(5, appender.events.size());
+		assertEquals("diagnostics 1", appender.events.get(0).getRenderedMessage());
+		assertEquals("args diagnostics 2", appender.events.get(1).getRenderedMessage());
+		assertEquals("long 42", appender.events.get(2).getRenderedMessage());
+		assertEquals("args diagnostics 3", appender.events.get(3).getRenderedMessage());
+		assertEquals("double 1.3", appender.events.get(4).getRenderedMessage().replace(',', '.'));
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void rateLimitSummariesDoNotWaitForTheNextMessage() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("FoundationLogger.rateLimit.rate.summary", "2/200");
+		properties.setProperty("FoundationLogger.rateLimit.rate.summary.minute", "1/60000");
+
+		Logger logger = Logger.getLogger("rate.summary.test");
+		Logger minute = Logger.getLogger("rate.summary.minute.test");
+		CollectingAppender appender = new CollectingAppender("rateSummary");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		minute.addAppender(appender);
+		minute.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+		minute.setLevel(Level.INFO);
+
+		FoundationLogger.setupRateLimits(properties);
+		try {
+			for (int i = 0; i < 10; i++) {
+				((org.slf4j.Logger) logger).warn("storm {}", i);
+			}
+			// the storm stopped - the summary is logged once the call site may log again.
+			long deadline = System.currentTimeMillis() + 2000;
+			while (appender.events.size() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertEquals(3, appender.events.size());
+			assertEquals("Suppressed 8 similar messages including: storm {}", appender.events.get(2).getRenderedMessage());
+			assertEquals(Level.WARN, appender.events.get(2).getLevel());
+
+			// a window that doesn't close before shutdown.
+			for (int i = 0; i < 3; i++) {
+				minute.error("long window");
+			}
+			assertEquals(4, appender.events.size());
+			FoundationRateLimiter.logPendingSummaries();
+			assertEquals(5, appender.events.size());
+			assertEquals("Suppressed 2 similar messages including: long window", appender.events.get(4).getRenderedMessage());
+		} finally {
+			FoundationLogger.setupRateLimits(new Properties());
+		}
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+		minute.removeAllAppenders();
+		minute.setLevel(null);
+		minute.setAdditivity(true);
+	}
+
+	@Test
+	public void rateLimitCallSitesAreBoundedByRecentUse() {
+		Properties properties = new Properties();
+		properties.setProperty("FoundationLogger.rateLimit.rate.bounded", "1/60000");
+
+		Logger logger = Logger.getLogger("rate.bounded.test");
+		CollectingAppender appender = new CollectingAppender("rateBounded");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		FoundationLogger.setupRateLimits(properties);
+		try {
+			// messages built from variable data, more than the call sites kept.
+			for (int i = 0; i < 1500; i++) {
+				logger.info("failed " + i);
+			}
+			// a call site seen after them is still limited.
+			for (int i = 0; i < 5; i++) {
+				logger.info("hot");
+			}
+			assertEquals(1501, appender.events.size());
+			assertEquals("hot", appender.events.get(1500).getRenderedMessage());
+		} finally {
+			FoundationLogger.setupRateLimits(new Properties());
+		}
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void rateLimitSuppressesAndSummarizesPerCallSite() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("FoundationLogger.rateLimit.rate.limit", "3/200");
+
+		Logger logger = Logger.getLogger("rate.limit.test");
+		CollectingAppender appender = new CollectingAppender("rateLimit");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		FoundationLogger.setupRateLimits(properties);
+		try {
+			for (int i = 0; i < 10; i++) {
+				((org.slf4j.Logger) logger).error("connection {} failed", i);
+			}
+			// another call site has its own bucket
+			logger.warn("other call site");
+			assertEquals(4, appender.events.size());
+			assertEquals("other call site", appender.events.get(3).getRenderedMessage());
+
+			Thread.sleep(250);
+			((org.slf4j.Logger) logger).error("connection {} failed", 10);
+			assertEquals(6, appender.events.size());
+			assertEquals("Suppressed 7 similar messages including: connection {} failed", appender.events.get(4).getRenderedMessage());
+			assertEquals(Level.ERROR, appender.events.get(4).getLevel());
+			assertEquals("connection 10 failed", appender.events.get(5).getRenderedMessage());
+		} finally {
+			FoundationLogger.setupRateLimits(new Properties());
+		}
+
+		for (int i = 0; i < 10; i++) {
+			logger.error("not limited");
+		}
+		assertEquals(16, appender.events.size());
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void repeatedEventsAreCollapsed() throws Exception {
+		File file = new File("target/deduplication.log");
+		file.delete();
+		FoundationFileRollingAppender appender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), file.getPath());
+		appender.setName("deduplication");
+		appender.setRollOnStartup(false);
+		appender.setDeduplicationWindow(60000);
+		appender.activateOptions();
+
+		Logger logger = Logger.getLogger("deduplication.test");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		for (int i = 0; i < 5; i++) {
+			logger.error("retry failed");
+		}
+		logger.error("retry failed", new IllegalStateException("different throwable"));
+		logger.info("next");
+		logger.info("next");
+		logger.warn("next");
+		logger.warn("next");
+		logger.warn("next");
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.startsWith("\t") && !line.startsWith("java.lang.IllegalStateException")) {
+					lines.add(line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		file.delete();
+
+		assertEquals(Arrays.asList("ERROR retry failed", "ERROR Last message repeated 4 times", "ERROR retry failed", "INFO next", "INFO Last message repeated 1 times", "WARN next", "WARN Last message repeated 2 times"), lines);
+	}
+
+	@Test
+	public void repeatsOfABurstAreWrittenOnceTheWindowEnds() throws Exception {
+		File file = new File("target/deduplication-silence.log");
+		file.delete();
+		FoundationFileRollingAppender appender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), file.getPath());
+		appender.setName("deduplicationSilence");
+		appender.setRollOnStartup(false);
+		appender.setDeduplicationWindow(200);
+		appender.activateOptions();
+
+		Logger logger = Logger.getLogger("deduplication.silence.test");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		for (int i = 0; i < 3; i++) {
+			logger.error("retry failed");
+		}
+
+		// nothing else is logged - the count doesn't wait for the next event.
+		List<String> lines = Collections.emptyList();
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (lines.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+			lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		}
+		assertEquals(Arrays.asList("ERROR retry failed", "ERROR Last message repeated 2 times"), lines);
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+		assertEquals(2, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+		file.delete();
+	}
+
+	@Test
+	public void asyncBatchesAreFlushedOnce() throws Exception {
+		File file = new File("target/batch-flush.log");
+		file.delete();
+		FoundationFileRollingAppender appender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), file.getPath());
+		appender.setName("batchFlush");
+		appender.setRollOnStartup(false);
+		appender.activateOptions();
+		FlushCountingWriter writer = new FlushCountingWriter();
+		appender.setWriter(writer);
+
+		Logger logger = Logger.getLogger("batch.flush.test");
+		LoggingEvent event = new LoggingEvent(FoundationLoggerTest.class.getName(), logger, Level.INFO, "sync", null);
+		for (int i = 0; i < 3; i++) {
+			appender.doAppend(event);
+		}
+		assertEquals(3, writer.flushes.get());
+
+		appender.beginBatch();
+		for (int i = 0; i < 100; i++) {
+			appender.doAppend(event);
+		}
+		assertEquals(3, writer.flushes.get());
+		appender.endBatch();
+		assertEquals(4, writer.flushes.get());
+
+		// hold the dispatcher on the first event so the rest are drained as one batch.
+		final CountDownLatch release = new CountDownLatch(1);
+		CollectingAppender gate = new CollectingAppender("gate") {
+			@Override
+			protected void append(LoggingEvent event) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.append(event);
+			}
+		};
+		FoundationAsyncAppender async = new FoundationAsyncAppender();
+		async.setBufferSize(1000);
+		async.addAppender(gate);
+		async.addAppender(appender);
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		for (int i = 0; i < 500; i++) {
+			logger.info("async " + i);
+		}
+		release.countDown();
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+		file.delete();
+
+		assertEquals(500, gate.events.size());
+		assertEquals(603, writer.lines());
+		assertTrue("flushes: " + writer.flushes.get(), writer.flushes.get() <= 7);
+	}
+
+	@Test
+	public void errorsAreFlushedRightAway() throws Exception {
+		File file = new File("target/flush-level.log");
+		file.delete();
+		FoundationFileRollingAppender appender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), file.getPath());
+		appender.setName("flushLevel");
+		appender.setRollOnStartup(false);
+		appender.setImmediateFlush(false);
+		appender.setFlushLevel("ERROR");
+		appender.activateOptions();
+		FlushCountingWriter writer = new FlushCountingWriter();
+		appender.setWriter(writer);
+
+		Logger logger = Logger.getLogger("flush.level.test");
+		appender.doAppend(new LoggingEvent(FoundationLoggerTest.class.getName(), logger, Level.WARN, "warn", null));
+		assertEquals(0, writer.flushes.get());
+		appender.doAppend(new LoggingEvent(FoundationLoggerTest.class.getName(), logger, Level.ERROR, "error", null));
+		assertEquals(1, writer.flushes.get());
+
+		appender.beginBatch();
+		appender.doAppend(new LoggingEvent(FoundationLoggerTest.class.getName(), logger, Level.FATAL, "fatal", null));
+		assertEquals(2, writer.flushes.get());
+		appender.endBatch();
+
+		appender.close();
+		file.delete();
+	}
+
+	@Test
+	public void shutdownDrainsWithinTheDeadline() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		CollectingAppender gate = new CollectingAppender("shutdownGate") {
+			@Override
+			protected void append(LoggingEvent event) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.append(event);
+			}
+		};
+		FoundationAsyncAppender stuck = new FoundationAsyncAppender();
+		stuck.addAppender(gate);
+		CollectingAppender target = new CollectingAppender("shutdownTarget");
+		FoundationAsyncAppender healthy = new FoundationAsyncAppender();
+		healthy.addAppender(target);
+
+		Logger logger = Logger.getLogger("shutdown.drain.test");
+		logger.addAppender(stuck);
+		logger.addAppender(healthy);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		// the first event holds the stuck dispatcher, the other 9 stay queued.
+		logger.info("event 0");
+		assertTrue(entered.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < 10; i++) {
+			logger.info("event " + i);
+		}
+
+		List<Appender> appenders = FoundationShutdownHook.allAppenders();
+		assertTrue(appenders.contains(stuck));
+		assertTrue(appenders.contains(gate));
+		FoundationShutdownHook.Report report = FoundationShutdownHook.drain(Arrays.<Appender>asList(stuck, healthy), 200);
+		// the 9 queued events and the one the stuck appender holds.
+		assertEquals(10, report.getDropped());
+		assertEquals(9, stuck.getDiscardedCount());
+		assertEquals(10, target.events.size());
+
+		// intake stopped - later events are appended by the logging thread.
+		release.countDown();
+		logger.info("after drain");
+		assertEquals("after drain", target.events.get(10).getRenderedMessage());
+		assertEquals("after drain", gate.events.get(gate.events.size() - 1).getRenderedMessage());
+
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void shutdownDropsWhatTheStuckDispatcherHolds() throws Exception {
+		assertStuckBatchIsDropped(new FoundationAsyncAppender());
+		assertStuckBatchIsDropped(new FoundationRingBufferAsyncAppender());
+	}
+
+	/**
+	 * the dispatcher takes 9 events in one batch and gets stuck on the first
+	 * of them - none of the 9 reached the appenders by the deadline.
+	 */
+	private void assertStuckBatchIsDropped(AppenderSkeleton async) throws Exception {
+		final CountDownLatch firstEntered = new CountDownLatch(1);
+		final CountDownLatch firstRelease = new CountDownLatch(1);
+		final CountDownLatch batchEntered = new CountDownLatch(1);
+		final CountDownLatch batchRelease = new CountDownLatch(1);
+		CollectingAppender gate = new CollectingAppender("stuckBatchGate") {
+			@Override
+			protected void append(LoggingEvent event) {
+				try {
+					if ("event 0".equals(event.getRenderedMessage())) {
+						firstEntered.countDown();
+						firstRelease.await();
+					} else if ("event 1".equals(event.getRenderedMessage())) {
+						batchEntered.countDown();
+						batchRelease.await();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.append(event);
+			}
+		};
+		((AppenderAttachable) async).addAppender(gate);
+		async.activateOptions();
+
+		Logger logger = Logger.getLogger("shutdown.batch.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		logger.info("event 0");
+		assertTrue(firstEntered.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < 10; i++) {
+			logger.info("event " + i);
+		}
+		firstRelease.countDown();
+		assertTrue(batchEntered.await(10, TimeUnit.SECONDS));
+
+		FoundationShutdownHook.Report report = FoundationShutdownHook.drain(Arrays.<Appender>asList(async), 200);
+		assertEquals(async.getClass().getSimpleName(), 0, report.getDrained());
+		assertEquals(async.getClass().getSimpleName(), 9, report.getDropped());
+
+		// closing doesn't wait for the abandoned dispatcher.
+		final AppenderSkeleton closing = async;
+		Thread closer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				closing.close();
+			}
+		});
+		closer.start();
+		closer.join(10000);
+		assertFalse(async.getClass().getSimpleName(), closer.isAlive());
+
+		batchRelease.countDown();
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void asyncSnapshotFollowsTheLayouts() throws Exception {
+		assertEquals(0, SnapshotFields.ofLayout(new FoundationLoggingPatternLayout("%d %-5p [%c{1}] %m %throwable%n")));
+		assertEquals(SnapshotFields.THREAD_NAME | SnapshotFields.MDC | SnapshotFields.NDC, SnapshotFields.ofLayout(new PatternLayout("%t %X{flowCtxt} %x %m%n")));
+		assertEquals(SnapshotFields.THREAD_NAME | SnapshotFields.MDC, SnapshotFields.ofLayout(new FoundationLoggingPatternLayout()));
+		assertEquals(SnapshotFields.LOCATION, SnapshotFields.ofLayout(new FoundationLoggingPatternLayout("%F:%L %M %m%n")));
+
+		WriterAppender plain = new WriterAppender(new PatternLayout("%p %m%n"), new StringWriter());
+		plain.setName("snapshotPlain");
+		Appender[] appenders = new Appender[] { plain };
+		SnapshotFields snapshotFields = new SnapshotFields();
+		assertEquals(0, snapshotFields.fieldsFor(appenders, true));
+
+		// a marker layout routed to the appender counts as well.
+		FoundationLogger.markerAppendersMap.put("SNAPSHOT_LOCATION", Collections.<String, Layout> singletonMap("snapshotPlain", new PatternLayout("%L %m%n")));
+		FoundationLogger.refreshMarkerLayouts();
+		try {
+			assertEquals(SnapshotFields.LOCATION, snapshotFields.fieldsFor(appenders, false));
+		} finally {
+			FoundationLogger.markerAppendersMap.remove("SNAPSHOT_LOCATION");
+			FoundationLogger.refreshMarkerLayouts();
+		}
+
+		// appenders without a layout get everything, the location if asked for.
+		Appender[] unknown = new Appender[] { new CollectingAppender("snapshotUnknown") };
+		assertEquals(SnapshotFields.THREAD_NAME | SnapshotFields.MDC | SnapshotFields.NDC, snapshotFields.fieldsFor(unknown, false));
+		assertEquals(SnapshotFields.THREAD_NAME | SnapshotFields.MDC | SnapshotFields.NDC | SnapshotFields.LOCATION, snapshotFields.fieldsFor(unknown, true));
+
+		// the fields a layout reads are captured on the logging thread.
+		StringWriter writer = new StringWriter();
+		WriterAppender threadAndMethod = new WriterAppender(new PatternLayout("%t %M %m%n"), writer);
+		FoundationAsyncAppender async = new FoundationAsyncAppender();
+		async.addAppender(threadAndMethod);
+		Logger logger = Logger.getLogger("async.snapshot.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		logger.info("captured");
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+
+		assertEquals(Thread.currentThread().getName() + " asyncSnapshotFollowsTheLayouts captured" + Layout.LINE_SEP, writer.toString());
+	}
+
+	@Test
+	public void renderedRecordsReachTheFileInOrder() throws Exception {
+		final File dir = new File("target/rendered");
+		File[] previous = dir.listFiles();
+		if (previous != null) {
+			for (File file : previous) {
+				file.delete();
+			}
+		}
+		dir.mkdirs();
+		FoundationFileRollingAppender fileAppender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), new File(dir, "rendered.log").getPath());
+		fileAppender.setName("rendered");
+		fileAppender.setRollOnStartup(false);
+		fileAppender.setEncoding("UTF-8");
+		fileAppender.setMaxFileSize("16KB");
+		fileAppender.activateOptions();
+
+		// small slots so records span slots and wrap around the ring.
+		FoundationRenderingAsyncAppender async = new FoundationRenderingAsyncAppender();
+		async.setBufferSize("4KB");
+		async.setSlotSize(32);
+		async.addAppender(fileAppender);
+		async.activateOptions();
+
+		Logger logger = Logger.getLogger("rendered.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		final int records = 2000;
+		for (int i = 0; i < records; i++) {
+			StringBuilder padding = new StringBuilder();
+			for (int j = 0; j < i % 50; j++) {
+				padding.append(j % 2 == 0 ? 'x' : '\u20ac');
+			}
+			logger.info("record " + i + " " + padding);
+		}
+		logger.debug("filtered");
+		// closing waits for the dispatcher to write the ring.
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+
+		File[] files = dir.listFiles();
+		assertTrue(files.length > 1);
+		Set<Integer> seen = new HashSet<Integer>();
+		for (File file : files) {
+			int last = -1;
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				String[] parts = line.split(" ");
+				assertEquals("INFO", parts[0]);
+				assertEquals("record", parts[1]);
+				int record = Integer.parseInt(parts[2]);
+				assertEquals(record % 50 == 0 ? 3 : 4, parts.length);
+				assertEquals(record % 50, parts.length == 3 ? 0 : parts[3].length());
+				for (int j = 0; j < record % 50; j++) {
+					assertEquals(j % 2 == 0 ? 'x' : '\u20ac', parts[3].charAt(j));
+				}
+				// the file rolls between batches - each file holds a run of records.
+				assertTrue(record > last);
+				last = record;
+				assertTrue(seen.add(record));
+			}
+		}
+		assertEquals(records, seen.size());
+	}
+
+	@Test
+	public void renderedDrainCountsRecords() throws Exception {
+		final File dir = new File("target/rendered-drain");
+		File[] previous = dir.listFiles();
+		if (previous != null) {
+			for (File file : previous) {
+				file.delete();
+			}
+		}
+		dir.mkdirs();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		FoundationFileRollingAppender fileAppender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), new File(dir, "drain.log").getPath()) {
+			@Override
+			public void writeEncoded(ByteBuffer[] regions, int count, long timeStamp) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.writeEncoded(regions, count, timeStamp);
+			}
+		};
+		fileAppender.setName("renderedDrain");
+		fileAppender.setRollOnStartup(false);
+		fileAppender.activateOptions();
+
+		// records of several slots each.
+		FoundationRenderingAsyncAppender async = new FoundationRenderingAsyncAppender();
+		async.setBufferSize("4KB");
+		async.setSlotSize(32);
+		async.addAppender(fileAppender);
+		async.activateOptions();
+
+		Logger logger = Logger.getLogger("rendered.drain.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		// the first record holds the stuck dispatcher, the other 9 stay in the ring.
+		logger.info("record 0 of a drain that can't write in time");
+		assertTrue(entered.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < 10; i++) {
+			logger.info("record " + i + " of a drain that can't write in time");
+		}
+
+		FoundationShutdownHook.Report report = FoundationShutdownHook.drain(Arrays.<Appender>asList(async), 200);
+		assertEquals(0, report.getDrained());
+		assertEquals(10, report.getDropped());
+
+		// closing doesn't wait for the abandoned dispatcher.
+		final FoundationRenderingAsyncAppender closing = async;
+		Thread closer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				closing.close();
+			}
+		});
+		closer.start();
+		closer.join(10000);
+		assertFalse(closer.isAlive());
+
+		release.countDown();
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void stripedRecordsAreMergedInOrder() throws Exception {
+		final File dir = new File("target/striped");
+		File[] previous = dir.listFiles();
+		if (previous != null) {
+			for (File file : previous) {
+				file.delete();
+			}
+		}
+		dir.mkdirs();
+		FoundationFileRollingAppender fileAppender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), new File(dir, "striped.log").getPath());
+		fileAppender.setName("striped");
+		fileAppender.setRollOnStartup(false);
+		fileAppender.setEncoding("UTF-8");
+		fileAppender.setMaxFileSize("16KB");
+		fileAppender.activateOptions();
+
+		// small stripes so the logging threads park until the flusher took their records.
+		FoundationStripedAsyncAppender async = new FoundationStripedAsyncAppender();
+		async.setBufferSize("1KB");
+		async.setFlushInterval(10);
+		async.addAppender(fileAppender);
+		async.activateOptions();
+
+		final Logger logger = Logger.getLogger("striped.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		// one after the other from different threads - merged in the order logged.
+		for (int i = 0; i < 3; i++) {
+			final int order = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					logger.info("order " + order);
+				}
+			});
+			thread.start();
+			thread.join();
+		}
+
+		final int threads = 4;
+		final int records = 1000;
+		Thread[] loggingThreads = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			loggingThreads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < records; i++) {
+						logger.info("record " + thread + " " + i);
+					}
+				}
+			});
+			loggingThreads[t].start();
+		}
+		for (Thread thread : loggingThreads) {
+			thread.join();
+		}
+
+		// the threads died with records in their stripes - the flusher writes them within its interval.
+		final int expected = 3 + threads * records;
+		int written = 0;
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (written < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+			written = 0;
+			for (File file : dir.listFiles()) {
+				written += Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size();
+			}
+		}
+		assertEquals(expected, written);
+		logger.debug("filtered");
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+
+		File[] files = dir.listFiles();
+		assertTrue(files.length > 1);
+		Set<String> seen = new HashSet<String>();
+		for (File file : files) {
+			int[] last = new int[threads];
+			Arrays.fill(last, -1);
+			List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+			for (String line : lines) {
+				String[] parts = line.split(" ");
+				assertEquals("INFO", parts[0]);
+				if ("order".equals(parts[1])) {
+					assertEquals("INFO order " + Integer.parseInt(parts[2]), lines.get(lines.indexOf("INFO order 0") + Integer.parseInt(parts[2])));
+				} else {
+					int thread = Integer.parseInt(parts[2]);
+					int record = Integer.parseInt(parts[3]);
+					assertTrue(record > last[thread]);
+					last[thread] = record;
+				}
+				assertTrue(seen.add(line));
+			}
+		}
+		assertEquals(expected, seen.size());
+		assertEquals(0, async.getDiscardedCount());
+	}
+
+	@Test
+	public void fileRenderingAsyncTypesFallBackForOtherAppenders() throws Exception {
+		final File dir = new File("target/async-type");
+		dir.mkdirs();
+		final Properties previous = FoundationLogger.log4jConfigProps;
+		final Properties props = new Properties();
+		props.setProperty(FoundationLoggerConstants.Foundation_ASYNC_BUFFER_SIZE.toString(), "100");
+		FoundationLogger.log4jConfigProps = props;
+		try {
+			FoundationHierarchyEventListener listener = new FoundationHierarchyEventListener();
+			FoundationFileRollingAppender fileAppender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), new File(dir, "async-type.log").getPath());
+			fileAppender.setName("asyncTypeFile");
+			fileAppender.setRollOnStartup(false);
+			fileAppender.activateOptions();
+
+			props.setProperty("FoundationLogger.asyncAppenderType", "striped");
+			Appender fallback = listener.createAsyncAppender(new CollectingAppender("asyncTypeOther"));
+			assertTrue(fallback instanceof FoundationAsyncAppender);
+			fallback.close();
+			FoundationStripedAsyncAppender striped = (FoundationStripedAsyncAppender) listener.createAsyncAppender(fileAppender);
+			assertEquals("25600", striped.getTotalBufferSize());
+
+			props.setProperty("FoundationLogger.asyncAppenderType", "render");
+			FoundationRenderingAsyncAppender rendering = (FoundationRenderingAsyncAppender) listener.createAsyncAppender(fileAppender);
+			assertEquals("25600", rendering.getBufferSize());
+			striped.close();
+			rendering.close();
+		} finally {
+			FoundationLogger.log4jConfigProps = previous;
+		}
+	}
+
+	@Test
+	public void stripesGrowWithinTheTotalBufferSize() throws Exception {
+		final File dir = new File("target/striped-budget");
+		File[] previous = dir.listFiles();
+		if (previous != null) {
+			for (File file : previous) {
+				file.delete();
+			}
+		}
+		dir.mkdirs();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		FoundationFileRollingAppender fileAppender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), new File(dir, "budget.log").getPath()) {
+			@Override
+			public void writeEncoded(ByteBuffer[] regions, int count, long timeStamp) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.writeEncoded(regions, count, timeStamp);
+			}
+		};
+		fileAppender.setName("stripedBudget");
+		fileAppender.setRollOnStartup(false);
+		fileAppender.activateOptions();
+
+		FoundationStripedAsyncAppender async = new FoundationStripedAsyncAppender();
+		async.setBufferSize("64KB");
+		async.setTotalBufferSize("4KB");
+		async.setFlushInterval(60000);
+		async.setBlocking(false);
+		async.addAppender(fileAppender);
+		async.activateOptions();
+
+		Logger logger = Logger.getLogger("striped.budget.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		// a thread that logged once holds a small buffer, not a whole stripe.
+		logger.info("budget record");
+		assertTrue(async.getAllocatedBytes() > 0);
+		assertTrue(async.getAllocatedBytes() < 1024);
+
+		// the stripe can't grow past the total - the flusher is asked to write and gets stuck.
+		for (int i = 0; i < 1000 && entered.getCount() > 0; i++) {
+			logger.info("budget record " + i);
+		}
+		assertTrue(entered.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 1000; i++) {
+			logger.info("budget record " + i);
+		}
+		assertTrue(async.getDiscardedCount() > 0);
+		assertTrue(async.getAllocatedBytes() <= 4096);
+
+		// closing releases every stripe.
+		release.countDown();
+		logger.removeAllAppenders();
+		assertEquals(0, async.getAllocatedBytes());
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void stripedDrainCountsRecords() throws Exception {
+		final File dir = new File("target/striped-drain");
+		File[] previous = dir.listFiles();
+		if (previous != null) {
+			for (File file : previous) {
+				file.delete();
+			}
+		}
+		dir.mkdirs();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		FoundationFileRollingAppender fileAppender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), new File(dir, "drain.log").getPath()) {
+			@Override
+			public void writeEncoded(ByteBuffer[] regions, int count, long timeStamp) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.writeEncoded(regions, count, timeStamp);
+			}
+		};
+		fileAppender.setName("stripedDrain");
+		fileAppender.setRollOnStartup(false);
+		fileAppender.activateOptions();
+
+		FoundationStripedAsyncAppender async = new FoundationStripedAsyncAppender();
+		async.setFlushInterval(10);
+		async.addAppender(fileAppender);
+		async.activateOptions();
+
+		Logger logger = Logger.getLogger("striped.drain.test");
+		logger.addAppender(async);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		// the first record holds the stuck flusher, the other 9 stay in the stripe.
+		logger.info("record 0 of a drain that can't write in time");
+		assertTrue(entered.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < 10; i++) {
+			logger.info("record " + i + " of a drain that can't write in time");
+		}
+
+		FoundationShutdownHook.Report report = FoundationShutdownHook.drain(Arrays.<Appender>asList(async), 200);
+		assertEquals(0, report.getDrained());
+		assertEquals(10, report.getDropped());
+
+		// closing doesn't wait for the abandoned flusher.
+		final FoundationStripedAsyncAppender closing = async;
+		Thread closer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				closing.close();
+			}
+		});
+		closer.start();
+		closer.join(10000);
+		assertFalse(closer.isAlive());
+
+		release.countDown();
+		logger.removeAllAppenders();
+		logger.setLevel(null);
+		logger.setAdditivity(true);
+	}
+
+	@Test
+	public void asyncLoggersCallTheAppendersOffTheLoggingThread() throws Exception {
+		final List<String> appendingThreads = new CopyOnWriteArrayList<String>();
+		CollectingAppender appender = new CollectingAppender("asyncLogger") {
+			@Override
+			protected void append(LoggingEvent event) {
+				appendingThreads.add(Thread.currentThread().getName());
+				super.append(event);
+			}
+		};
+		Logger parent = Logger.getLogger("asynclogger");
+		parent.addAppender(appender);
+		parent.setAdditivity(false);
+		parent.setLevel(Level.INFO);
+		Logger child = Logger.getLogger("asynclogger.child");
+		Logger sync = Logger.getLogger("asynclogger.sync");
+
+		Properties properties = new Properties();
+		properties.setProperty("FoundationLogger.asyncLogger.asynclogger", "true");
+		properties.setProperty("FoundationLogger.asyncLogger.asynclogger.sync", "false");
+		FoundationLogger.setupAsyncLoggers(properties);
+		try {
+			MDC.put("flowCtxt", "async");
+			for (int i = 0; i < 100; i++) {
+				child.info("event " + i);
+			}
+			MDC.remove("flowCtxt");
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (appender.events.size() < 100 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(100, appender.events.size());
+			for (int i = 0; i < 100; i++) {
+				LoggingEvent event = appender.events.get(i);
+				assertEquals("event " + i, event.getRenderedMessage());
+				// the thread bound fields are the logging thread's.
+				assertEquals(Thread.currentThread().getName(), event.getThreadName());
+				assertEquals("async", event.getMDC("flowCtxt"));
+				assertEquals("FoundationLogger-AsyncLogger", appendingThreads.get(i));
+			}
+
+			// the closest configured ancestor wins.
+			sync.info("sync");
+			assertEquals(101, appender.events.size());
+			assertEquals(Thread.currentThread().getName(), appendingThreads.get(100));
+
+			FoundationLogger.setupAsyncLoggers(new Properties());
+			child.info("not async");
+			assertEquals(102, appender.events.size());
+			assertEquals(Thread.currentThread().getName(), appendingThreads.get(101));
+		} finally {
+			FoundationLogger.setupAsyncLoggers(new Properties());
+			parent.removeAllAppenders();
+			parent.setLevel(null);
+			parent.setAdditivity(true);
+		}
+	}
+
+	/**
+	 * 10k threads logging to a rolling file. On a JDK with virtual threads
+	 * they are virtual threads and a JFR recording checks none of them pinned
+	 * its carrier thread; on older JDKs a pool of platform threads checks that
+	 * no line is lost or torn.
+	 */
+	@Test
+	public void manyThreadsLogWithoutPinning() throws Exception {
+		final int threads = 10000;
+		File file = new File("target/virtual-threads.log");
+		file.delete();
+		FoundationFileRollingAppender appender = new FoundationFileRollingAppender(new FoundationLoggingPatternLayout("%p %m%n"), file.getPath());
+		appender.setName("virtualThreads");
+		appender.setRollOnStartup(false);
+		appender.setBufferedIO(false);
+		appender.activateOptions();
+
+		final Logger logger = Logger.getLogger("virtual.threads.test");
+		logger.addAppender(appender);
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+
+		final Object virtualThreads = virtualThreadBuilder();
+		final Object recording = virtualThreads == null ? null : startPinningRecording();
+		try {
+			final CountDownLatch done = new CountDownLatch(threads);
+			final ExecutorService pool = virtualThreads == null ? Executors.newFixedThreadPool(64) : null;
+			for (int i = 0; i < threads; i++) {
+				final int id = i;
+				Runnable task = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							logger.info("thread " + id);
+						} finally {
+							done.countDown();
+						}
+					}
+				};
+				if (pool == null) {
+					startVirtualThread(virtualThreads, task);
+				} else {
+					pool.execute(task);
+				}
+			}
+			assertTrue(done.await(2, TimeUnit.MINUTES));
+			if (pool != null) {
+				pool.shutdown();
+			}
+		} finally {
+			logger.removeAllAppenders();
+			logger.setLevel(null);
+			logger.setAdditivity(true);
+		}
+
+		if (recording != null) {
+			assertEquals("virtual threads pinned while logging", 0, stopPinningRecording(recording));
+		}
+
+		Set<String> lines = new HashSet<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		file.delete();
+		assertEquals(threads, lines.size());
+		assertTrue(lines.contains("INFO thread 0"));
+		assertTrue(lines.contains("INFO thread " + (threads - 1)));
+	}
+
+	/**
+	 * @return Thread.ofVirtual() - null before JDK 21. Reflective as the
+	 *         module is built for Java 8.
+	 */
+	private static Object virtualThreadBuilder() {
+		try {
+			return Thread.class.getMethod("ofVirtual").invoke(null);
+		} catch (Exception e) {
+			// no virtual threads, or preview only and not enabled.
+			return null;
+		}
+	}
+
+	private static void startVirtualThread(Object builder, Runnable task) throws Exception {
+		Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class).invoke(builder, task);
+	}
+
+	/**
+	 * start a JFR recording of the jdk.VirtualThreadPinned events.
+	 */
+	private static Object startPinningRecording() throws Exception {
+		Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+		Object recording = recordingClass.newInstance();
+		Object settings = recordingClass.getMethod("enable", String.class).invoke(recording, "jdk.VirtualThreadPinned");
+		Class.forName("jdk.jfr.EventSettings").getMethod("withThreshold", Duration.class).invoke(settings, Duration.ZERO);
+		recordingClass.getMethod("start").invoke(recording);
+		return recording;
+	}
+
+	/**
+	 * @return the number of pinned events recorded.
+	 */
+	private static int stopPinningRecording(Object recording) throws Exception {
+		Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+		Path dump = Files.createTempFile("pinning", ".jfr");
+		try {
+			recordingClass.getMethod("stop").invoke(recording);
+			recordingClass.getMethod("dump", Path.class).invoke(recording, dump);
+			List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", Path.class).invoke(null, dump);
+			return events.size();
+		} finally {
+			recordingClass.getMethod("close").invoke(recording);
+			Files.delete(dump);
+		}
+	}
+
+	/**
+	 * Writer that counts the flushes and the lines written.
+	 */
+	static class FlushCountingWriter extends StringWriter {
+
+		final AtomicInteger flushes = new AtomicInteger();
+
+		@Override
+		public void flush() {
+			flushes.incrementAndGet();
+			super.flush();
+		}
+
+		int lines() {
+			return toString().split(Layout.LINE_SEP).length;
+		}
+	}
+
+	/**
+	 * an appender that is not an AppenderSkeleton and isn't thread safe -
+	 * records the lines its layout formats and whether two threads were ever
+	 * inside it at once.
+	 */
+	static class LayoutRecordingAppender implements Appender {
+
+		final List<String> lines = new CopyOnWriteArrayList<String>();
+
+		final AtomicInteger inside = new AtomicInteger();
+
+		volatile boolean overlapped = false;
+
+		private final String name;
+
+		private Layout layout;
+
+		LayoutRecordingAppender(String name, Layout layout) {
+			this.name = name;
+			this.layout = layout;
+		}
+
+		@Override
+		public void doAppend(LoggingEvent event) {
+			if (inside.incrementAndGet() > 1) {
+				overlapped = true;
+			}
+			try {
+				Layout current = layout;
+				Thread.yield();
+				lines.add(current.format(event));
+			} finally {
+				inside.decrementAndGet();
+			}
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public void setName(String name) {
+		}
+
+		@Override
+		public Layout getLayout() {
+			return layout;
+		}
+
+		@Override
+		public void setLayout(Layout layout) {
+			this.layout = layout;
+		}
+
+		@Override
+		public boolean requiresLayout() {
+			return true;
+		}
+
+		@Override
+		public void addFilter(Filter newFilter) {
+		}
+
+		@Override
+		public Filter getFilter() {
+			return null;
+		}
+
+		@Override
+		public void clearFilters() {
+		}
+
+		@Override
+		public ErrorHandler getErrorHandler() {
+			return null;
+		}
+
+		@Override
+		public void setErrorHandler(ErrorHandler errorHandler) {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Simple appender that keeps all the events it got.
+	 */
+	static class CollectingAppender extends AppenderSkeleton {
+
+		final List<LoggingEvent> events = new CopyOnWriteArrayList<LoggingEvent>();
+
+		CollectingAppender(String name) {
+			setName(name);
+		}
+
+		@Override
+		protected void append(LoggingEvent event) {
+			events.add(event);
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+		boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+	}
+
+}
@@ -24,8 +24,15 @@ import org.apache.log4j.Logger;
 import org.junit.Test;
 
 import java.lang.reflect.Constructor;
+import java.math.BigInteger;
+import java.text.MessageFormat;
+import java.util.IllegalFormatConversionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * 
@@ -53,6 +60,56 @@ public class LoggingHelperTest {
 		assertEquals("[connectionName] remote host[host] connectionReason - terminationReason", formatConnectionTerminationMessage);
 	}
 
+	@Test
+	public void templatesRenderLikeTheJdkFormatters() {
+		Object[][] arguments = { { "a", 1 }, { null, -42L }, { "b", new BigInteger("123456789012345678901234567890") }, { "c", (short) 3 } };
+		String[] formats = { "%s and %d", "%s%% done %d%n", "%s is %5d", "%2$s then %1$s" };
+		for (String format : formats) {
+			for (Object[] args : arguments) {
+				assertEquals(String.format(format, args), LoggingTemplate.forFormat(format).format(args));
+			}
+		}
+		assertTrue(LoggingTemplate.forFormat("%s and %d").isCompiled());
+		assertFalse(LoggingTemplate.forFormat("%s is %5d").isCompiled());
+
+		Object[] args = { "x", null, LoggingHelper.IN_OUT_MODE.OUT };
+		String[] patterns = { "{0}[{1}] {2}", "{2} {0} {5}", "it''s {0}", "{1,number} {0}" };
+		for (String pattern : patterns) {
+			assertEquals(new MessageFormat(pattern).format(args), LoggingTemplate.forMessageFormat(pattern).format(args));
+		}
+		assertEquals(new MessageFormat("{0} {1}").format(new Object[] { 1234567, "y" }), LoggingTemplate.forMessageFormat("{0} {1}").format(1234567, "y"));
+	}
+
+	@Test(expected = IllegalFormatConversionException.class)
+	public void templatesKeepTheStringFormatErrors() {
+		LoggingTemplate.forFormat("%d").format("not a number");
+	}
+
+	@Test
+	public void templatesAreThreadSafe() throws Exception {
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final String host = "host" + t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						String message = LoggingHelper.formatConnectionEstablishmentMessage("con" + i, host, "reason");
+						if (!message.equals("[con" + i + "] remote host[" + host + "] reason")) {
+							failure.set(message);
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(failure.get());
+	}
+
 	@Test
 	public void formattedTest() {
 		LOGGER.debug(String.format("this is a test of %s", "test123"));